@@ -0,0 +1,245 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.benchmark;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates synthetic book content ZIPs laid out like the ones the publishing system drops:
+ * package.opf at the top, chapter and supplementary XHTML under content/, artwork under images/,
+ * and CSS under styles/. Text is DEFLATED and artwork is STORED, as artwork is already compressed.
+ * The same settings and seed always give the same ZIP.
+ *
+ * @version 1.0
+ */
+public class BookZipGenerator {
+    private static final String[] WORDS = {
+            "the", "publisher", "ingestion", "chapter", "book", "content", "repository", "folder", "reader",
+            "and", "of", "to", "in", "a", "is", "that", "for", "it", "as", "with", "was", "on", "be", "at" };
+
+    /**
+     * Typical shapes of book ZIPs
+     */
+    public enum Shape {
+        /**
+         * A handful of very large chapters, such as a novel typeset as one file per part
+         */
+        FEW_LARGE_CHAPTERS,
+        /**
+         * A few chapters and thousands of small images, such as a cookbook or a field guide
+         */
+        MANY_SMALL_IMAGES,
+        /**
+         * Artwork spread over deeply nested directories, such as exported from a DAM
+         */
+        DEEP_DIRECTORIES;
+
+        public BookZipGenerator generator() {
+            switch (this) {
+                case FEW_LARGE_CHAPTERS:
+                    return new BookZipGenerator().withChapters(5, 8 * 1024 * 1024).withImages(10, 256 * 1024);
+                case MANY_SMALL_IMAGES:
+                    return new BookZipGenerator().withChapters(10, 64 * 1024).withImages(3000, 16 * 1024);
+                default:
+                    return new BookZipGenerator().withChapters(10, 64 * 1024).withImages(500, 16 * 1024)
+                            .withImageDirectoryDepth(6);
+            }
+        }
+    }
+
+    private int chapters = 20;
+    private int chapterSize = 64 * 1024;
+    private int supplementaryFiles = 2;
+    private int supplementarySize = 16 * 1024;
+    private int images = 50;
+    private int imageSize = 200 * 1024;
+    private int imageDirectoryDepth = 0;
+    private int styles = 2;
+    private int styleSize = 8 * 1024;
+    private long seed = 42;
+
+    public BookZipGenerator withChapters(int chapters, int chapterSize) {
+        this.chapters = chapters;
+        this.chapterSize = chapterSize;
+        return this;
+    }
+
+    public BookZipGenerator withSupplementaryFiles(int supplementaryFiles, int supplementarySize) {
+        this.supplementaryFiles = supplementaryFiles;
+        this.supplementarySize = supplementarySize;
+        return this;
+    }
+
+    public BookZipGenerator withImages(int images, int imageSize) {
+        this.images = images;
+        this.imageSize = imageSize;
+        return this;
+    }
+
+    /**
+     * @param imageDirectoryDepth number of directories under images/ that each image is nested in
+     */
+    public BookZipGenerator withImageDirectoryDepth(int imageDirectoryDepth) {
+        this.imageDirectoryDepth = imageDirectoryDepth;
+        return this;
+    }
+
+    public BookZipGenerator withStyles(int styles, int styleSize) {
+        this.styles = styles;
+        this.styleSize = styleSize;
+        return this;
+    }
+
+    public BookZipGenerator withSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Write a book ZIP
+     *
+     * @param directory where to write the ZIP
+     * @param isbn      the ISBN, the ZIP is called {isbn}.zip and the files are named after it
+     * @return the ZIP file
+     * @throws IOException if the ZIP could not be written
+     */
+    public File generate(File directory, String isbn) throws IOException {
+        Random random = new Random(seed ^ isbn.hashCode());
+        File zipFile = new File(directory, isbn + ".zip");
+        List<String> manifest = new ArrayList<String>();
+
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zipFile)))) {
+            for (int i = 1; i <= chapters; i++) {
+                String name = "content/" + isbn + "-Chapter-" + i + ".xhtml";
+                writeText(zip, name, xhtml(random, chapterSize));
+                manifest.add(name);
+            }
+            for (int i = 1; i <= supplementaryFiles; i++) {
+                String name = "content/" + isbn + "-Supplementary-" + i + ".xhtml";
+                writeText(zip, name, xhtml(random, supplementarySize));
+                manifest.add(name);
+            }
+            for (int i = 1; i <= images; i++) {
+                String name = "images/" + nestedDirectories(i) + "figure-" + i + ".jpg";
+                byte[] image = new byte[imageSize];
+                random.nextBytes(image);
+                writeStored(zip, name, image);
+                manifest.add(name);
+            }
+            for (int i = 1; i <= styles; i++) {
+                String name = "styles/style-" + i + ".css";
+                writeText(zip, name, css(random, styleSize));
+                manifest.add(name);
+            }
+            writeText(zip, "package.opf", opf(isbn, manifest));
+        }
+
+        return zipFile;
+    }
+
+    private String nestedDirectories(int image) {
+        StringBuilder path = new StringBuilder();
+        for (int level = 1; level <= imageDirectoryDepth; level++) {
+            path.append("level").append(level).append('-').append(image % (level + 3)).append('/');
+        }
+        return path.toString();
+    }
+
+    private static void writeText(ZipOutputStream zip, String name, String text) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.DEFLATED);
+        zip.putNextEntry(entry);
+        zip.write(text.getBytes(StandardCharsets.UTF_8));
+        zip.closeEntry();
+    }
+
+    private static void writeStored(ZipOutputStream zip, String name, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc.getValue());
+        zip.putNextEntry(entry);
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    private static String xhtml(Random random, int size) {
+        StringBuilder text = new StringBuilder(size + 256);
+        text.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<html xmlns=\"http://www.w3.org/1999/xhtml\"><head><title>Chapter</title></head><body>\n");
+        while (text.length() < size) {
+            text.append("<p>");
+            int sentenceWords = 8 + random.nextInt(24);
+            for (int i = 0; i < sentenceWords; i++) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            text.append("</p>\n");
+        }
+        return text.append("</body></html>\n").toString();
+    }
+
+    private static String css(Random random, int size) {
+        StringBuilder text = new StringBuilder(size + 64);
+        int rule = 0;
+        while (text.length() < size) {
+            text.append(".rule-").append(rule++).append(" { margin: ").append(random.nextInt(32))
+                    .append("px; color: #").append(Integer.toHexString(0x100000 + random.nextInt(0xEFFFFF)))
+                    .append("; }\n");
+        }
+        return text.toString();
+    }
+
+    private static String opf(String isbn, List<String> manifest) {
+        StringBuilder opf = new StringBuilder();
+        opf.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<package xmlns=\"http://www.idpf.org/2007/opf\" version=\"3.0\" unique-identifier=\"isbn\">\n")
+                .append("  <metadata xmlns:dc=\"http://purl.org/dc/elements/1.1/\">\n")
+                .append("    <dc:identifier id=\"isbn\">urn:isbn:").append(isbn).append("</dc:identifier>\n")
+                .append("    <dc:title>Synthetic Book ").append(isbn).append("</dc:title>\n")
+                .append("    <dc:language>en</dc:language>\n")
+                .append("  </metadata>\n")
+                .append("  <manifest>\n");
+        int item = 0;
+        for (String href : manifest) {
+            opf.append("    <item id=\"item-").append(item++).append("\" href=\"").append(href)
+                    .append("\" media-type=\"").append(mediaType(href)).append("\"/>\n");
+        }
+        return opf.append("  </manifest>\n</package>\n").toString();
+    }
+
+    private static String mediaType(String href) {
+        if (href.endsWith(".xhtml")) {
+            return "application/xhtml+xml";
+        } else if (href.endsWith(".css")) {
+            return "text/css";
+        }
+        return "image/jpeg";
+    }
+}
@@ -0,0 +1,240 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.benchmark;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpStatus;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * End-to-end ingestion benchmark against a running repository, such as the one started with
+ * {@code mvn alfresco:run} on the H2, PostgreSQL, or MySQL settings in src/test/properties/local.
+ * Generates N synthetic book ZIPs, moves them into the content drop folder
+ * (bestpub.ingestion.content.filesystemPathToCheck), and polls the repository REST API until each
+ * ISBN folder is COMPLETE. Reports drop-to-COMPLETE latency and throughput, and appends the result
+ * to a CSV file so runs against different database backends can be compared.
+ * <p>
+ * Run with, for example:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec@e2e -De2e.args="--dropFolder /Users/martin/ingestion/content --count 50 --backend postgresql"
+ * </pre>
+ * Options, with defaults: --dropFolder (required), --count 20, --backend h2, --shape (none, else the
+ * --chapters 20 --chapterSize 65536 --images 50 --imageSize 204800 --styles 2 settings are used),
+ * --url http://localhost:8080/alfresco, --user admin, --password admin,
+ * --folder "Data Dictionary/BestPub/Incoming/Content", --pollMillis 500, --timeoutSeconds 1800,
+ * --results target/e2e-ingestion-results.csv.
+ * <p>
+ * The ZIPs are generated in a staging folder next to the drop folder and moved in one at a time,
+ * so the drop-to-COMPLETE latency includes the write completion quiet period, set
+ * bestpub.ingestion.content.writeCompletionStrategy=NONE to leave it out.
+ *
+ * @version 1.0
+ */
+public class IngestionEndToEndBenchmark {
+    private static final Pattern INGESTION_STATUS =
+            Pattern.compile("\"[a-zA-Z]+:ingestionStatus\"\\s*:\\s*\"([^\"]*)\"");
+
+    private final Map<String, String> options;
+
+    public IngestionEndToEndBenchmark(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected an --option, got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        if (!options.containsKey("dropFolder")) {
+            throw new IllegalArgumentException("--dropFolder is required, see the class documentation for the options");
+        }
+
+        new IngestionEndToEndBenchmark(options).run();
+    }
+
+    public void run() throws IOException, InterruptedException, URISyntaxException {
+        File dropFolder = new File(option("dropFolder", null)).getAbsoluteFile();
+        int count = Integer.parseInt(option("count", "20"));
+        String backend = option("backend", "h2");
+        long pollMillis = Long.parseLong(option("pollMillis", "500"));
+        long timeoutMillis = Long.parseLong(option("timeoutSeconds", "1800")) * 1000;
+
+        // Generate everything up front, on the same file system as the drop folder so the move is atomic
+        File stagingFolder = new File(dropFolder.getParentFile(), dropFolder.getName() + "-benchmark-staging");
+        FileUtils.forceMkdir(stagingFolder);
+        BookZipGenerator generator = newGenerator();
+        long isbnBase = 9790000000000L + (System.currentTimeMillis() / 1000 % 1000000) * 1000;
+        Map<String, File> stagedZips = new LinkedHashMap<String, File>();
+        long totalBytes = 0;
+        for (int i = 0; i < count; i++) {
+            String isbn = Long.toString(isbnBase + i);
+            File zip = generator.generate(stagingFolder, isbn);
+            stagedZips.put(isbn, zip);
+            totalBytes += zip.length();
+        }
+        System.out.printf("Generated %d book ZIPs (%d MB) in %s%n", count, totalBytes / (1024 * 1024), stagingFolder);
+
+        Map<String, Long> droppedAt = new LinkedHashMap<String, Long>();
+        Map<String, Long> completedAt = new HashMap<String, Long>();
+        try (CloseableHttpClient httpClient = newHttpClient()) {
+            long startMillis = System.currentTimeMillis();
+            for (Map.Entry<String, File> stagedZip : stagedZips.entrySet()) {
+                Files.move(stagedZip.getValue().toPath(), new File(dropFolder, stagedZip.getValue().getName()).toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+                droppedAt.put(stagedZip.getKey(), System.currentTimeMillis());
+            }
+
+            List<String> pending = new ArrayList<String>(droppedAt.keySet());
+            while (!pending.isEmpty() && System.currentTimeMillis() - startMillis < timeoutMillis) {
+                Thread.sleep(pollMillis);
+                try {
+                    for (Iterator<String> it = pending.iterator(); it.hasNext(); ) {
+                        String isbn = it.next();
+                        if (isComplete(httpClient, isbn)) {
+                            completedAt.put(isbn, System.currentTimeMillis());
+                            it.remove();
+                        }
+                    }
+                } catch (IOException ioe) {
+                    // Such as the repository being busy or restarting, keep trying until the timeout
+                    System.out.println("Could not check ingestion status: " + ioe.getMessage());
+                }
+            }
+
+            long elapsedMillis = System.currentTimeMillis() - startMillis;
+            report(backend, count, totalBytes, elapsedMillis, droppedAt, completedAt, pending.size());
+        } finally {
+            FileUtils.deleteQuietly(stagingFolder);
+        }
+    }
+
+    private void report(String backend, int count, long totalBytes, long elapsedMillis, Map<String, Long> droppedAt,
+                        Map<String, Long> completedAt, int timedOut) throws IOException {
+        long[] latencies = new long[completedAt.size()];
+        int i = 0;
+        for (Map.Entry<String, Long> completed : completedAt.entrySet()) {
+            latencies[i++] = completed.getValue() - droppedAt.get(completed.getKey());
+        }
+        Arrays.sort(latencies);
+
+        double seconds = elapsedMillis / 1000.0;
+        double zipsPerMinute = completedAt.size() / seconds * 60.0;
+        double megabytesPerSecond = totalBytes * ((double) completedAt.size() / count) / (1024.0 * 1024.0) / seconds;
+
+        System.out.printf(Locale.ROOT, "Backend %s: %d of %d ZIPs COMPLETE in %.1f s, %d timed out%n",
+                backend, completedAt.size(), count, seconds, timedOut);
+        System.out.printf(Locale.ROOT, "Throughput: %.2f ZIPs/min, %.2f MB/s%n", zipsPerMinute, megabytesPerSecond);
+        System.out.printf(Locale.ROOT, "Drop-to-COMPLETE latency (ms): p50=%d p95=%d p99=%d max=%d%n",
+                percentile(latencies, 50), percentile(latencies, 95), percentile(latencies, 99),
+                percentile(latencies, 100));
+
+        File results = new File(option("results", "target/e2e-ingestion-results.csv"));
+        boolean newFile = !results.exists();
+        FileUtils.forceMkdir(results.getAbsoluteFile().getParentFile());
+        try (PrintWriter writer = new PrintWriter(new FileWriter(results, true))) {
+            if (newFile) {
+                writer.println("timestamp,backend,zips,completed,timedOut,totalBytes,elapsedMillis," +
+                        "zipsPerMinute,megabytesPerSecond,p50Millis,p95Millis,p99Millis,maxMillis");
+            }
+            writer.printf(Locale.ROOT, "%d,%s,%d,%d,%d,%d,%d,%.2f,%.2f,%d,%d,%d,%d%n",
+                    System.currentTimeMillis(), backend, count, completedAt.size(), timedOut, totalBytes,
+                    elapsedMillis, zipsPerMinute, megabytesPerSecond, percentile(latencies, 50),
+                    percentile(latencies, 95), percentile(latencies, 99), percentile(latencies, 100));
+        }
+        System.out.println("Results appended to " + results.getAbsolutePath());
+    }
+
+    /**
+     * @return true if the ISBN folder exists and its ingestion status is COMPLETE
+     */
+    private boolean isComplete(CloseableHttpClient httpClient, String isbn) throws IOException, URISyntaxException {
+        HttpGet get = new HttpGet(new URIBuilder(option("url", "http://localhost:8080/alfresco") +
+                "/api/-default-/public/alfresco/versions/1/nodes/-root-")
+                .addParameter("relativePath", option("folder", "Data Dictionary/BestPub/Incoming/Content") + "/" + isbn)
+                .addParameter("include", "properties")
+                .build());
+        try (CloseableHttpResponse response = httpClient.execute(get)) {
+            String body = EntityUtils.toString(response.getEntity());
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK) {
+                return false;
+            }
+            Matcher matcher = INGESTION_STATUS.matcher(body);
+            return matcher.find() && matcher.group(1).equalsIgnoreCase("complete");
+        }
+    }
+
+    private BookZipGenerator newGenerator() {
+        if (options.containsKey("shape")) {
+            return BookZipGenerator.Shape.valueOf(options.get("shape").toUpperCase()).generator();
+        }
+        return new BookZipGenerator()
+                .withChapters(Integer.parseInt(option("chapters", "20")),
+                        Integer.parseInt(option("chapterSize", "65536")))
+                .withImages(Integer.parseInt(option("images", "50")), Integer.parseInt(option("imageSize", "204800")))
+                .withStyles(Integer.parseInt(option("styles", "2")), 8 * 1024);
+    }
+
+    private CloseableHttpClient newHttpClient() {
+        CredentialsProvider credentials = new BasicCredentialsProvider();
+        credentials.setCredentials(AuthScope.ANY,
+                new UsernamePasswordCredentials(option("user", "admin"), option("password", "admin")));
+        return HttpClients.custom().setDefaultCredentialsProvider(credentials).build();
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(sorted.length * percentile / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,173 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.benchmark;
+
+import org.acme.bestpublishing.contentingestion.services.ZipEntryRoutingRules;
+import org.acme.bestpublishing.contentingestion.services.ZipEntryRoutingTable;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Benchmarks the routing done for every entry in processZipFileEntry, splitting the entry name into
+ * directory and filename and looking up the target folder, over all the entries of a book ZIP.
+ * The folders are made up node references, nothing is looked up in a repository.
+ * Routing with the default rules is compared with routing with the default rules plus rules for other
+ * publisher layouts, the cost of routing an entry should not depend on the number of rules.
+ * The route benchmarks time the rules alone, on entry names split up front, without the
+ * FilenameUtils calls, which allocate, run with -prof gc to see what is left.
+ *
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(java.util.concurrent.TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ZipEntryRoutingBenchmark {
+
+    @Param({"FEW_LARGE_CHAPTERS", "MANY_SMALL_IMAGES", "DEEP_DIRECTORIES"})
+    public BookZipGenerator.Shape shape;
+
+    /**
+     * The default rules plus the rules for an EPUB OEBPS layout and an InDesign export layout
+     */
+    private static final String PUBLISHER_RULES = ZipEntryRoutingRules.DEFAULT_RULES +
+            ",OEBPS/Text/*chapter*=CHAPTERS,OEBPS/Text/*.xhtml=SUPPLEMENTARY,OEBPS/Images/**/*=ARTWORK," +
+            "OEBPS/Styles/*=STYLES,OEBPS/*.opf=ISBN,Export/Chapters/*=CHAPTERS,Export/Front/*=SUPPLEMENTARY," +
+            "Export/Back/*=SUPPLEMENTARY,Export/Links/**/*=ARTWORK,Export/Styles/*.css=STYLES";
+
+    private String[] entryNames;
+    private String[] zipDirNames;
+    private String[] filenames;
+    private ZipEntryRoutingRules routingRules;
+    private ZipEntryRoutingRules publisherRoutingRules;
+    private ZipEntryRoutingTable routingTable;
+    private ZipEntryRoutingTable publisherRoutingTable;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File directory = Files.createTempDirectory("bestpub-routing-benchmark").toFile();
+        try {
+            File zip = shape.generator().generate(directory, "9780000000001");
+            List<String> names = new ArrayList<String>();
+            try (ZipFile zipFile = new ZipFile(zip)) {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (!entry.isDirectory()) {
+                        names.add(entry.getName());
+                    }
+                }
+            }
+            entryNames = names.toArray(new String[names.size()]);
+        } finally {
+            FileUtils.deleteQuietly(directory);
+        }
+
+        zipDirNames = new String[entryNames.length];
+        filenames = new String[entryNames.length];
+        for (int i = 0; i < entryNames.length; i++) {
+            zipDirNames[i] = FilenameUtils.getPathNoEndSeparator(entryNames[i]);
+            filenames[i] = FilenameUtils.getName(entryNames[i]);
+        }
+
+        routingRules = new ZipEntryRoutingRules();
+        routingTable = newRoutingTable(routingRules);
+        publisherRoutingRules = new ZipEntryRoutingRules();
+        publisherRoutingRules.setRules(PUBLISHER_RULES);
+        publisherRoutingTable = newRoutingTable(publisherRoutingRules);
+    }
+
+    /**
+     * Route all the entries of the ZIP, same as processZipFileEntry does
+     */
+    @Benchmark
+    public void routeEntries(Blackhole blackhole) {
+        for (String entryName : entryNames) {
+            String filename = FilenameUtils.getName(entryName);
+            String zipDirName = FilenameUtils.getPathNoEndSeparator(entryName);
+            blackhole.consume(routingTable.getTargetFolder(zipDirName, filename));
+        }
+    }
+
+    /**
+     * Route all the entries of the ZIP with the default rules plus the rules for other publisher layouts
+     */
+    @Benchmark
+    public void routeEntriesWithPublisherRules(Blackhole blackhole) {
+        for (String entryName : entryNames) {
+            String filename = FilenameUtils.getName(entryName);
+            String zipDirName = FilenameUtils.getPathNoEndSeparator(entryName);
+            blackhole.consume(publisherRoutingTable.getTargetFolder(zipDirName, filename));
+        }
+    }
+
+    /**
+     * Route all the entries of the ZIP with the default rules, the entry names are already split
+     */
+    @Benchmark
+    public void route(Blackhole blackhole) {
+        for (int i = 0; i < zipDirNames.length; i++) {
+            blackhole.consume(routingRules.route(zipDirNames[i], filenames[i]));
+        }
+    }
+
+    /**
+     * Route all the entries of the ZIP with the default rules plus the rules for other publisher layouts,
+     * the entry names are already split
+     */
+    @Benchmark
+    public void routeWithPublisherRules(Blackhole blackhole) {
+        for (int i = 0; i < zipDirNames.length; i++) {
+            blackhole.consume(publisherRoutingRules.route(zipDirNames[i], filenames[i]));
+        }
+    }
+
+    private static ZipEntryRoutingTable newRoutingTable(ZipEntryRoutingRules routingRules) {
+        return new ZipEntryRoutingTable(routingRules, newNodeRef(), newNodeRef(), newNodeRef(), newNodeRef(),
+                newNodeRef());
+    }
+
+    private static NodeRef newNodeRef() {
+        return new NodeRef("workspace://SpacesStore/" + UUID.randomUUID());
+    }
+}
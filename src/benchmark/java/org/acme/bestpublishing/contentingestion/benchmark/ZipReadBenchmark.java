@@ -0,0 +1,184 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.benchmark;
+
+import org.acme.bestpublishing.contentingestion.zip.ContentZipArchive;
+import org.acme.bestpublishing.contentingestion.zip.ContentZipFile;
+import org.acme.bestpublishing.contentingestion.zip.MappedZipArchive;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Benchmarks reading all the entries of a book ZIP the way processZipFile does, a
+ * {@link BufferedInputStream} over each entry stream, with the content store write stubbed by a read loop.
+ * Compares the original {@link ZipFile} loop with the JDK and MAPPED readers of the ingestion service,
+ * both reading the whole ZIP on one thread and several threads inflating entries of the same ZIP,
+ * as the PARALLEL entry ingestion mode does.
+ *
+ * @version 1.0
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZipReadBenchmark {
+
+    public enum Reader {
+        /**
+         * java.util.zip.ZipFile, as processZipFile originally read the ZIP
+         */
+        ZIP_FILE,
+        /**
+         * The JDK reader of the ingestion service
+         */
+        JDK,
+        /**
+         * The memory mapped reader of the ingestion service
+         */
+        MAPPED
+    }
+
+    @Param({"FEW_LARGE_CHAPTERS", "MANY_SMALL_IMAGES", "DEEP_DIRECTORIES"})
+    public BookZipGenerator.Shape shape;
+
+    @Param({"ZIP_FILE", "JDK", "MAPPED"})
+    public Reader reader;
+
+    private File directory;
+    private File zip;
+
+    /**
+     * Opened once, and shared by the threads of the concurrent benchmark
+     */
+    private ContentZipArchive sharedArchive;
+    private List<ZipEntry> sharedEntries;
+    private final AtomicInteger nextEntry = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("bestpub-zip-read-benchmark").toFile();
+        zip = shape.generator().generate(directory, "9780000000001");
+
+        sharedArchive = openArchive();
+        sharedEntries = new ArrayList<ZipEntry>();
+        for (ZipEntry entry : Collections.list(sharedArchive.entries())) {
+            if (!entry.isDirectory()) {
+                sharedEntries.add(entry);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sharedArchive.close();
+        FileUtils.deleteQuietly(directory);
+    }
+
+    /**
+     * Open the ZIP and read every entry, on one thread
+     *
+     * @return number of bytes read
+     */
+    @Benchmark
+    public long readAllEntries() throws IOException {
+        long bytes = 0;
+        if (reader == Reader.ZIP_FILE) {
+            try (ZipFile zipFile = new ZipFile(zip)) {
+                Enumeration<? extends ZipEntry> entries = zipFile.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (!entry.isDirectory()) {
+                        bytes += drain(new BufferedInputStream(zipFile.getInputStream(entry)));
+                    }
+                }
+            }
+        } else {
+            try (ContentZipArchive archive = openArchive()) {
+                Enumeration<? extends ZipEntry> entries = archive.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    if (!entry.isDirectory()) {
+                        bytes += drain(new BufferedInputStream(archive.getInputStream(entry)));
+                    }
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Four threads reading different entries of the same open ZIP, the ZIP_FILE and JDK readers
+     * share one native ZipFile, the MAPPED reader gives every entry stream its own inflater
+     *
+     * @return number of bytes read
+     */
+    @Benchmark
+    @Threads(4)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long readEntriesConcurrently() throws IOException {
+        int index = (nextEntry.getAndIncrement() & Integer.MAX_VALUE) % sharedEntries.size();
+        return drain(new BufferedInputStream(sharedArchive.getInputStream(sharedEntries.get(index))));
+    }
+
+    private ContentZipArchive openArchive() throws IOException {
+        return reader == Reader.MAPPED ? new MappedZipArchive(zip) : new ContentZipFile(zip);
+    }
+
+    private static long drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[8192];
+        long bytes = 0;
+        try {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                bytes += read;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+}
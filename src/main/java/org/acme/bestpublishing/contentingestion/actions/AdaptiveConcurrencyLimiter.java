@@ -0,0 +1,245 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.actions;
+
+import org.acme.bestpublishing.contentingestion.metrics.IngestionMetrics;
+import org.acme.bestpublishing.contentingestion.metrics.LatencyHistogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.Locale;
+
+/**
+ * Decides how many content ZIPs can be ingested at the same time, so the ingestion does not saturate the
+ * repository DB connection pool and slow down the interactive users of the same repository.
+ *
+ * Uses AIMD (additive increase, multiplicative decrease), once per adjust interval:
+ *
+ *  - more than maxErrorRate of the ZIPs failed because of a repository error, or the average commit or
+ *    createFile latency is more than latencyTolerance times its healthy baseline: the limit is multiplied
+ *    by backoffRatio
+ *  - otherwise, if ZIPs are waiting for a worker: the limit is increased by one
+ *
+ * Only signals of repository health are used. The commit latency is the time to run and commit one transaction
+ * writing ZIP entries, which does not grow with the size of the book like the time to import a whole ZIP does.
+ * A ZIP that is rejected, or whose ingestion is interrupted, does not count as failed.
+ *
+ * The healthy baseline of a latency is the lowest average seen, slowly moving towards the current average,
+ * so a permanent change, such as bigger ZIPs, is eventually accepted as the new normal.
+ *
+ * @version 1.0
+ */
+public class AdaptiveConcurrencyLimiter {
+    private static final Logger LOG = LoggerFactory.getLogger(AdaptiveConcurrencyLimiter.class);
+
+    /**
+     * Number of limit changes, with reasons, that are remembered
+     */
+    private static final int MAX_CHANGES = 20;
+
+    /**
+     * How fast a baseline moves towards a higher average latency, per adjust interval
+     */
+    private static final double BASELINE_DRIFT = 0.01;
+
+    /**
+     * Average of one latency histogram over the adjust interval, compared to its healthy baseline
+     */
+    private static class LatencySignal {
+        private final String name;
+        private final LatencyHistogram histogram;
+        private long lastCount;
+        private long lastTotalNanos;
+        private double baselineNanos = 0.0;
+        private double averageNanos = 0.0;
+
+        private LatencySignal(String name, LatencyHistogram histogram) {
+            this.name = name;
+            this.histogram = histogram;
+            this.lastCount = histogram.getCount();
+            this.lastTotalNanos = histogram.getTotalNanos();
+        }
+
+        /**
+         * @return false if there were no latencies recorded in the interval
+         */
+        private boolean sample() {
+            long count = histogram.getCount();
+            long totalNanos = histogram.getTotalNanos();
+            long intervalCount = count - lastCount;
+            long intervalNanos = totalNanos - lastTotalNanos;
+            lastCount = count;
+            lastTotalNanos = totalNanos;
+            if (intervalCount <= 0 || intervalNanos < 0) {
+                // Nothing recorded, or the metrics have been reset
+                return false;
+            }
+
+            averageNanos = (double) intervalNanos / intervalCount;
+            if (baselineNanos == 0.0 || averageNanos < baselineNanos) {
+                baselineNanos = averageNanos;
+            }
+            return true;
+        }
+
+        private void driftBaseline() {
+            baselineNanos += (averageNanos - baselineNanos) * BASELINE_DRIFT;
+        }
+
+        private boolean isCongested(double latencyTolerance) {
+            return averageNanos > baselineNanos * latencyTolerance;
+        }
+
+        private String describe() {
+            return String.format(Locale.ROOT, "%s average %.1f ms, baseline %.1f ms",
+                    name, averageNanos / 1000000.0, baselineNanos / 1000000.0);
+        }
+    }
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long adjustIntervalMillis;
+    private final double latencyTolerance;
+    private final double backoffRatio;
+    private final double maxErrorRate;
+
+    private final LatencySignal commitLatency;
+    private final LatencySignal createFileLatency;
+
+    /**
+     * Kept as a double so repeated backoffs do not get stuck on rounding
+     */
+    private double limit;
+    private long lastAdjustMillis = System.currentTimeMillis();
+    private int zipFilesDone = 0;
+    private int zipFilesFailed = 0;
+    private final Deque<String> changes = new ArrayDeque<String>();
+
+    /**
+     * @param metrics              the latencies to watch
+     * @param initialLimit         the limit to start with
+     * @param minLimit             the limit never goes below this
+     * @param maxLimit             the limit never goes above this
+     * @param adjustIntervalMillis how often (ms) the limit is adjusted
+     * @param latencyTolerance     back off when an average latency is more than this times its baseline
+     * @param backoffRatio         multiply the limit with this when backing off
+     * @param maxErrorRate         back off when more than this fraction of the ZIPs failed with repository errors
+     */
+    public AdaptiveConcurrencyLimiter(IngestionMetrics metrics, int initialLimit, int minLimit, int maxLimit,
+                                      long adjustIntervalMillis, double latencyTolerance, double backoffRatio,
+                                      double maxErrorRate) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.adjustIntervalMillis = adjustIntervalMillis;
+        this.latencyTolerance = latencyTolerance;
+        this.backoffRatio = backoffRatio;
+        this.maxErrorRate = maxErrorRate;
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, initialLimit));
+        this.commitLatency = new LatencySignal("commit", metrics.getCommitLatency());
+        this.createFileLatency = new LatencySignal("createFile", metrics.getCreateFileLatency());
+    }
+
+    /**
+     * @return the number of content ZIPs that can currently be ingested at the same time
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return the latest limit changes with their reasons, newest first
+     */
+    public synchronized String[] getChanges() {
+        return changes.toArray(new String[0]);
+    }
+
+    /**
+     * Record that a worker is done with a content ZIP
+     *
+     * @param failed true if the ZIP could not be ingested because of a repository error
+     */
+    public synchronized void zipFileDone(boolean failed) {
+        zipFilesDone++;
+        if (failed) {
+            zipFilesFailed++;
+        }
+    }
+
+    /**
+     * Adjust the limit if the adjust interval has passed
+     *
+     * @param zipFilesWaiting true if there are content ZIPs waiting for a worker
+     * @return the limit, changed or not
+     */
+    public synchronized int adjust(boolean zipFilesWaiting) {
+        long now = System.currentTimeMillis();
+        if (now - lastAdjustMillis < adjustIntervalMillis) {
+            return (int) limit;
+        }
+        lastAdjustMillis = now;
+
+        boolean commitSampled = commitLatency.sample();
+        boolean createFileSampled = createFileLatency.sample();
+        int done = zipFilesDone;
+        int failed = zipFilesFailed;
+        zipFilesDone = 0;
+        zipFilesFailed = 0;
+
+        String reason = null;
+        double newLimit = limit;
+        if (done > 0 && (double) failed / done > maxErrorRate) {
+            newLimit = limit * backoffRatio;
+            reason = String.format(Locale.ROOT, "%d of %d content ZIPs failed with repository errors", failed, done);
+        } else if (commitSampled && commitLatency.isCongested(latencyTolerance)) {
+            newLimit = limit * backoffRatio;
+            reason = commitLatency.describe();
+        } else if (createFileSampled && createFileLatency.isCongested(latencyTolerance)) {
+            newLimit = limit * backoffRatio;
+            reason = createFileLatency.describe();
+        } else if (zipFilesWaiting && (commitSampled || createFileSampled)) {
+            newLimit = limit + 1;
+            reason = "repository healthy and content ZIPs waiting" +
+                    (createFileSampled ? ", " + createFileLatency.describe() : "");
+        }
+
+        if (commitSampled) {
+            commitLatency.driftBaseline();
+        }
+        if (createFileSampled) {
+            createFileLatency.driftBaseline();
+        }
+
+        newLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        if ((int) newLimit != (int) limit) {
+            String change = String.format(Locale.ROOT, "%s %d -> %d: %s",
+                    new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.ROOT).format(new Date(now)),
+                    (int) limit, (int) newLimit, reason);
+            LOG.info("Content ingestion concurrency limit {}", change);
+            changes.addFirst(change);
+            while (changes.size() > MAX_CHANGES) {
+                changes.removeLast();
+            }
+        }
+        limit = newLimit;
+
+        return (int) limit;
+    }
+}
@@ -17,16 +17,54 @@ limitations under the License.
 package org.acme.bestpublishing.contentingestion.actions;
 
 import org.acme.bestpublishing.actions.AbstractIngestionExecuter;
+import org.acme.bestpublishing.contentingestion.discovery.ScanManifest;
+import org.acme.bestpublishing.contentingestion.metrics.IngestionMetrics;
+import org.acme.bestpublishing.contentingestion.services.ContentIngestionService;
+import org.acme.bestpublishing.contentingestion.services.ContentZipValidator;
+import org.acme.bestpublishing.contentingestion.services.IsbnLeaseService;
+import org.acme.bestpublishing.contentingestion.services.StreamedIngestionRegistry;
+import org.acme.bestpublishing.contentingestion.discovery.WriteCompletionDetector;
+import org.acme.bestpublishing.exceptions.IngestionException;
 import org.acme.bestpublishing.model.BestPubContentModel;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.service.cmr.repository.ContentIOException;
 import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.StoreRef;
+import org.alfresco.util.TraceableThreadFactory;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.springframework.dao.DataAccessException;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedOperation;
+import org.springframework.jmx.export.annotation.ManagedOperationParameter;
+import org.springframework.jmx.export.annotation.ManagedOperationParameters;
 import org.springframework.jmx.export.annotation.ManagedResource;
+import org.springframework.transaction.TransactionException;
 
 import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * The Content Ingestion component is called from the scheduled job.
@@ -41,6 +79,25 @@ import java.io.IOException;
  *  Creating ISBN folder for 9780486282146
  *  Processed [1] content ZIP files
  *
+ * ZIP files for different ISBNs are ingested in parallel by a bounded pool of worker threads.
+ * The scheduled job keeps running, and looking for new ZIPs, until all the ZIPs it has handed
+ * to the workers are done, so the cluster job lock is held for the whole ingestion run.
+ * When ISBNs are leased by the {@link IsbnLeaseService}, the job can instead run without the cluster job lock,
+ * and all cluster nodes ingest different ZIPs from the shared directory at the same time.
+ *
+ * New ZIPs are discovered either by listing the directory on every run (POLL mode), or by being told
+ * about them by the {@link org.acme.bestpublishing.contentingestion.discovery.DropFolderWatcher} (WATCH mode),
+ * in which case the directory is only listed now and then, to reconcile any lost events.
+ * ZIPs that were skipped or failed, and have not changed since, are skipped cheaply by checking
+ * the {@link ScanManifest} first. ZIPs are only handed to the workers when the {@link WriteCompletionDetector}
+ * says they have been completely written, so uploads that are still running are left alone.
+ *
+ * ZIPs waiting for a worker are taken highest priority first, the priority comes from a {ISBN}.priority
+ * sidecar file or is set over JMX. Waiting ZIPs age, so backlist ZIPs are not starved by frontlist ones.
+ *
+ * The number of workers is adjusted by the {@link AdaptiveConcurrencyLimiter}, more workers while the
+ * repository commits quickly, fewer when commit latency or the failure rate goes up.
+ *
  * @author martin.bergljung@marversolutions.org
  * @version 1.0
  */
@@ -51,10 +108,621 @@ public class ContentIngestionExecuter extends AbstractIngestionExecuter {
     private static final Logger LOG = LoggerFactory.getLogger(ContentIngestionExecuter.class);
 
     /**
-     * Executer implementation just calls super class
+     * How new content ZIPs are discovered
+     */
+    public enum DiscoveryMode {
+        /**
+         * List the directory on every run
+         */
+        POLL,
+        /**
+         * Get told about new ZIPs by a file system watcher, and list the directory only to reconcile
+         */
+        WATCH
+    }
+
+    /**
+     * Sidecar file next to a content ZIP, {ISBN}.priority, with the priority of the ZIP as an integer
+     */
+    public static final String PRIORITY_FILE_EXTENSION = ".priority";
+
+    /**
+     * Priorities are kept within these bounds
+     */
+    public static final int MIN_PRIORITY = -100;
+    public static final int MAX_PRIORITY = 100;
+
+    /**
+     * Number of content ZIPs that can be ingested at the same time
+     */
+    private int workerPoolSize = 4;
+
+    /**
+     * How often (ms) the directory is checked for new ZIPs while workers are busy
+     */
+    private long rescanIntervalMillis = 5000;
+
+    /**
+     * The worker threads doing the actual ZIP ingestion
+     */
+    private ThreadPoolExecutor workerPool;
+
+    /**
+     * ISBNs that are currently queued for, or being, ingested. Guards against ingesting the same ISBN twice at once.
+     */
+    private final Set<String> isbnsInProgress = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Guards against overlapping runs of the executer, in case it is called from somewhere else than the job
+     */
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    /**
+     * How new content ZIPs are discovered
+     */
+    private DiscoveryMode discoveryMode = DiscoveryMode.POLL;
+
+    /**
+     * In WATCH mode, list the whole directory this often (ms) in case watch events have been lost
+     */
+    private long reconciliationIntervalMillis = 300000;
+
+    /**
+     * In WATCH mode, ZIPs that have been created or modified since they were last looked at
+     */
+    private final Set<File> changedZipFiles = ConcurrentHashMap.newKeySet();
+
+    /**
+     * In WATCH mode, true while the drop folder watcher is running
+     */
+    private volatile boolean dropFolderWatched = false;
+
+    /**
+     * In WATCH mode, set when the next run needs to list the whole directory
+     */
+    private volatile boolean reconciliationRequested = true;
+    private volatile long lastReconciliationMillis = 0;
+
+    /**
+     * Where the scan manifest is stored, blank to not keep a manifest
+     */
+    private String scanManifestPath;
+
+    /**
+     * How long (ms) a failed ZIP is left alone before it is tried again, doubled each time it fails again
+     * up to the max, 0 to try failed ZIPs again on every run
+     */
+    private long failedZipRetryDelayMillis = 30000;
+    private long failedZipMaxRetryDelayMillis = 3600000;
+
+    /**
+     * ZIPs left in the directory after they have been looked at, null if not used
+     */
+    private ScanManifest scanManifest;
+
+    /**
+     * How to decide that a ZIP has been completely written: STABLE, MARKER, or NONE
+     */
+    private String writeCompletionStrategy = WriteCompletionDetector.Strategy.STABLE.toString();
+
+    /**
+     * In STABLE mode, how long (ms) a ZIP must stay unchanged before it is ingested
+     */
+    private long writeCompletionQuietPeriodMillis = 10000;
+
+    private WriteCompletionDetector writeCompletionDetector;
+
+    /**
+     * The ingestion service as a Content Ingestion Service, for what the generic Ingestion Service does not cover
+     */
+    private ContentIngestionService contentIngestionService;
+
+    /**
+     * How long (ms) a waiting ZIP has to wait to be worth one priority level more
+     */
+    private long priorityAgingStepMillis = 600000;
+
+    /**
+     * ISBN -> priority, set over JMX, takes precedence over the priority sidecar file
+     */
+    private final Map<String, Integer> isbnPriorities = new ConcurrentHashMap<String, Integer>();
+
+    /**
+     * Throughput and latency, shared with the Content Ingestion Service
+     */
+    private IngestionMetrics ingestionMetrics = new IngestionMetrics();
+
+    /**
+     * Adjust the number of workers to how the repository copes, starting from workerPoolSize
+     */
+    private boolean adaptiveConcurrencyEnabled = true;
+
+    /**
+     * Bounds of the number of workers when it is adjusted
+     */
+    private int minWorkers = 1;
+    private int maxWorkers = 16;
+
+    /**
+     * How often (ms) the number of workers is adjusted
+     */
+    private long concurrencyAdjustIntervalMillis = 10000;
+
+    /**
+     * Fewer workers when the average commit latency is more than this times its healthy baseline
+     */
+    private double concurrencyLatencyTolerance = 2.0;
+
+    /**
+     * Multiply the number of workers with this when backing off
+     */
+    private double concurrencyBackoffRatio = 0.75;
+
+    /**
+     * Fewer workers when more than this fraction of the content ZIPs fail
+     */
+    private double concurrencyMaxErrorRate = 0.2;
+
+    /**
+     * Decides the number of workers, null if adaptive concurrency is disabled
+     */
+    private AdaptiveConcurrencyLimiter concurrencyLimiter;
+
+    /**
+     * Leases ISBNs, so other cluster nodes can ingest other ZIPs from the same directory at the same time
+     */
+    private IsbnLeaseService isbnLeaseService;
+
+    /**
+     * Rejects broken content ZIPs before anything is written to the repository
+     */
+    private ContentZipValidator contentZipValidator;
+
+    /**
+     * Spring DI
+     */
+
+    public void setIngestionMetrics(IngestionMetrics ingestionMetrics) {
+        this.ingestionMetrics = ingestionMetrics;
+    }
+    public void setIsbnLeaseService(IsbnLeaseService isbnLeaseService) {
+        this.isbnLeaseService = isbnLeaseService;
+    }
+    public void setContentZipValidator(ContentZipValidator contentZipValidator) {
+        this.contentZipValidator = contentZipValidator;
+    }
+    public void setContentIngestionService(ContentIngestionService contentIngestionService) {
+        this.contentIngestionService = contentIngestionService;
+    }
+    public void setWorkerPoolSize(int workerPoolSize) {
+        this.workerPoolSize = workerPoolSize;
+    }
+    public void setPriorityAgingStepMillis(long priorityAgingStepMillis) {
+        this.priorityAgingStepMillis = priorityAgingStepMillis;
+    }
+    public void setAdaptiveConcurrencyEnabled(boolean adaptiveConcurrencyEnabled) {
+        this.adaptiveConcurrencyEnabled = adaptiveConcurrencyEnabled;
+    }
+    public void setMinWorkers(int minWorkers) {
+        this.minWorkers = minWorkers;
+    }
+    public void setMaxWorkers(int maxWorkers) {
+        this.maxWorkers = maxWorkers;
+    }
+    public void setConcurrencyAdjustIntervalMillis(long concurrencyAdjustIntervalMillis) {
+        this.concurrencyAdjustIntervalMillis = concurrencyAdjustIntervalMillis;
+    }
+    public void setConcurrencyLatencyTolerance(double concurrencyLatencyTolerance) {
+        this.concurrencyLatencyTolerance = concurrencyLatencyTolerance;
+    }
+    public void setConcurrencyBackoffRatio(double concurrencyBackoffRatio) {
+        this.concurrencyBackoffRatio = concurrencyBackoffRatio;
+    }
+    public void setConcurrencyMaxErrorRate(double concurrencyMaxErrorRate) {
+        this.concurrencyMaxErrorRate = concurrencyMaxErrorRate;
+    }
+    public void setRescanIntervalMillis(long rescanIntervalMillis) {
+        this.rescanIntervalMillis = rescanIntervalMillis;
+    }
+    public void setDiscoveryMode(String discoveryMode) {
+        this.discoveryMode = DiscoveryMode.valueOf(discoveryMode.trim().toUpperCase());
+    }
+    public void setReconciliationIntervalMillis(long reconciliationIntervalMillis) {
+        this.reconciliationIntervalMillis = reconciliationIntervalMillis;
+    }
+    public void setScanManifestPath(String scanManifestPath) {
+        this.scanManifestPath = scanManifestPath;
+    }
+    public void setFailedZipRetryDelayMillis(long failedZipRetryDelayMillis) {
+        this.failedZipRetryDelayMillis = failedZipRetryDelayMillis;
+    }
+    public void setFailedZipMaxRetryDelayMillis(long failedZipMaxRetryDelayMillis) {
+        this.failedZipMaxRetryDelayMillis = failedZipMaxRetryDelayMillis;
+    }
+    public void setWriteCompletionStrategy(String writeCompletionStrategy) {
+        this.writeCompletionStrategy = writeCompletionStrategy;
+    }
+    public void setWriteCompletionQuietPeriodMillis(long writeCompletionQuietPeriodMillis) {
+        this.writeCompletionQuietPeriodMillis = writeCompletionQuietPeriodMillis;
+    }
+
+    /**
+     * Spring init method, sets up the worker thread pool, the write completion detector, and loads the scan manifest
+     */
+    public void init() {
+        writeCompletionDetector = new WriteCompletionDetector(
+                WriteCompletionDetector.Strategy.valueOf(writeCompletionStrategy.trim().toUpperCase()),
+                writeCompletionQuietPeriodMillis);
+
+        if (StringUtils.isNotBlank(scanManifestPath)) {
+            scanManifest = new ScanManifest(Paths.get(scanManifestPath.trim()), failedZipRetryDelayMillis,
+                    failedZipMaxRetryDelayMillis);
+            scanManifest.load();
+        }
+
+        TraceableThreadFactory threadFactory = new TraceableThreadFactory();
+        threadFactory.setNamePrefix("BestPubContentIngestion");
+        threadFactory.setThreadDaemon(true);
+
+        int poolSize = Math.max(1, workerPoolSize);
+        if (adaptiveConcurrencyEnabled) {
+            concurrencyLimiter = new AdaptiveConcurrencyLimiter(ingestionMetrics, poolSize, minWorkers, maxWorkers,
+                    concurrencyAdjustIntervalMillis, concurrencyLatencyTolerance, concurrencyBackoffRatio,
+                    concurrencyMaxErrorRate);
+            poolSize = concurrencyLimiter.getLimit();
+        }
+        workerPool = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), threadFactory);
+    }
+
+    /**
+     * Spring destroy method, stops the worker threads, any ZIPs not yet ingested are left in the directory
+     */
+    public void shutdown() {
+        if (workerPool != null) {
+            workerPool.shutdownNow();
+        }
+    }
+
+    /**
+     * Management Bean attributes
+     */
+
+    @ManagedAttribute(description = "Number of content ZIPs that can be ingested at the same time, at start")
+    public int getWorkerPoolSize() {
+        return workerPoolSize;
+    }
+
+    @ManagedAttribute(description = "Number of content ZIPs that can currently be ingested at the same time")
+    public int getConcurrencyLimit() {
+        return workerPool == null ? 0 : workerPool.getCorePoolSize();
+    }
+
+    @ManagedAttribute(description = "True if the number of workers is adjusted to how the repository copes")
+    public boolean isAdaptiveConcurrencyEnabled() {
+        return concurrencyLimiter != null;
+    }
+
+    @ManagedAttribute(description = "Latest concurrency limit changes and why they were made, newest first")
+    public String[] getConcurrencyLimitChanges() {
+        return concurrencyLimiter == null ? new String[0] : concurrencyLimiter.getChanges();
+    }
+
+    @ManagedAttribute(description = "Number of content ZIPs queued for, or being, ingested")
+    public int getZipFilesInProgress() {
+        return isbnsInProgress.size();
+    }
+
+    @ManagedAttribute(description = "Number of skipped or failed content ZIPs in the scan manifest")
+    public int getScanManifestSize() {
+        return scanManifest == null ? 0 : scanManifest.size();
+    }
+
+    @ManagedAttribute(description = "How it is decided that a content ZIP has been completely written")
+    public String getWriteCompletionStrategy() {
+        return writeCompletionDetector.getStrategy().toString();
+    }
+
+    @ManagedAttribute(description = "How new content ZIPs are discovered, POLL or WATCH")
+    public String getDiscoveryMode() {
+        return discoveryMode.toString();
+    }
+
+    @ManagedAttribute(description = "True if the content directory is watched for new ZIPs")
+    public boolean isDropFolderWatched() {
+        return dropFolderWatched;
+    }
+
+    @ManagedAttribute(description = "Number of content ZIPs waiting for a free worker")
+    public int getQueueDepth() {
+        return workerPool == null ? 0 : workerPool.getQueue().size();
+    }
+
+    @ManagedAttribute(description = "Number of content ZIPs ingested since start or reset")
+    public long getZipFilesIngested() {
+        return ingestionMetrics.getZipFiles().getCount();
+    }
+
+    @ManagedAttribute(description = "Content ZIPs ingested per minute, one minute moving average")
+    public double getZipFilesPerMinute() {
+        return ingestionMetrics.getZipFiles().getRatePerMinute();
+    }
+
+    @ManagedAttribute(description = "ZIP entries stored per second, one minute moving average")
+    public double getEntriesPerSecond() {
+        return ingestionMetrics.getEntries().getRatePerSecond();
+    }
+
+    @ManagedAttribute(description = "Uncompressed ZIP entry bytes stored per second, one minute moving average")
+    public double getBytesPerSecond() {
+        return ingestionMetrics.getBytes().getRatePerSecond();
+    }
+
+    @ManagedAttribute(description = "Median time (ms) to import a content ZIP")
+    public double getImportZipFileContentP50Millis() {
+        return ingestionMetrics.getImportZipFileContentLatency().getPercentileMillis(50);
+    }
+
+    @ManagedAttribute(description = "95th percentile time (ms) to import a content ZIP")
+    public double getImportZipFileContentP95Millis() {
+        return ingestionMetrics.getImportZipFileContentLatency().getPercentileMillis(95);
+    }
+
+    @ManagedAttribute(description = "99th percentile time (ms) to import a content ZIP")
+    public double getImportZipFileContentP99Millis() {
+        return ingestionMetrics.getImportZipFileContentLatency().getPercentileMillis(99);
+    }
+
+    @ManagedAttribute(description = "Median time (ms) to create an ISBN folder structure")
+    public double getCreateIsbnFolderP50Millis() {
+        return ingestionMetrics.getCreateIsbnFolderLatency().getPercentileMillis(50);
+    }
+
+    @ManagedAttribute(description = "95th percentile time (ms) to create an ISBN folder structure")
+    public double getCreateIsbnFolderP95Millis() {
+        return ingestionMetrics.getCreateIsbnFolderLatency().getPercentileMillis(95);
+    }
+
+    @ManagedAttribute(description = "99th percentile time (ms) to create an ISBN folder structure")
+    public double getCreateIsbnFolderP99Millis() {
+        return ingestionMetrics.getCreateIsbnFolderLatency().getPercentileMillis(99);
+    }
+
+    @ManagedAttribute(description = "Median time (ms) to create a file from a ZIP entry")
+    public double getCreateFileP50Millis() {
+        return ingestionMetrics.getCreateFileLatency().getPercentileMillis(50);
+    }
+
+    @ManagedAttribute(description = "95th percentile time (ms) to create a file from a ZIP entry")
+    public double getCreateFileP95Millis() {
+        return ingestionMetrics.getCreateFileLatency().getPercentileMillis(95);
+    }
+
+    @ManagedAttribute(description = "99th percentile time (ms) to create a file from a ZIP entry")
+    public double getCreateFileP99Millis() {
+        return ingestionMetrics.getCreateFileLatency().getPercentileMillis(99);
+    }
+
+    @ManagedAttribute(description = "Median time (ms) to run and commit a transaction writing ZIP entries")
+    public double getCommitP50Millis() {
+        return ingestionMetrics.getCommitLatency().getPercentileMillis(50);
+    }
+
+    @ManagedAttribute(description = "95th percentile time (ms) to run and commit a transaction writing ZIP entries")
+    public double getCommitP95Millis() {
+        return ingestionMetrics.getCommitLatency().getPercentileMillis(95);
+    }
+
+    @ManagedAttribute(description = "99th percentile time (ms) to run and commit a transaction writing ZIP entries")
+    public double getCommitP99Millis() {
+        return ingestionMetrics.getCommitLatency().getPercentileMillis(99);
+    }
+
+    @ManagedAttribute(description = "Waiting time (ms) that is worth one priority level")
+    public long getPriorityAgingStepMillis() {
+        return priorityAgingStepMillis;
+    }
+
+    @ManagedAttribute(description = "ISBN priorities set over JMX")
+    public String getIsbnPriorities() {
+        return new TreeMap<String, Integer>(isbnPriorities).toString();
+    }
+
+    @ManagedOperation(description = "Set the priority of an ISBN, higher is ingested first, also for a waiting ZIP")
+    @ManagedOperationParameters({
+            @ManagedOperationParameter(name = "isbn", description = "The ISBN, same as the content ZIP name"),
+            @ManagedOperationParameter(name = "priority", description = "The priority, default is 0")})
+    public void setIsbnPriority(String isbn, int priority) {
+        int boundedPriority = Math.max(MIN_PRIORITY, Math.min(MAX_PRIORITY, priority));
+        isbnPriorities.put(isbn, boundedPriority);
+
+        // Re-queue the ZIP if it is waiting, it keeps the time it has waited so far
+        if (workerPool != null) {
+            for (Runnable waiting : workerPool.getQueue().toArray(new Runnable[0])) {
+                PrioritizedIngestion ingestion = (PrioritizedIngestion) waiting;
+                if (ingestion.getIsbn().equals(isbn) && workerPool.getQueue().remove(ingestion)) {
+                    workerPool.getQueue().offer(ingestion.withPriority(boundedPriority, priorityAgingStepMillis));
+                }
+            }
+        }
+    }
+
+    @ManagedOperation(description = "Remove the priority set for an ISBN over JMX")
+    @ManagedOperationParameters({
+            @ManagedOperationParameter(name = "isbn", description = "The ISBN, same as the content ZIP name")})
+    public void clearIsbnPriority(String isbn) {
+        isbnPriorities.remove(isbn);
+    }
+
+    @ManagedOperation(description = "Reset the throughput and latency metrics")
+    public void resetMetrics() {
+        ingestionMetrics.reset();
+    }
+
+    /**
+     * Drop folder watcher callbacks (WATCH mode)
+     */
+
+    /**
+     * A content ZIP has been created or modified in the directory
+     *
+     * @param zipFile the new or modified ZIP
+     */
+    public void zipFileChanged(File zipFile) {
+        changedZipFiles.add(zipFile);
+        synchronized (isbnsInProgress) {
+            isbnsInProgress.notifyAll();
+        }
+    }
+
+    /**
+     * Watch events might have been lost, list the whole directory on the next run
+     */
+    public void requestReconciliation() {
+        reconciliationRequested = true;
+    }
+
+    /**
+     * @param dropFolderWatched true when the watcher starts, false when it stops
+     */
+    public void setDropFolderWatched(boolean dropFolderWatched) {
+        this.dropFolderWatched = dropFolderWatched;
+        if (!dropFolderWatched) {
+            reconciliationRequested = true;
+        }
+    }
+
+    /**
+     * @return true if ISBNs are leased, so the executer can run on all cluster nodes at the same time
+     */
+    public boolean isIsbnLeasesEnabled() {
+        return isbnLeaseService.isEnabled();
+    }
+
+    /**
+     * @return true if the executer is currently running, it will then pick up changed ZIPs itself
+     */
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    /**
+     * Ingest a content ZIP pushed through the upload web script, while it is being uploaded. Only ZIPs for ISBNs
+     * that have not been published before are accepted, and not while the ISBN is being ingested from the
+     * directory. A push for an ISBN whose ingestion was interrupted, such as an earlier push that failed, replaces
+     * what that ingestion left. When ISBNs are not leased across the cluster, it is only replaced if nothing has been
+     * written to it for longer than the lease time to live, as another node might still be ingesting it.
+     * Called in the web script request thread, as the user making the request.
+     *
+     * @param zipStream the uploaded content ZIP
+     * @param isbn      the ISBN the ZIP is for
+     * @param ingestion the status that is polled, set to COMPLETE or FAILED when done
+     * @return INGESTED, SKIPPED if the ISBN already exists or is being ingested, or FAILED
+     */
+    public IngestionOutcome ingestZipStream(InputStream zipStream, String isbn,
+                                            StreamedIngestionRegistry.StreamedIngestion ingestion) {
+        if (!isbnsInProgress.add(isbn)) {
+            ingestion.failed("ISBN " + isbn + " is already being ingested");
+            return IngestionOutcome.SKIPPED;
+        }
+
+        IsbnLeaseService.IsbnLease lease = null;
+        try {
+            lease = isbnLeaseService.acquire(isbn);
+            if (lease == null) {
+                ingestion.failed("ISBN " + isbn + " is being ingested by another node");
+                return IngestionOutcome.SKIPPED;
+            }
+
+            NodeRef alfrescoUploadFolderNodeRef = getAlfrescoUploadFolderNodeRef();
+            NodeRef isbnFolderNodeRef = alfrescoRepoUtilsService.getChildByName(alfrescoUploadFolderNodeRef, isbn);
+            if (isbnFolderNodeRef != null) {
+                if (BestPubContentModel.IngestionStatus.COMPLETE.toString().equals(
+                        serviceRegistry.getNodeService().getProperty(isbnFolderNodeRef,
+                                BestPubContentModel.BookFolderType.Prop.INGESTION_STATUS))) {
+                    ingestion.failed("ISBN " + isbn + " has already been published, " +
+                            "republish it through the content directory");
+                    return IngestionOutcome.SKIPPED;
+                }
+
+                // An earlier push, or ingestion from the directory, was interrupted, the pushed ZIP replaces it.
+                // Without a cluster wide lease another node might still be writing it, it then has to have been
+                // left alone for longer than a lease lives
+                long abandonedAfterMillis = lease.isClusterWide() ? 0 : isbnLeaseService.getLeaseTimeToLiveMillis();
+                if (!contentIngestionService.deleteInterruptedIngestion(isbnFolderNodeRef, isbn, abandonedAfterMillis)) {
+                    ingestion.failed("ISBN " + isbn + " might be being ingested by another node, it was written to " +
+                            "less than " + abandonedAfterMillis + " ms ago");
+                    return IngestionOutcome.SKIPPED;
+                }
+                getLog().info("Replaced the interrupted ingestion of ISBN {} with a streamed content zip", isbn);
+            }
+
+            getLog().debug("Ingesting streamed content zip for ISBN {} [ingestionId={}]", isbn, ingestion.getId());
+            contentIngestionService.importZipStream(zipStream, alfrescoUploadFolderNodeRef, isbn, ingestion, lease);
+            ingestionMetrics.getZipFiles().mark(1);
+            ingestion.completed();
+            return IngestionOutcome.INGESTED;
+        } catch (Exception e) {
+            getLog().error("Error processing streamed content zip for ISBN " + isbn, e);
+            ingestion.failed(e.getMessage());
+            return IngestionOutcome.FAILED;
+        } finally {
+            if (lease != null) {
+                lease.release();
+            }
+            isbnDone(isbn);
+        }
+    }
+
+    /**
+     * Get the status of the last content ZIP pushed for an ISBN as recorded on its ISBN folder, it might
+     * have been pushed to another node. Called in the web script request thread, as the user making the request.
+     *
+     * @param isbn the ISBN the ZIP is for
+     * @return the pushed ZIP status, or null if there is no ISBN folder, or it was not created by a push
+     */
+    public StreamedIngestionRegistry.StreamedIngestion getStreamedIngestion(String isbn) {
+        NodeRef isbnFolderNodeRef = alfrescoRepoUtilsService.getChildByName(getAlfrescoUploadFolderNodeRef(), isbn);
+        if (isbnFolderNodeRef == null) {
+            return null;
+        }
+        return contentIngestionService.getStreamedIngestion(isbnFolderNodeRef, isbn);
+    }
+
+    /**
+     * Scan the content directory for ZIPs and hand them over to the worker pool. Then keep checking
+     * for new ZIPs until all workers are done.
      */
     public void execute() {
-       super.execute("Content");
+        if (!running.compareAndSet(false, true)) {
+            LOG.debug("Content ingestion is already running, skipping");
+            return;
+        }
+
+        try {
+            LOG.debug("Checking for Content ZIPs...");
+
+            NodeRef alfrescoUploadFolderNodeRef = getAlfrescoUploadFolderNodeRef();
+            File folder = new File(getFilesystemPathToCheck());
+            if (!folder.isDirectory()) {
+                throw new IngestionException("Content directory to check does not exist [" +
+                        getFilesystemPathToCheck() + "]");
+            }
+
+            int zipFileCount = 0;
+            do {
+                zipFileCount += queueZipFiles(folder, alfrescoUploadFolderNodeRef);
+                writeCompletionDetector.scanCompleted();
+                waitForWorkers();
+                adjustConcurrency();
+                flushScanManifest();
+            } while (!isbnsInProgress.isEmpty() && !Thread.currentThread().isInterrupted());
+
+            LOG.debug("Processed [{}] content ZIP files", zipFileCount);
+        } finally {
+            flushScanManifest();
+            running.set(false);
+        }
     }
 
     @Override
@@ -72,8 +740,35 @@ public class ContentIngestionExecuter extends AbstractIngestionExecuter {
      */
     @Override
     public boolean processZipFile(File zipFile, String extractedISBN, NodeRef alfrescoUploadFolderNodeRef) {
+        try {
+            return importZipFile(zipFile, extractedISBN, alfrescoUploadFolderNodeRef, null) ==
+                    IngestionOutcome.INGESTED;
+        } catch (Exception e) {
+            getLog().error("Error processing content zip file " + zipFile.getName(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Process one ZIP file and upload its content to Alfresco
+     *
+     * @param zipFile              the ZIP file that should be processed and uploaded
+     * @param extractedISBN the ISBN number that was extracted from ZIP file name
+     * @param alfrescoUploadFolderNodeRef the target folder for new ISBN content
+     * @param lease the lease on the ISBN, the import stops if it is lost, null if the ISBN is not leased
+     * @return what happened to the ZIP, an import that fails throws the error so the caller can tell what went wrong
+     */
+    private IngestionOutcome importZipFile(File zipFile, String extractedISBN, NodeRef alfrescoUploadFolderNodeRef,
+                                           IsbnLeaseService.IsbnLease lease) {
         getLog().debug("Processing content zip file [{}]", zipFile.getName());
 
+        // Reject a broken ZIP before the repository is touched, it stays in the directory until it is replaced
+        ContentZipValidator.Result validation = contentZipValidator.validate(zipFile);
+        if (!validation.isValid()) {
+            getLog().error("Rejected content zip file {} {}", zipFile.getName(), validation.getProblems());
+            return IngestionOutcome.REJECTED;
+        }
+
         // Check if ISBN already exists under /Company Home/Data Dictionary/BestPub/Incoming/Content
         NodeRef targetAlfrescoFolderNodeRef = null;
         NodeRef isbnFolderNodeRef = alfrescoRepoUtilsService.getChildByName(alfrescoUploadFolderNodeRef, extractedISBN);
@@ -95,24 +790,344 @@ public class ContentIngestionExecuter extends AbstractIngestionExecuter {
                     equals(BestPubContentModel.IngestionStatus.COMPLETE.toString())) {
                 getLog().debug("Found updated ISBN {} that has been published before...", extractedISBN);
 
-                // Re-publish content, TODO
+                // Re-publish content, only what has changed since it was last published
+                contentIngestionService.republishZipFileContent(zipFile, isbnFolderNodeRef, extractedISBN, lease);
+                return IngestionOutcome.INGESTED;
             } else {
                 getLog().debug("Found new ISBN {} that has had interrupted ingestion...", extractedISBN);
 
-                // We got a new ISBN that has had interrupted ingestion, TODO
+                // We got a new ISBN that has had interrupted ingestion, continue from where it stopped
+                contentIngestionService.resumeZipFileContent(zipFile, isbnFolderNodeRef, extractedISBN, lease);
+                return IngestionOutcome.INGESTED;
             }
+        }
 
-            return false;
+        contentIngestionService.importZipFileContent(zipFile, targetAlfrescoFolderNodeRef, extractedISBN,
+                validation.getFileEntryCount(), lease);
+        return IngestionOutcome.INGESTED;
+    }
+
+    /**
+     * Find content ZIPs in the directory and queue the ones whose ISBN is not already being ingested.
+     *
+     * @param folder                      the local directory to look for ZIPs in
+     * @param alfrescoUploadFolderNodeRef the target folder for new ISBN content
+     * @return the number of ZIP files that were handed over to the workers
+     */
+    private int queueZipFiles(File folder, final NodeRef alfrescoUploadFolderNodeRef) {
+        List<File> zipFiles = discoverZipFiles(folder);
+        if (zipFiles.isEmpty()) {
+            return 0;
+        }
+
+        LOG.debug("Found [{}] content files", zipFiles.size());
+
+        final String runAsUser = AuthenticationUtil.getRunAsUser();
+        long now = System.currentTimeMillis();
+        List<PrioritizedIngestion> ingestions = new ArrayList<PrioritizedIngestion>();
+        int queuedCount = 0;
+        int unchangedCount = 0;
+        int incompleteCount = 0;
+        for (final File zipFile : zipFiles) {
+            if (scanManifest != null && scanManifest.isUnchanged(zipFile)) {
+                unchangedCount++;
+                continue;
+            }
+
+            if (!writeCompletionDetector.isComplete(zipFile)) {
+                // Still being uploaded, make sure it is looked at again on the next run
+                incompleteCount++;
+                if (discoveryMode == DiscoveryMode.WATCH) {
+                    changedZipFiles.add(zipFile);
+                }
+                continue;
+            }
+
+            final String isbn = FilenameUtils.getBaseName(zipFile.getName());
+            if (!isbnsInProgress.add(isbn)) {
+                LOG.debug("ISBN {} is already being ingested, skipping {}", isbn, zipFile.getName());
+                continue;
+            }
+
+            ingestions.add(new PrioritizedIngestion(isbn, getPriority(zipFile, isbn), now, priorityAgingStepMillis,
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            ingestZipFile(zipFile, isbn, alfrescoUploadFolderNodeRef, runAsUser);
+                        }
+                    }));
+        }
+
+        // Idle workers take ZIPs straight away without going through the queue, so hand them out in priority order
+        Collections.sort(ingestions);
+        for (PrioritizedIngestion ingestion : ingestions) {
+            try {
+                workerPool.execute(ingestion);
+                queuedCount++;
+            } catch (RejectedExecutionException ree) {
+                isbnsInProgress.remove(ingestion.getIsbn());
+                LOG.warn("Content ingestion worker pool is shutting down, not processing ISBN {}", ingestion.getIsbn());
+            }
+        }
+
+        if (incompleteCount > 0) {
+            LOG.debug("Skipped [{}] content files that are still being written", incompleteCount);
+        }
+        if (unchangedCount > 0) {
+            LOG.debug("Skipped [{}] content files that have not changed since they were last looked at",
+                    unchangedCount);
+        }
+
+        return queuedCount;
+    }
+
+    /**
+     * Get the priority of a content ZIP, set over JMX, or in the {ISBN}.priority sidecar file, default 0
+     *
+     * @param zipFile the content ZIP
+     * @param isbn    the ISBN of the ZIP
+     * @return the priority, higher is ingested first
+     */
+    private int getPriority(File zipFile, String isbn) {
+        Integer priority = isbnPriorities.get(isbn);
+        if (priority != null) {
+            return priority;
+        }
+
+        File priorityFile = new File(zipFile.getParentFile(), isbn + PRIORITY_FILE_EXTENSION);
+        if (!priorityFile.isFile()) {
+            return 0;
+        }
+        try {
+            String priorityText = FileUtils.readFileToString(priorityFile, StandardCharsets.UTF_8).trim();
+            return Math.max(MIN_PRIORITY, Math.min(MAX_PRIORITY, Integer.parseInt(priorityText)));
+        } catch (IOException | NumberFormatException e) {
+            LOG.warn("Could not read the priority from {} [{}], using 0", priorityFile.getName(), e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Get the content ZIPs to look at in this run. In WATCH mode these are the ZIPs the watcher has told us about,
+     * unless the watcher is not running or it is time to reconcile, then the whole directory is listed.
+     *
+     * @param folder the local directory to look for ZIPs in
+     * @return the content ZIPs
+     */
+    private List<File> discoverZipFiles(File folder) {
+        List<File> zipFiles = new ArrayList<File>();
+        long now = System.currentTimeMillis();
+        if (discoveryMode == DiscoveryMode.WATCH && dropFolderWatched && !reconciliationRequested &&
+                now - lastReconciliationMillis < reconciliationIntervalMillis) {
+            Iterator<File> changedIterator = changedZipFiles.iterator();
+            while (changedIterator.hasNext()) {
+                File zipFile = changedIterator.next();
+                changedIterator.remove();
+                if (zipFile.isFile() && !zipFile.getName().startsWith(".")) {
+                    zipFiles.add(zipFile);
+                }
+            }
+
+            return zipFiles;
+        }
+
+        // Clear before listing, so a ZIP reported while listing is not lost
+        reconciliationRequested = false;
+        lastReconciliationMillis = now;
+        changedZipFiles.clear();
+
+        File[] listedFiles = folder.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                // Hidden files are uploads in progress, to be renamed when done
+                return file.isFile() && !file.getName().startsWith(".") &&
+                        StringUtils.endsWithIgnoreCase(file.getName(), ".zip");
+            }
+        });
+        if (listedFiles != null) {
+            for (File zipFile : listedFiles) {
+                zipFiles.add(zipFile);
+            }
+        }
+        if (scanManifest != null) {
+            scanManifest.retainOnly(zipFiles);
+        }
+        writeCompletionDetector.retainOnly(zipFiles);
+
+        return zipFiles;
+    }
+
+    /**
+     * Worker thread entry point, ingests one ZIP as the same user that the job runs as,
+     * and deletes the ZIP when it has been successfully processed.
+     * What happened to the ZIP is recorded in the scan manifest.
+     * The ISBN is leased while the ZIP is ingested, a ZIP whose ISBN is leased by another cluster node
+     * is left alone, and looked at again on a later run. If the lease is lost while the ZIP is ingested, the import
+     * stops before the next entry, chunk, or batch is written, and the ZIP is left to the node that took it over.
+     */
+    private void ingestZipFile(final File zipFile, final String isbn, final NodeRef alfrescoUploadFolderNodeRef,
+                               String runAsUser) {
+        final IsbnLeaseService.IsbnLease lease;
+        try {
+            lease = isbnLeaseService.acquire(isbn);
+        } catch (RuntimeException e) {
+            getLog().error("Could not lease ISBN " + isbn + ", skipping " + zipFile.getName(), e);
+            isbnDone(isbn);
+            return;
+        }
+        if (lease == null || !zipFile.isFile()) {
+            // Being ingested by another node, or already ingested and deleted by it
+            getLog().debug("ISBN {} is being, or has been, ingested by another node, skipping {}",
+                    isbn, zipFile.getName());
+            if (lease != null) {
+                lease.release();
+            }
+            isbnDone(isbn);
+            return;
         }
 
+        // Remember what the ZIP looked like before processing, so a change while processing is noticed
+        long size = zipFile.length();
+        long lastModified = zipFile.lastModified();
+        IngestionOutcome outcome = IngestionOutcome.FAILED;
+        boolean repositoryFailure = false;
         try {
-            ingestionService.importZipFileContent(zipFile, targetAlfrescoFolderNodeRef, extractedISBN);
-            return true;
+            getLog().debug("Processing zip file [{}]", zipFile.getName());
+
+            outcome = AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<IngestionOutcome>() {
+                public IngestionOutcome doWork() throws Exception {
+                    return importZipFile(zipFile, isbn, alfrescoUploadFolderNodeRef, lease);
+                }
+            }, runAsUser);
+            if (lease.isLost()) {
+                // Another node might have taken the ISBN over, it deletes the ZIP when it is done with it
+                getLog().error("The lease on ISBN {} was lost while ingesting {}, leaving it to the node that " +
+                        "took the ISBN over", isbn, zipFile.getName());
+                outcome = IngestionOutcome.FAILED;
+                return;
+            }
+
+            if (outcome == IngestionOutcome.INGESTED) {
+                ingestionMetrics.getZipFiles().mark(1);
+                if (zipFile.length() != size || zipFile.lastModified() != lastModified) {
+                    // A new upload replaced the ZIP while the old one was ingested, it is ingested on the next scan
+                    getLog().warn("Content zip file {} changed while it was being ingested, leaving it for the " +
+                            "next scan", zipFile.getName());
+                    return;
+                }
+                if (!zipFile.delete()) {
+                    getLog().warn("Could not delete processed content zip file {}", zipFile.getName());
+                }
+                writeCompletionDetector.completed(zipFile);
+
+                // A priority only applies to the ZIP it was set for
+                isbnPriorities.remove(isbn);
+                File priorityFile = new File(zipFile.getParentFile(), isbn + PRIORITY_FILE_EXTENSION);
+                if (priorityFile.exists() && !priorityFile.delete()) {
+                    getLog().warn("Could not delete priority file {}", priorityFile.getName());
+                }
+            }
         } catch (Exception e) {
             getLog().error("Error processing content zip file " + zipFile.getName(), e);
+            repositoryFailure = isRepositoryFailure(e);
+        } finally {
+            if (scanManifest != null) {
+                scanManifest.record(zipFile, size, lastModified, outcome);
+            }
+
+            if (concurrencyLimiter != null) {
+                concurrencyLimiter.zipFileDone(repositoryFailure);
+            }
+
+            lease.release();
+            isbnDone(isbn);
         }
+    }
 
+    /**
+     * Tell a failure of the repository, such as a database error or a transaction that could not be committed,
+     * from a problem with the ZIP or an interrupted ingestion, only the former says the repository is overloaded
+     *
+     * @param e what the ingestion failed with
+     * @return true if the repository failed somewhere in the cause chain
+     */
+    private static boolean isRepositoryFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof DataAccessException || cause instanceof TransactionException ||
+                    cause instanceof SQLException || cause instanceof ContentIOException) {
+                return true;
+            }
+        }
         return false;
     }
 
+    /**
+     * The worker is done with an ISBN, wake up the executer waiting for the workers
+     */
+    private void isbnDone(String isbn) {
+        isbnsInProgress.remove(isbn);
+        synchronized (isbnsInProgress) {
+            isbnsInProgress.notifyAll();
+        }
+    }
+
+    /**
+     * Let the concurrency limiter adjust the number of workers. When there are fewer workers,
+     * the ones that are busy finish their ZIPs first.
+     */
+    private void adjustConcurrency() {
+        if (concurrencyLimiter == null) {
+            return;
+        }
+
+        int limit = concurrencyLimiter.adjust(!workerPool.getQueue().isEmpty());
+        if (limit > workerPool.getMaximumPoolSize()) {
+            workerPool.setMaximumPoolSize(limit);
+            workerPool.setCorePoolSize(limit);
+        } else if (limit < workerPool.getCorePoolSize()) {
+            workerPool.setCorePoolSize(limit);
+            workerPool.setMaximumPoolSize(limit);
+        }
+    }
+
+    private void flushScanManifest() {
+        if (scanManifest != null) {
+            scanManifest.flush();
+        }
+    }
+
+    /**
+     * Wait for the workers to finish, but not longer than the rescan interval
+     * so new ZIPs can be picked up while a big batch is being ingested.
+     */
+    private void waitForWorkers() {
+        long waitUntil = System.currentTimeMillis() + rescanIntervalMillis;
+        synchronized (isbnsInProgress) {
+            long waitMillis;
+            while (!isbnsInProgress.isEmpty() && (waitMillis = waitUntil - System.currentTimeMillis()) > 0) {
+                try {
+                    isbnsInProgress.wait(waitMillis);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the node reference for the Alfresco folder that new ISBN content should be uploaded to
+     *
+     * @return the node reference for /Company Home/Data Dictionary/BestPub/Incoming/Content
+     */
+    private NodeRef getAlfrescoUploadFolderNodeRef() {
+        NodeRef rootNodeRef = serviceRegistry.getNodeService().getRootNode(StoreRef.STORE_REF_WORKSPACE_SPACESSTORE);
+        List<NodeRef> nodeRefs = serviceRegistry.getSearchService().selectNodes(rootNodeRef,
+                getAlfrescoFolderPath(), null, serviceRegistry.getNamespaceService(), false);
+        if (nodeRefs.size() != 1) {
+            throw new IngestionException("Could not find Alfresco upload folder " + getAlfrescoFolderPath());
+        }
+
+        return nodeRefs.get(0);
+    }
 }
@@ -0,0 +1,41 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.actions;
+
+/**
+ * What happened to a content ZIP that was handed to the Content Ingestion Executer
+ *
+ * @version 1.0
+ */
+public enum IngestionOutcome {
+    /**
+     * All content was imported, the ZIP can be removed
+     */
+    INGESTED,
+    /**
+     * The ZIP was not imported, such as for an ISBN that already exists, it is left in the directory
+     */
+    SKIPPED,
+    /**
+     * The ZIP itself is broken, such as a bad central directory, it is left in the directory until it is replaced
+     */
+    REJECTED,
+    /**
+     * Importing the ZIP failed, such as for a repository error, it is left in the directory and tried again
+     */
+    FAILED
+}
@@ -0,0 +1,83 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.actions;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A content ZIP waiting for an ingestion worker. Waiting ZIPs are taken highest priority first, with aging
+ * so low priority ZIPs are not starved: each priority level is worth one aging step of waiting time, so a
+ * ZIP that has waited longer than that is taken before a ZIP one level higher that has just arrived.
+ * The order is fixed when the ZIP is queued, so the queue never has to be re-sorted.
+ *
+ * @version 1.0
+ */
+class PrioritizedIngestion implements Runnable, Comparable<PrioritizedIngestion> {
+    /**
+     * Keeps ZIPs with the same order key in the order they were queued
+     */
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final String isbn;
+    private final int priority;
+    private final long queuedMillis;
+    private final long sequence;
+    private final long orderKey;
+    private final Runnable ingestion;
+
+    /**
+     * @param isbn            the ISBN of the ZIP
+     * @param priority        higher is taken first
+     * @param queuedMillis    when the ZIP was queued
+     * @param agingStepMillis waiting time that is worth one priority level
+     * @param ingestion       ingests the ZIP
+     */
+    PrioritizedIngestion(String isbn, int priority, long queuedMillis, long agingStepMillis, Runnable ingestion) {
+        this.isbn = isbn;
+        this.priority = priority;
+        this.queuedMillis = queuedMillis;
+        this.sequence = SEQUENCE.getAndIncrement();
+        this.orderKey = queuedMillis - priority * agingStepMillis;
+        this.ingestion = ingestion;
+    }
+
+    /**
+     * @return the same ingestion with another priority, still counting the waiting time from when it was first queued
+     */
+    PrioritizedIngestion withPriority(int newPriority, long agingStepMillis) {
+        return new PrioritizedIngestion(isbn, newPriority, queuedMillis, agingStepMillis, ingestion);
+    }
+
+    String getIsbn() {
+        return isbn;
+    }
+
+    int getPriority() {
+        return priority;
+    }
+
+    @Override
+    public void run() {
+        ingestion.run();
+    }
+
+    @Override
+    public int compareTo(PrioritizedIngestion other) {
+        int order = Long.compare(orderKey, other.orderKey);
+        return order != 0 ? order : Long.compare(sequence, other.sequence);
+    }
+}
@@ -0,0 +1,245 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.discovery;
+
+import org.acme.bestpublishing.contentingestion.actions.ContentIngestionExecuter;
+import org.apache.commons.lang.StringUtils;
+import org.quartz.JobDetail;
+import org.quartz.Scheduler;
+import org.quartz.SchedulerException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the content directory for new and modified ZIPs with a {@link WatchService}, and tells the
+ * Content Ingestion Executer about them. If the executer is not already running, the ingestion job is
+ * triggered, so the ZIP is picked up without waiting for the next cron run. Ingestion
+ * still happens in the scheduled job, so it is still protected by the cluster job lock.
+ *
+ * Events are coalesced, the job is triggered at most once per debounce interval, as an upload of
+ * a big ZIP fires thousands of modify events.
+ *
+ * The watcher only saves the wait for the next cron run, a ZIP is still only ingested once the
+ * {@link WriteCompletionDetector} says it is complete. For sub-second pickup use the MARKER strategy, or NONE
+ * when uploads are renamed to the final *.zip name when done, rather than STABLE, which waits a quiet period.
+ *
+ * Only active when bestpub.ingestion.content.discoveryMode=WATCH.
+ *
+ * @version 1.0
+ */
+public class DropFolderWatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(DropFolderWatcher.class);
+
+    /**
+     * The executer that should be told about new ZIPs
+     */
+    private ContentIngestionExecuter contentIngestionExecuter;
+
+    /**
+     * The scheduler and job that runs the executer
+     */
+    private Scheduler scheduler;
+    private JobDetail jobDetail;
+
+    /**
+     * The directory to watch, and if it should be watched at all
+     */
+    private String filesystemPathToCheck;
+    private String discoveryMode;
+
+    /**
+     * How long (ms) changes are collected before the job is triggered
+     */
+    private long debounceMillis = 250;
+
+    private WatchService watchService;
+    private Thread watcherThread;
+
+    /**
+     * Spring DI
+     */
+
+    public void setContentIngestionExecuter(ContentIngestionExecuter contentIngestionExecuter) {
+        this.contentIngestionExecuter = contentIngestionExecuter;
+    }
+    public void setScheduler(Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+    public void setJobDetail(JobDetail jobDetail) {
+        this.jobDetail = jobDetail;
+    }
+    public void setFilesystemPathToCheck(String filesystemPathToCheck) {
+        this.filesystemPathToCheck = filesystemPathToCheck;
+    }
+    public void setDiscoveryMode(String discoveryMode) {
+        this.discoveryMode = discoveryMode;
+    }
+    public void setDebounceMillis(long debounceMillis) {
+        this.debounceMillis = Math.max(0, debounceMillis);
+    }
+
+    /**
+     * Spring init method, starts watching the directory if in WATCH mode
+     */
+    public void init() {
+        if (!StringUtils.equalsIgnoreCase(StringUtils.trim(discoveryMode),
+                ContentIngestionExecuter.DiscoveryMode.WATCH.toString())) {
+            return;
+        }
+
+        final Path directory = Paths.get(filesystemPathToCheck);
+        try {
+            watchService = directory.getFileSystem().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException ioe) {
+            LOG.error("Could not watch content directory " + filesystemPathToCheck +
+                    ", falling back to listing it on every run", ioe);
+            return;
+        }
+
+        watcherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch(directory);
+            }
+        }, "BestPubContentDropFolderWatcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    /**
+     * Spring destroy method, stops watching the directory
+     */
+    public void shutdown() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ioe) {
+                LOG.warn("Could not close content directory watcher", ioe);
+            }
+        }
+        if (watcherThread != null) {
+            watcherThread.interrupt();
+        }
+    }
+
+    /**
+     * Watcher thread loop, runs until the watch service is closed or the directory goes away.
+     * The job is triggered once the debounce interval has passed since the first change it has not seen.
+     */
+    private void watch(Path directory) {
+        LOG.debug("Watching content directory [{}] for ZIPs", directory);
+        contentIngestionExecuter.setDropFolderWatched(true);
+
+        // When the first change that has not been handed to the job was seen, 0 if there is none
+        long pendingSince = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key;
+                if (pendingSince == 0) {
+                    key = watchService.take();
+                } else {
+                    long waitMillis = pendingSince + debounceMillis - System.currentTimeMillis();
+                    key = waitMillis > 0 ? watchService.poll(waitMillis, TimeUnit.MILLISECONDS) : watchService.poll();
+                }
+
+                if (key != null) {
+                    if (handleEvents(directory, key) && pendingSince == 0) {
+                        pendingSince = System.currentTimeMillis();
+                    }
+                    if (!key.reset()) {
+                        LOG.warn("Content directory [{}] can no longer be watched", directory);
+                        break;
+                    }
+                }
+
+                if (pendingSince != 0 && System.currentTimeMillis() - pendingSince >= debounceMillis) {
+                    pendingSince = 0;
+                    triggerIngestion();
+                }
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException cwse) {
+            // Shutting down
+        } finally {
+            contentIngestionExecuter.setDropFolderWatched(false);
+            LOG.debug("Stopped watching content directory [{}]", directory);
+        }
+    }
+
+    /**
+     * Tell the executer about the ZIPs the events are for
+     *
+     * @return true if any ZIP has changed
+     */
+    private boolean handleEvents(Path directory, WatchKey key) {
+        boolean zipFilesChanged = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Events have been lost, have the whole directory listed
+                contentIngestionExecuter.requestReconciliation();
+                zipFilesChanged = true;
+                continue;
+            }
+
+            Path changedPath = directory.resolve((Path) event.context());
+            String changedFilename = changedPath.getFileName().toString();
+            if (StringUtils.endsWithIgnoreCase(changedFilename, ".zip")) {
+                contentIngestionExecuter.zipFileChanged(changedPath.toFile());
+                zipFilesChanged = true;
+            } else if (StringUtils.endsWithIgnoreCase(changedFilename,
+                    WriteCompletionDetector.MARKER_FILE_EXTENSION)) {
+                // A {ISBN}.zip.done or {ISBN}.done marker file says the ZIP is complete
+                String zipFilename = StringUtils.removeEndIgnoreCase(
+                        changedFilename, WriteCompletionDetector.MARKER_FILE_EXTENSION);
+                if (!StringUtils.endsWithIgnoreCase(zipFilename, ".zip")) {
+                    zipFilename += ".zip";
+                }
+                contentIngestionExecuter.zipFileChanged(directory.resolve(zipFilename).toFile());
+                zipFilesChanged = true;
+            }
+        }
+        return zipFilesChanged;
+    }
+
+    /**
+     * Fire the ingestion job now, unless it is already running and will pick up the changes itself
+     */
+    private void triggerIngestion() {
+        if (contentIngestionExecuter.isRunning()) {
+            return;
+        }
+
+        try {
+            scheduler.triggerJob(jobDetail.getName(), jobDetail.getGroup());
+        } catch (SchedulerException se) {
+            LOG.warn("Could not trigger content ingestion job, ZIPs will be picked up by the next scheduled run", se);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.discovery;
+
+import org.acme.bestpublishing.contentingestion.actions.IngestionOutcome;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent record of the content ZIPs that were left in the content directory after being looked at,
+ * because they were skipped, rejected, or failed. Keeps the size and last modified time the ZIP had at the time,
+ * so a scan can skip ZIPs that have not changed since, without opening them or looking up their ISBN
+ * in the repository. A ZIP that is replaced, or touched, is looked at again.
+ *
+ * Skipped and rejected ZIPs would get the same outcome next time, they are left alone until they change.
+ * A ZIP that failed might have failed for a repository error that goes away, or for an entry that can never
+ * be read, so it is tried again after a delay that doubles with each failure, up to a maximum.
+ *
+ * The manifest is stored as a tab separated text file on the local file system, one line per ZIP:
+ * outcome, size, last modified, number of failures, when to retry (ms), and absolute path.
+ *
+ * @version 1.0
+ */
+public class ScanManifest {
+    private static final Logger LOG = LoggerFactory.getLogger(ScanManifest.class);
+
+    /**
+     * What is known about a ZIP that has been looked at
+     */
+    public static class Entry {
+        private final long size;
+        private final long lastModified;
+        private final IngestionOutcome outcome;
+        private final int failures;
+        private final long retryAtMillis;
+
+        public Entry(long size, long lastModified, IngestionOutcome outcome, int failures, long retryAtMillis) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.outcome = outcome;
+            this.failures = failures;
+            this.retryAtMillis = retryAtMillis;
+        }
+
+        public long getSize() {
+            return size;
+        }
+        public long getLastModified() {
+            return lastModified;
+        }
+        public IngestionOutcome getOutcome() {
+            return outcome;
+        }
+        public int getFailures() {
+            return failures;
+        }
+        public long getRetryAtMillis() {
+            return retryAtMillis;
+        }
+    }
+
+    /**
+     * Where the manifest is stored
+     */
+    private final Path manifestPath;
+
+    /**
+     * How long (ms) a ZIP is left alone after its first failure, 0 to try failed ZIPs again on every scan
+     */
+    private final long firstRetryDelayMillis;
+
+    /**
+     * The longest (ms) a ZIP that keeps failing is left alone
+     */
+    private final long maxRetryDelayMillis;
+
+    /**
+     * Absolute ZIP path -> what we know about it
+     */
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private volatile boolean dirty = false;
+
+    public ScanManifest(Path manifestPath, long firstRetryDelayMillis, long maxRetryDelayMillis) {
+        this.manifestPath = manifestPath;
+        this.firstRetryDelayMillis = firstRetryDelayMillis;
+        this.maxRetryDelayMillis = Math.max(firstRetryDelayMillis, maxRetryDelayMillis);
+    }
+
+    /**
+     * Load the manifest from disk, a missing or unreadable manifest just means all ZIPs are looked at again
+     */
+    public void load() {
+        if (!Files.isRegularFile(manifestPath)) {
+            return;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(manifestPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = StringUtils.split(line, '\t');
+                if (fields == null || (fields.length != 4 && fields.length != 6)) {
+                    continue;
+                }
+                try {
+                    IngestionOutcome outcome = IngestionOutcome.valueOf(fields[0]);
+                    if (isRecorded(outcome)) {
+                        // Manifests written before failures were recorded have no failure fields
+                        boolean withFailures = fields.length == 6;
+                        entries.put(fields[fields.length - 1], new Entry(Long.parseLong(fields[1]),
+                                Long.parseLong(fields[2]), outcome, withFailures ? Integer.parseInt(fields[3]) : 0,
+                                withFailures ? Long.parseLong(fields[4]) : 0));
+                    }
+                } catch (IllegalArgumentException iae) {
+                    LOG.debug("Ignoring bad content scan manifest line [{}]", line);
+                }
+            }
+            LOG.debug("Loaded content scan manifest with {} ZIPs from {}", entries.size(), manifestPath);
+        } catch (IOException ioe) {
+            LOG.warn("Could not read content scan manifest " + manifestPath + ", all ZIPs will be looked at", ioe);
+            entries.clear();
+        }
+    }
+
+    /**
+     * Write the manifest to disk, if it has changed since it was last written
+     */
+    public synchronized void flush() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+
+        Path tempPath = manifestPath.resolveSibling(manifestPath.getFileName() + ".tmp");
+        try {
+            Path parent = manifestPath.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    Entry value = entry.getValue();
+                    writer.write(value.getOutcome() + "\t" + value.getSize() + "\t" + value.getLastModified() +
+                            "\t" + value.getFailures() + "\t" + value.getRetryAtMillis() + "\t" + entry.getKey());
+                    writer.newLine();
+                }
+            }
+            Files.move(tempPath, manifestPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            dirty = true;
+            LOG.warn("Could not write content scan manifest " + manifestPath, ioe);
+        }
+    }
+
+    /**
+     * @param zipFile the ZIP about to be looked at
+     * @return true if the ZIP has been looked at before, has not changed since, and is not due to be tried again
+     */
+    public boolean isUnchanged(File zipFile) {
+        Entry entry = entries.get(zipFile.getAbsolutePath());
+        return entry != null && entry.getSize() == zipFile.length() &&
+                entry.getLastModified() == zipFile.lastModified() &&
+                (entry.getOutcome() != IngestionOutcome.FAILED || System.currentTimeMillis() < entry.getRetryAtMillis());
+    }
+
+    /**
+     * Record what happened to a ZIP. Ingested ZIPs are removed from the directory, so they are forgotten.
+     * A failed ZIP is left alone for longer each time it fails again without having changed.
+     *
+     * @param zipFile the ZIP that has been looked at
+     * @param size    the size of the ZIP when it was looked at
+     * @param lastModified the last modified time of the ZIP when it was looked at
+     * @param outcome what happened to it
+     */
+    public void record(File zipFile, long size, long lastModified, IngestionOutcome outcome) {
+        if (!isRecorded(outcome) || (outcome == IngestionOutcome.FAILED && firstRetryDelayMillis <= 0)) {
+            forget(zipFile);
+        } else if (outcome == IngestionOutcome.FAILED) {
+            Entry previous = entries.get(zipFile.getAbsolutePath());
+            int failures = previous != null && previous.getOutcome() == IngestionOutcome.FAILED &&
+                    previous.getSize() == size && previous.getLastModified() == lastModified ?
+                    previous.getFailures() + 1 : 1;
+            long retryDelayMillis = getRetryDelayMillis(failures);
+            entries.put(zipFile.getAbsolutePath(), new Entry(size, lastModified, outcome, failures,
+                    System.currentTimeMillis() + retryDelayMillis));
+            dirty = true;
+            LOG.debug("Content ZIP {} has failed {} times, trying it again in {} ms",
+                    new Object[]{zipFile.getName(), failures, retryDelayMillis});
+        } else {
+            entries.put(zipFile.getAbsolutePath(), new Entry(size, lastModified, outcome, 0, 0));
+            dirty = true;
+        }
+    }
+
+    /**
+     * @return true if a ZIP with this outcome is left alone for a while, as long as it does not change
+     */
+    private static boolean isRecorded(IngestionOutcome outcome) {
+        return outcome == IngestionOutcome.SKIPPED || outcome == IngestionOutcome.REJECTED ||
+                outcome == IngestionOutcome.FAILED;
+    }
+
+    /**
+     * @param failures how many times in a row the ZIP has failed
+     * @return how long (ms) to leave the ZIP alone, doubled for each failure after the first, up to the maximum
+     */
+    private long getRetryDelayMillis(int failures) {
+        long retryDelayMillis = firstRetryDelayMillis;
+        for (int i = 1; i < failures && retryDelayMillis < maxRetryDelayMillis; i++) {
+            retryDelayMillis *= 2;
+        }
+        return Math.min(retryDelayMillis, maxRetryDelayMillis);
+    }
+
+    /**
+     * @param zipFile the ZIP that should be looked at again on the next scan
+     */
+    public void forget(File zipFile) {
+        if (entries.remove(zipFile.getAbsolutePath()) != null) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Forget about ZIPs that are no longer in the directory
+     *
+     * @param zipFiles all the ZIPs currently in the directory
+     */
+    public void retainOnly(Collection<File> zipFiles) {
+        Set<String> paths = new HashSet<String>();
+        for (File zipFile : zipFiles) {
+            paths.add(zipFile.getAbsolutePath());
+        }
+        if (entries.keySet().retainAll(paths)) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * @return number of ZIPs in the manifest
+     */
+    public int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,193 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.discovery;
+
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Decides if a content ZIP in the content directory has been completely written, so it is never
+ * opened while a publisher upload is still running. Supports the following strategies:
+ *
+ *  STABLE - the ZIP size and last modified time must be seen unchanged a quiet period apart
+ *  MARKER - the publisher writes a {ISBN}.done or {ISBN}.zip.done marker file when the ZIP is complete
+ *  NONE   - every ZIP is considered complete
+ *
+ * Uploads that write to a temporary name, such as 9780486282146.zip.part or .9780486282146.zip,
+ * and atomically rename to the final name when done, are complete in all strategies, as only
+ * visible *.zip files are ever looked at.
+ *
+ * In STABLE mode the last modified time is not trusted on its own, as uploads that preserve timestamps,
+ * such as rsync or unzip, and clock skew on network shares, make a ZIP being written look old. Only on the
+ * first scan after startup is a ZIP that has not been modified for a quiet period taken to be complete,
+ * so ZIPs left in the directory while the repository was down are not held up.
+ *
+ * @version 1.0
+ */
+public class WriteCompletionDetector {
+    private static final Logger LOG = LoggerFactory.getLogger(WriteCompletionDetector.class);
+
+    public static final String MARKER_FILE_EXTENSION = ".done";
+
+    /**
+     * How completeness of a ZIP is decided
+     */
+    public enum Strategy {
+        STABLE, MARKER, NONE
+    }
+
+    /**
+     * What a ZIP looked like the first time it was seen with its current size and last modified time
+     */
+    private static class Observation {
+        private final long size;
+        private final long lastModified;
+        private final long observedAt;
+
+        private Observation(long size, long lastModified, long observedAt) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.observedAt = observedAt;
+        }
+    }
+
+    private final Strategy strategy;
+
+    /**
+     * In STABLE mode, how long (ms) a ZIP must stay unchanged before it is considered complete
+     */
+    private final long quietPeriodMillis;
+
+    /**
+     * In STABLE mode, absolute ZIP path -> last observation of it
+     */
+    private final Map<String, Observation> observations = new ConcurrentHashMap<String, Observation>();
+
+    /**
+     * True until the first scan after startup is done
+     */
+    private volatile boolean firstScan = true;
+
+    public WriteCompletionDetector(Strategy strategy, long quietPeriodMillis) {
+        this.strategy = strategy;
+        this.quietPeriodMillis = quietPeriodMillis;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * @param zipFile the ZIP about to be ingested
+     * @return true if the ZIP has been completely written and can be opened
+     */
+    public boolean isComplete(File zipFile) {
+        switch (strategy) {
+            case MARKER:
+                return getMarkerFile(zipFile) != null;
+            case STABLE:
+                return isStable(zipFile);
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * The first scan after startup is done, from now on STABLE mode always needs two observations
+     */
+    public void scanCompleted() {
+        firstScan = false;
+    }
+
+    /**
+     * The ZIP has been dealt with, forget about it, and remove its marker file if there is one
+     *
+     * @param zipFile the ZIP that has been ingested and removed
+     */
+    public void completed(File zipFile) {
+        observations.remove(zipFile.getAbsolutePath());
+
+        if (strategy == Strategy.MARKER) {
+            File markerFile = getMarkerFile(zipFile);
+            if (markerFile != null && !markerFile.delete()) {
+                LOG.warn("Could not delete marker file {}", markerFile.getName());
+            }
+        }
+    }
+
+    /**
+     * Forget about ZIPs that are no longer in the directory
+     *
+     * @param zipFiles all the ZIPs currently in the directory
+     */
+    public void retainOnly(Collection<File> zipFiles) {
+        Set<String> paths = new HashSet<String>();
+        for (File zipFile : zipFiles) {
+            paths.add(zipFile.getAbsolutePath());
+        }
+        observations.keySet().retainAll(paths);
+    }
+
+    private boolean isStable(File zipFile) {
+        long now = System.currentTimeMillis();
+        long size = zipFile.length();
+        long lastModified = zipFile.lastModified();
+
+        // Not touched for a quiet period when the repository started, it was already there while it was down
+        if (firstScan && now - lastModified >= quietPeriodMillis) {
+            observations.remove(zipFile.getAbsolutePath());
+            return true;
+        }
+
+        String path = zipFile.getAbsolutePath();
+        Observation observation = observations.get(path);
+        if (observation == null || observation.size != size || observation.lastModified != lastModified) {
+            // First time seen, or still being written to
+            observations.put(path, new Observation(size, lastModified, now));
+            return false;
+        }
+
+        if (now - observation.observedAt >= quietPeriodMillis) {
+            observations.remove(path);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the marker file for the ZIP, {ISBN}.zip.done or {ISBN}.done, or null if there is none
+     */
+    private File getMarkerFile(File zipFile) {
+        File markerFile = new File(zipFile.getParentFile(), zipFile.getName() + MARKER_FILE_EXTENSION);
+        if (markerFile.isFile()) {
+            return markerFile;
+        }
+
+        markerFile = new File(zipFile.getParentFile(),
+                FilenameUtils.getBaseName(zipFile.getName()) + MARKER_FILE_EXTENSION);
+        return markerFile.isFile() ? markerFile : null;
+    }
+}
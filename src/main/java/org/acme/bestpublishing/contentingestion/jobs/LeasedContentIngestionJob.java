@@ -0,0 +1,71 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.jobs;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.acme.bestpublishing.contentingestion.actions.ContentIngestionExecuter;
+import org.quartz.JobDataMap;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+import org.quartz.StatefulJob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Run the Content Ingestion Job on every node in the cluster at the same time
+ *
+ * Does not take a cluster wide job lock like the {@link ContentIngestionJob}. Instead the executer leases
+ * each ISBN it ingests, so the nodes share the ZIPs in the content directory between them.
+ * Only runs when ISBN leases are enabled (bestpub.ingestion.content.isbnLeases.enabled=true).
+ *
+ * Important: implement StatefulJob so the job is not triggered concurrently by the scheduler
+ *
+ * @version 1.0
+ */
+public class LeasedContentIngestionJob implements StatefulJob {
+    private static final Logger LOG = LoggerFactory.getLogger(LeasedContentIngestionJob.class);
+
+    @Override
+    public void execute(JobExecutionContext context) throws JobExecutionException {
+        JobDataMap jobData = context.getJobDetail().getJobDataMap();
+
+        // Extract the Content Checker to use
+        Object contentIngestionExecuterObj = jobData.get("contentIngestionExecuter");
+        if (contentIngestionExecuterObj == null || !(contentIngestionExecuterObj instanceof ContentIngestionExecuter)) {
+            throw new AlfrescoRuntimeException(
+                    "LeasedContentIngestionJob data must contain valid 'contentIngestionExecuter' reference");
+        }
+
+        final ContentIngestionExecuter contentIngestionExecuter =
+                (ContentIngestionExecuter) contentIngestionExecuterObj;
+
+        if (!contentIngestionExecuter.isIsbnLeasesEnabled()) {
+            // Without leases, nodes could ingest the same ZIP at the same time
+            LOG.error("LeasedContentIngestionJob needs bestpub.ingestion.content.isbnLeases.enabled=true, " +
+                    "not ingesting, use ContentIngestionJob instead");
+            return;
+        }
+
+        AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Object>() {
+            public Object doWork() throws Exception {
+                contentIngestionExecuter.execute();
+                return null;
+            }
+        }, AuthenticationUtil.getSystemUserName());
+    }
+}
@@ -0,0 +1,109 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.metrics;
+
+/**
+ * Throughput and latency of the content ingestion, recorded by the Content Ingestion Service
+ * and the Content Ingestion Executer, and exposed over JMX by the executer.
+ *
+ * @version 1.0
+ */
+public class IngestionMetrics {
+    /**
+     * Content ZIPs that have been ingested
+     */
+    private final RateMeter zipFiles = new RateMeter();
+
+    /**
+     * ZIP entries, and their uncompressed bytes, that have been stored in the repository
+     */
+    private final RateMeter entries = new RateMeter();
+    private final RateMeter bytes = new RateMeter();
+
+    /**
+     * Time to import a whole content ZIP
+     */
+    private final LatencyHistogram importZipFileContentLatency = new LatencyHistogram();
+
+    /**
+     * Time to create the ISBN folder structure
+     */
+    private final LatencyHistogram createIsbnFolderLatency = new LatencyHistogram();
+
+    /**
+     * Time to create a file from a ZIP entry
+     */
+    private final LatencyHistogram createFileLatency = new LatencyHistogram();
+
+    /**
+     * Time to run and commit one transaction that writes ZIP entries, such as a chunk or a single entry
+     */
+    private final LatencyHistogram commitLatency = new LatencyHistogram();
+
+    public RateMeter getZipFiles() {
+        return zipFiles;
+    }
+
+    public RateMeter getEntries() {
+        return entries;
+    }
+
+    public RateMeter getBytes() {
+        return bytes;
+    }
+
+    public LatencyHistogram getImportZipFileContentLatency() {
+        return importZipFileContentLatency;
+    }
+
+    public LatencyHistogram getCreateIsbnFolderLatency() {
+        return createIsbnFolderLatency;
+    }
+
+    public LatencyHistogram getCreateFileLatency() {
+        return createFileLatency;
+    }
+
+    public LatencyHistogram getCommitLatency() {
+        return commitLatency;
+    }
+
+    /**
+     * Record that a ZIP entry has been stored in the repository
+     *
+     * @param size        uncompressed size of the entry
+     * @param startNanos  {@link System#nanoTime()} when creating the file started
+     */
+    public void entryStored(long size, long startNanos) {
+        createFileLatency.record(System.nanoTime() - startNanos);
+        entries.mark(1);
+        bytes.mark(Math.max(size, 0));
+    }
+
+    /**
+     * Forget everything recorded so far
+     */
+    public void reset() {
+        zipFiles.reset();
+        entries.reset();
+        bytes.reset();
+        importZipFileContentLatency.reset();
+        createIsbnFolderLatency.reset();
+        createFileLatency.reset();
+        commitLatency.reset();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free rate of events, as a one minute exponentially weighted moving average, the same way as
+ * the Unix load average is computed. The average is brought up to date by whoever marks or reads the
+ * rate, so no timer thread is needed.
+ *
+ * @version 1.0
+ */
+public class RateMeter {
+    private static final long TICK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final double TICK_INTERVAL_SECONDS = 5.0;
+    private static final double ALPHA = 1 - Math.exp(-TICK_INTERVAL_SECONDS / 60.0);
+
+    /**
+     * After this many idle ticks the rate is zero for all practical purposes
+     */
+    private static final long MAX_TICKS = 720;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder uncounted = new LongAdder();
+    private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+    private volatile double ratePerSecond = 0.0;
+
+    /**
+     * @param events number of events that happened
+     */
+    public void mark(long events) {
+        tickIfNecessary();
+        count.add(events);
+        uncounted.add(events);
+    }
+
+    /**
+     * @return total number of events
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return events per second, averaged over the last minute or so
+     */
+    public double getRatePerSecond() {
+        tickIfNecessary();
+        return ratePerSecond;
+    }
+
+    /**
+     * @return events per minute, averaged over the last minute or so
+     */
+    public double getRatePerMinute() {
+        return getRatePerSecond() * 60.0;
+    }
+
+    /**
+     * Forget all events
+     */
+    public void reset() {
+        count.reset();
+        uncounted.reset();
+        ratePerSecond = 0.0;
+    }
+
+    private void tickIfNecessary() {
+        long oldTick = lastTick.get();
+        long age = System.nanoTime() - oldTick;
+        if (age < TICK_INTERVAL_NANOS) {
+            return;
+        }
+
+        // Only the thread that moves the tick forward updates the average
+        long newTick = oldTick + age - age % TICK_INTERVAL_NANOS;
+        if (lastTick.compareAndSet(oldTick, newTick)) {
+            long ticks = Math.min(age / TICK_INTERVAL_NANOS, MAX_TICKS);
+            double rate = ratePerSecond;
+            for (long i = 0; i < ticks; i++) {
+                double instantRate = uncounted.sumThenReset() / TICK_INTERVAL_SECONDS;
+                rate += ALPHA * (instantRate - rate);
+            }
+            ratePerSecond = rate;
+        }
+    }
+}
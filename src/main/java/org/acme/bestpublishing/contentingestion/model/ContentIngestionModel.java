@@ -0,0 +1,58 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.model;
+
+import org.alfresco.service.namespace.QName;
+
+/**
+ * Java mirror of the content-ingestion-model.xml content model,
+ * used for the bookkeeping the Content Ingestion module does on ingested nodes.
+ *
+ * @version 1.0
+ */
+public class ContentIngestionModel {
+    public static final String NAMESPACE_URI = "http://www.acme.org/model/content/ingestion/1.0";
+    public static final String NAMESPACE_PREFIX = "bpi";
+
+    /**
+     * Progress of an ISBN folder that is being imported in chunks, or pushed
+     */
+    public static final class IngestionProgressAspect {
+        public static final QName QNAME = QName.createQName(NAMESPACE_URI, "ingestionProgress");
+
+        public static final class Prop {
+            public static final QName ENTRIES_COMMITTED = QName.createQName(NAMESPACE_URI, "entriesCommitted");
+            public static final QName BYTES_COMMITTED = QName.createQName(NAMESPACE_URI, "bytesCommitted");
+            public static final QName LAST_COMMITTED_ENTRY = QName.createQName(NAMESPACE_URI, "lastCommittedEntry");
+            public static final QName INGESTION_ID = QName.createQName(NAMESPACE_URI, "ingestionId");
+            public static final QName INGESTION_ERROR = QName.createQName(NAMESPACE_URI, "ingestionError");
+        }
+    }
+
+    /**
+     * The ZIP entry a file node was imported from
+     */
+    public static final class EntryFingerprintAspect {
+        public static final QName QNAME = QName.createQName(NAMESPACE_URI, "entryFingerprint");
+
+        public static final class Prop {
+            public static final QName ENTRY_CRC = QName.createQName(NAMESPACE_URI, "entryCrc");
+            public static final QName ENTRY_SIZE = QName.createQName(NAMESPACE_URI, "entrySize");
+            public static final QName SHA256 = QName.createQName(NAMESPACE_URI, "sha256");
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.services;
+
+import org.alfresco.util.TraceableThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs import tasks that mostly wait for DB and content store I/O. The number of tasks running at the same
+ * time is capped with a semaphore, independently of the threads they run on, so the repository is not
+ * flooded whatever the thread mode:
+ *
+ *  PLATFORM - a fixed pool of platform threads
+ *  VIRTUAL  - a new virtual thread for every task, when the JVM has them (Java 21+),
+ *             otherwise the PLATFORM pool is used
+ *
+ * Virtual threads are looked up with reflection, so the module still builds and runs on older JVMs.
+ * {@link #execute(Runnable)} blocks while the cap is reached, which holds back the thread handing out tasks.
+ *
+ * @version 1.0
+ */
+public class BoundedTaskExecutor implements Executor {
+    private static final Logger LOG = LoggerFactory.getLogger(BoundedTaskExecutor.class);
+
+    /**
+     * What the tasks run on
+     */
+    public enum ThreadMode {
+        PLATFORM, VIRTUAL
+    }
+
+    private final ExecutorService executorService;
+    private final ThreadMode threadMode;
+    private final Semaphore permits;
+    private final int maxConcurrency;
+
+    /**
+     * @param namePrefix     prefix of the thread names
+     * @param threadMode     what the tasks should run on
+     * @param poolSize       number of platform threads, when running on platform threads
+     * @param maxConcurrency maximum number of tasks running at the same time
+     */
+    public BoundedTaskExecutor(String namePrefix, ThreadMode threadMode, int poolSize, int maxConcurrency) {
+        ExecutorService virtualThreadExecutor = threadMode == ThreadMode.VIRTUAL ?
+                newVirtualThreadExecutor(namePrefix) : null;
+        if (virtualThreadExecutor != null) {
+            this.executorService = virtualThreadExecutor;
+            this.threadMode = ThreadMode.VIRTUAL;
+        } else {
+            if (threadMode == ThreadMode.VIRTUAL) {
+                LOG.info("Virtual threads are not supported by this JVM, {} tasks run on {} platform threads",
+                        namePrefix, poolSize);
+            }
+            TraceableThreadFactory threadFactory = new TraceableThreadFactory();
+            threadFactory.setNamePrefix(namePrefix);
+            threadFactory.setThreadDaemon(true);
+            this.executorService = Executors.newFixedThreadPool(Math.max(1, poolSize), threadFactory);
+            this.threadMode = ThreadMode.PLATFORM;
+        }
+        this.maxConcurrency = Math.max(1, maxConcurrency);
+        this.permits = new Semaphore(this.maxConcurrency);
+    }
+
+    /**
+     * @return what the tasks actually run on
+     */
+    public ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * @return number of tasks handed out and not yet done
+     */
+    public int getActiveCount() {
+        return maxConcurrency - permits.availablePermits();
+    }
+
+    /**
+     * Run a task, waits while maxConcurrency tasks are already running
+     *
+     * @param task the task to run
+     * @throws RejectedExecutionException if interrupted while waiting, or shut down
+     */
+    @Override
+    public void execute(final Runnable task) {
+        try {
+            permits.acquire();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting to run a task", ie);
+        }
+
+        try {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            permits.release();
+            throw ree;
+        }
+    }
+
+    /**
+     * Stop all the tasks
+     */
+    public void shutdownNow() {
+        executorService.shutdownNow();
+    }
+
+    /**
+     * Same as Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix, 1).factory())
+     *
+     * @return the executor, or null if the JVM has no virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor(String namePrefix) {
+        try {
+            // Through the public Thread.Builder interface, the builder class itself is not accessible
+            Class<?> builderInterface = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderInterface.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 1L);
+            ThreadFactory threadFactory = (ThreadFactory) builderInterface.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, threadFactory);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,304 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.services;
+
+import org.acme.bestpublishing.contentingestion.metrics.IngestionMetrics;
+import org.acme.bestpublishing.contentingestion.zip.ContentZipArchive;
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentWriter;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.logging.LogFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.ZipEntry;
+
+/**
+ * Imports the entries of very large content ZIPs the way the Alfresco bulk filesystem import does.
+ * The entries are grouped by the folder they are routed to, and handed to an Alfresco {@link BatchProcessor}
+ * that imports them in batches, each batch in one retrying transaction, on several threads.
+ *
+ * Each entry is written to the content store first, without a node, and the file node is then created in
+ * one createNode call with its name, content, and fingerprint properties. This replaces the createNode,
+ * property write, content writer, and addAspect calls per entry of the other modes.
+ *
+ * @version 1.0
+ */
+@ManagedResource(
+        objectName = "org.acme:application=BestPublishing,type=Ingestion,name=BulkZipImport",
+        description = "Best Publishing bulk import of very large Book Content ZIPs")
+public class BulkZipImporter {
+    private static final Logger LOG = LoggerFactory.getLogger(BulkZipImporter.class);
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+
+    /**
+     * Best Publishing Services
+     */
+    private ContentDeduplicator contentDeduplicator;
+    private IngestionBehaviourSuppressor behaviourSuppressor = new IngestionBehaviourSuppressor();
+
+    /**
+     * Throughput and latency, exposed over JMX by the executer
+     */
+    private IngestionMetrics ingestionMetrics = new IngestionMetrics();
+
+    /**
+     * Number of threads importing batches of entries for one ZIP
+     */
+    private int workerThreads = 4;
+
+    /**
+     * Number of entries imported in one transaction
+     */
+    private int batchSize = 100;
+
+    /**
+     * Number of entries between progress log lines
+     */
+    private int loggingInterval = 1000;
+
+    private final LongAdder zipFilesImported = new LongAdder();
+    private final LongAdder entriesImported = new LongAdder();
+    private final LongAdder batchErrors = new LongAdder();
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+    public void setContentDeduplicator(ContentDeduplicator contentDeduplicator) {
+        this.contentDeduplicator = contentDeduplicator;
+    }
+    public void setBehaviourSuppressor(IngestionBehaviourSuppressor behaviourSuppressor) {
+        this.behaviourSuppressor = behaviourSuppressor;
+    }
+    public void setIngestionMetrics(IngestionMetrics ingestionMetrics) {
+        this.ingestionMetrics = ingestionMetrics;
+    }
+    public void setWorkerThreads(int workerThreads) {
+        this.workerThreads = Math.max(1, workerThreads);
+    }
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+    public void setLoggingInterval(int loggingInterval) {
+        this.loggingInterval = Math.max(1, loggingInterval);
+    }
+
+    /**
+     * Managed Attributes
+     */
+
+    @ManagedAttribute(description = "Number of threads importing batches of entries for one ZIP")
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    @ManagedAttribute(description = "Number of entries imported in one transaction")
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    @ManagedAttribute(description = "Number of content ZIPs bulk imported")
+    public long getZipFilesImported() {
+        return zipFilesImported.sum();
+    }
+
+    @ManagedAttribute(description = "Number of entries bulk imported")
+    public long getEntriesImported() {
+        return entriesImported.sum();
+    }
+
+    @ManagedAttribute(description = "Number of entries that could not be bulk imported")
+    public long getBatchErrors() {
+        return batchErrors.sum();
+    }
+
+    /**
+     * Import ZIP entries into a committed ISBN folder structure. Must be called outside of a transaction,
+     * each batch is committed in its own transaction. If the lease on the ISBN is lost, the entries that are
+     * left fail without being written, and the import is stopped.
+     *
+     * @param zipFile      the content ZIP, it can be read by several threads at the same time
+     * @param fileEntries  the file entries to import
+     * @param routingTable the ISBN folder structure to import into
+     * @param isbn         the book ISBN 13 number
+     * @param lease        the lease on the ISBN, null if it is not leased
+     * @throws IOException if any entry could not be imported, the others are committed
+     * @throws org.acme.bestpublishing.exceptions.IngestionException if the lease on the ISBN was lost
+     */
+    public void importEntries(final ContentZipArchive zipFile, List<ZipEntry> fileEntries,
+                              final ZipEntryRoutingTable routingTable, String isbn,
+                              final IsbnLeaseService.IsbnLease lease) throws IOException {
+        // Batches of entries for the same folder, so a batch does not contend with other batches over
+        // more than one parent folder
+        Map<NodeRef, List<ZipEntry>> entriesByFolder = new LinkedHashMap<NodeRef, List<ZipEntry>>();
+        for (ZipEntry zipEntry : fileEntries) {
+            String filename = FilenameUtils.getName(zipEntry.getName());
+            String zipDirName = FilenameUtils.getPathNoEndSeparator(zipEntry.getName());
+            NodeRef targetFolderNodeRef = routingTable.getTargetFolder(zipDirName, filename);
+            if (targetFolderNodeRef == null) {
+                LOG.warn("Found {} in the {} directory, will not ingest", filename, zipDirName);
+                continue;
+            }
+
+            List<ZipEntry> folderEntries = entriesByFolder.get(targetFolderNodeRef);
+            if (folderEntries == null) {
+                folderEntries = new ArrayList<ZipEntry>();
+                entriesByFolder.put(targetFolderNodeRef, folderEntries);
+            }
+            folderEntries.add(zipEntry);
+        }
+        final Map<ZipEntry, NodeRef> targetFolders = new LinkedHashMap<ZipEntry, NodeRef>();
+        for (Map.Entry<NodeRef, List<ZipEntry>> folderEntries : entriesByFolder.entrySet()) {
+            for (ZipEntry zipEntry : folderEntries.getValue()) {
+                targetFolders.put(zipEntry, folderEntries.getKey());
+            }
+        }
+
+        BatchProcessor<ZipEntry> batchProcessor = new BatchProcessor<ZipEntry>(
+                "BestPubContentBulkImport-" + isbn,
+                serviceRegistry.getTransactionService().getRetryingTransactionHelper(),
+                new ArrayList<ZipEntry>(targetFolders.keySet()), workerThreads, batchSize, null,
+                LogFactory.getLog(BulkZipImporter.class), loggingInterval);
+
+        final String runAsUser = AuthenticationUtil.getRunAsUser();
+        batchProcessor.process(new BatchProcessor.BatchProcessWorkerAdaptor<ZipEntry>() {
+            @Override
+            public String getIdentifier(ZipEntry zipEntry) {
+                return zipEntry.getName();
+            }
+
+            @Override
+            public void beforeProcess() throws Throwable {
+                AuthenticationUtil.setRunAsUser(runAsUser);
+            }
+
+            @Override
+            public void afterProcess() throws Throwable {
+                AuthenticationUtil.clearCurrentSecurityContext();
+            }
+
+            @Override
+            public void process(final ZipEntry zipEntry) throws Throwable {
+                if (lease != null) {
+                    lease.checkHeld();
+                }
+
+                // The batch processor owns the transaction, suppress behaviours inside it
+                behaviourSuppressor.suppressing(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+                    public Void execute() throws Throwable {
+                        importEntry(zipFile, zipEntry, targetFolders.get(zipEntry));
+                        return null;
+                    }
+                }).execute();
+            }
+        }, true);
+
+        int errors = batchProcessor.getTotalErrors();
+        entriesImported.add(batchProcessor.getSuccessfullyProcessedEntries());
+        if (lease != null) {
+            // The entries failed because the lease was lost, not because the ZIP is broken
+            lease.checkHeld();
+        }
+        if (errors > 0) {
+            batchErrors.add(errors);
+            throw new IOException(errors + " of " + targetFolders.size() + " entries could not be imported, " +
+                    "last failed entry " + batchProcessor.getLastErrorEntryId());
+        }
+        zipFilesImported.increment();
+        LOG.debug("Bulk imported {} entries for ISBN {}", targetFolders.size(), isbn);
+    }
+
+    /**
+     * Write the content of an entry and create its file node, in the batch transaction.
+     * A retry reads the entry again from the ZIP.
+     */
+    private void importEntry(ContentZipArchive zipFile, ZipEntry zipEntry, NodeRef targetFolderNodeRef)
+            throws IOException {
+        long startNanos = System.nanoTime();
+        String filename = FilenameUtils.getName(zipEntry.getName());
+        boolean deduplicated = contentDeduplicator.isDeduplicated(
+                FilenameUtils.getPathNoEndSeparator(zipEntry.getName()));
+        String mimetype = serviceRegistry.getMimetypeService().guessMimetype(filename);
+
+        ContentData contentData = null;
+        String sha256 = null;
+        if (deduplicated) {
+            ContentDeduplicator.Duplicate duplicate = contentDeduplicator.findDuplicate(zipFile, zipEntry);
+            if (duplicate != null) {
+                contentData = new ContentData(duplicate.getContentUrl(), mimetype, zipEntry.getSize(), "UTF-8");
+                sha256 = duplicate.getSha256();
+            }
+        }
+
+        if (contentData == null) {
+            ContentWriter writer = serviceRegistry.getContentService().getWriter(null, null, false);
+            writer.setMimetype(mimetype);
+            writer.setEncoding("UTF-8");
+
+            MessageDigest digest = deduplicated ? contentDeduplicator.newDigest() : null;
+            InputStream is = zipFile.getInputStream(zipEntry);
+            if (digest != null) {
+                is = new DigestInputStream(is, digest);
+            }
+            writer.putContent(new BufferedInputStream(is));
+            contentData = writer.getContentData();
+
+            if (digest != null) {
+                sha256 = Hex.encodeHexString(digest.digest());
+                contentDeduplicator.contentStored(contentData.getContentUrl(), zipEntry, sha256);
+            }
+        }
+
+        Map<QName, Serializable> properties = contentDeduplicator.getFingerprintProperties(zipEntry, sha256);
+        properties.put(ContentModel.PROP_NAME, filename);
+        properties.put(ContentModel.PROP_CONTENT, contentData);
+        serviceRegistry.getNodeService().createNode(targetFolderNodeRef, ContentModel.ASSOC_CONTAINS,
+                QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, QName.createValidLocalName(filename)),
+                ContentModel.TYPE_CONTENT, properties);
+        ingestionMetrics.entryStored(zipEntry.getSize(), startNanos);
+    }
+}
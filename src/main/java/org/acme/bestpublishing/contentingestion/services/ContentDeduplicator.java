@@ -0,0 +1,356 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.services;
+
+import org.acme.bestpublishing.contentingestion.model.ContentIngestionModel;
+import org.acme.bestpublishing.contentingestion.zip.ContentZipArchive;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.attributes.AttributeService;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.ZipEntry;
+
+/**
+ * Content addressing of the ZIP entries that are shared between books, such as the CSS files under styles/
+ * and the logos under images/. The SHA-256 of the content is computed while the entry is streamed into
+ * the repository and recorded with the Alfresco Attribute Service, keyed by the entry CRC-32 and size
+ * (known from the ZIP central directory) and the SHA-256. When the same content turns up in another
+ * ZIP, the new node reuses the existing content URL and no bytes are written to the content store.
+ * <p>
+ * Only entries whose CRC-32 and size match already stored content are hashed before they are imported,
+ * everything else is hashed in the same pass that writes it.
+ *
+ * @version 1.0
+ */
+@ManagedResource(
+        objectName = "org.acme:application=BestPublishing,type=Ingestion,name=ContentDeduplication",
+        description = "Best Publishing Content Deduplication of shared artwork and styles")
+public class ContentDeduplicator {
+    private static final Logger LOG = LoggerFactory.getLogger(ContentDeduplicator.class);
+
+    /**
+     * First key of all the Attribute Service entries, the other keys are "{crc}:{size}" and the SHA-256
+     */
+    public static final String ATTRIBUTE_APPLICATION_KEY = "bestpub.contentingestion.dedup";
+
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+
+    /**
+     * Content found with an already stored SHA-256
+     */
+    public static class Duplicate {
+        private final String contentUrl;
+        private final String sha256;
+
+        Duplicate(String contentUrl, String sha256) {
+            this.contentUrl = contentUrl;
+            this.sha256 = sha256;
+        }
+
+        public String getContentUrl() {
+            return contentUrl;
+        }
+        public String getSha256() {
+            return sha256;
+        }
+    }
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+
+    /**
+     * Turn deduplication on or off
+     */
+    private boolean enabled = true;
+
+    /**
+     * The ZIP directories with content that is deduplicated, lower case
+     */
+    private Set<String> deduplicatedDirNames = new HashSet<String>();
+
+    /**
+     * Counters for JMX
+     */
+    private final LongAdder entriesChecked = new LongAdder();
+    private final LongAdder duplicatesFound = new LongAdder();
+    private final LongAdder bytesNotWritten = new LongAdder();
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    public void setDeduplicatedDirNames(String deduplicatedDirNames) {
+        this.deduplicatedDirNames = new HashSet<String>();
+        for (String dirName : deduplicatedDirNames.split(",")) {
+            if (!dirName.trim().isEmpty()) {
+                this.deduplicatedDirNames.add(dirName.trim().toLowerCase());
+            }
+        }
+    }
+
+    /**
+     * Managed Attributes
+     */
+
+    @ManagedAttribute(description = "Is content deduplication turned on")
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute(description = "Number of ZIP entries checked for already stored content")
+    public long getEntriesChecked() {
+        return entriesChecked.sum();
+    }
+
+    @ManagedAttribute(description = "Number of ZIP entries that reused already stored content")
+    public long getDuplicatesFound() {
+        return duplicatesFound.sum();
+    }
+
+    @ManagedAttribute(description = "Fraction of checked ZIP entries that reused already stored content")
+    public double getHitRate() {
+        long checked = entriesChecked.sum();
+        return checked == 0 ? 0.0 : (double) duplicatesFound.sum() / checked;
+    }
+
+    @ManagedAttribute(description = "Bytes that did not have to be written to the content store")
+    public long getBytesNotWritten() {
+        return bytesNotWritten.sum();
+    }
+
+    /**
+     * @param zipDirName the ZIP directory of an entry, such as images
+     * @return true if entries in the directory should be deduplicated
+     */
+    public boolean isDeduplicated(String zipDirName) {
+        return enabled && zipDirName != null && deduplicatedDirNames.contains(zipDirName.toLowerCase());
+    }
+
+    /**
+     * @return a new digest to compute the SHA-256 of entry content while it is streamed
+     */
+    public MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException(DIGEST_ALGORITHM + " is not available", nsae);
+        }
+    }
+
+    /**
+     * Look for already stored content that is the same as the content of a ZIP entry.
+     * Has to be called in a transaction.
+     *
+     * @param zipFile the ZIP the entry is in
+     * @param entry   the entry
+     * @return the stored content, or null if the entry content has to be written
+     * @throws IOException if the entry could not be read
+     */
+    public Duplicate findDuplicate(ContentZipArchive zipFile, ZipEntry entry) throws IOException {
+        entriesChecked.increment();
+        String crcAndSize = getCrcAndSize(entry);
+        if (crcAndSize == null || !hasContentWithCrcAndSize(crcAndSize)) {
+            return null;
+        }
+
+        // Probably the same content, make sure with the SHA-256, reading is a lot cheaper than writing
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = zipFile.getInputStream(entry)) {
+            int read;
+            while ((read = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        String sha256 = Hex.encodeHexString(digest.digest());
+
+        AttributeService attributeService = serviceRegistry.getAttributeService();
+        String contentUrl = (String) attributeService.getAttribute(ATTRIBUTE_APPLICATION_KEY, crcAndSize, sha256);
+        if (contentUrl == null) {
+            return null;
+        }
+        if (!serviceRegistry.getContentService().getRawReader(contentUrl).exists()) {
+            // The content has been cleaned up since, the nodes using it are all gone
+            LOG.debug("Stored content for {} is gone [contentUrl={}]", entry.getName(), contentUrl);
+            attributeService.removeAttribute(ATTRIBUTE_APPLICATION_KEY, crcAndSize, sha256);
+            return null;
+        }
+
+        duplicatesFound.increment();
+        bytesNotWritten.add(entry.getSize());
+        LOG.debug("Reusing stored content for {} [contentUrl={}]", entry.getName(), contentUrl);
+
+        return new Duplicate(contentUrl, sha256);
+    }
+
+    /**
+     * Record the content of a node that was just imported from a ZIP entry, so other ZIPs can reuse it.
+     * Has to be called in the transaction that imported the node.
+     *
+     * @param fileNodeRef the imported node
+     * @param entry       the entry it was imported from
+     * @param digest      the digest that the entry content was streamed through
+     */
+    public void contentStored(NodeRef fileNodeRef, ZipEntry entry, MessageDigest digest) {
+        contentStored(fileNodeRef, entry, Hex.encodeHexString(digest.digest()));
+    }
+
+    /**
+     * Record the content of a node that was just imported from a ZIP entry, so other ZIPs can reuse it.
+     * Has to be called in the transaction that imported the node.
+     *
+     * @param fileNodeRef the imported node
+     * @param entry       the entry it was imported from
+     * @param sha256      SHA-256 of the entry content, hex encoded
+     */
+    public void contentStored(NodeRef fileNodeRef, ZipEntry entry, String sha256) {
+        addFingerprint(fileNodeRef, entry, sha256);
+
+        ContentData contentData = (ContentData) serviceRegistry.getNodeService().getProperty(
+                fileNodeRef, ContentModel.PROP_CONTENT);
+        if (contentData != null) {
+            contentStored(contentData.getContentUrl(), entry, sha256);
+        }
+    }
+
+    /**
+     * Record content that was just written to the content store from a ZIP entry, so other ZIPs can reuse it,
+     * for when the node is created after the content has been written.
+     * Has to be called in the transaction that creates the node.
+     *
+     * @param contentUrl the URL of the written content
+     * @param entry      the entry it was written from
+     * @param sha256     SHA-256 of the entry content, hex encoded
+     */
+    public void contentStored(String contentUrl, ZipEntry entry, String sha256) {
+        String crcAndSize = getCrcAndSize(entry);
+        if (crcAndSize != null && contentUrl != null) {
+            serviceRegistry.getAttributeService().setAttribute(
+                    contentUrl, ATTRIBUTE_APPLICATION_KEY, crcAndSize, sha256);
+        }
+    }
+
+    /**
+     * Record the ZIP entry a node was imported from
+     *
+     * @param fileNodeRef the imported node
+     * @param entry       the entry it was imported from
+     * @param sha256      SHA-256 of the content, hex encoded, or null if not known
+     */
+    public void addFingerprint(NodeRef fileNodeRef, ZipEntry entry, String sha256) {
+        serviceRegistry.getNodeService().addAspect(fileNodeRef, ContentIngestionModel.EntryFingerprintAspect.QNAME,
+                getFingerprintProperties(entry, sha256));
+    }
+
+    /**
+     * Get the properties recording the ZIP entry a node is imported from, so they can be set when
+     * the node is created, which also applies the fingerprint aspect
+     *
+     * @param entry  the entry the node is imported from
+     * @param sha256 SHA-256 of the content, hex encoded, or null if not known
+     * @return the fingerprint aspect properties
+     */
+    public Map<QName, Serializable> getFingerprintProperties(ZipEntry entry, String sha256) {
+        Map<QName, Serializable> properties = new HashMap<QName, Serializable>();
+        properties.put(ContentIngestionModel.EntryFingerprintAspect.Prop.ENTRY_CRC, entry.getCrc());
+        properties.put(ContentIngestionModel.EntryFingerprintAspect.Prop.ENTRY_SIZE, entry.getSize());
+        properties.put(ContentIngestionModel.EntryFingerprintAspect.Prop.SHA256, sha256);
+        return properties;
+    }
+
+    /**
+     * Wrap a channel so that all bytes written to it also go through a digest
+     *
+     * @param target the channel to write to
+     * @param digest the digest to update
+     * @return the wrapping channel, closing it closes the target
+     */
+    public static WritableByteChannel digestingChannel(final WritableByteChannel target, final MessageDigest digest) {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                ByteBuffer written = src.duplicate();
+                int count = target.write(src);
+                written.limit(written.position() + count);
+                digest.update(written);
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return target.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                target.close();
+            }
+        };
+    }
+
+    private boolean hasContentWithCrcAndSize(String crcAndSize) {
+        final AtomicBoolean found = new AtomicBoolean(false);
+        serviceRegistry.getAttributeService().getAttributes(new AttributeService.AttributeQueryCallback() {
+            @Override
+            public boolean handleAttribute(Long id, Serializable value, Serializable[] keys) {
+                found.set(true);
+                return false;
+            }
+        }, ATTRIBUTE_APPLICATION_KEY, crcAndSize);
+
+        return found.get();
+    }
+
+    /**
+     * @return "{crc}:{size}" of the entry, or null if the ZIP does not say
+     */
+    private String getCrcAndSize(ZipEntry entry) {
+        if (entry.getCrc() < 0 || entry.getSize() < 0) {
+            return null;
+        }
+        return Long.toHexString(entry.getCrc()) + ":" + entry.getSize();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.services;
+
+import org.acme.bestpublishing.services.IngestionService;
+import org.alfresco.service.cmr.repository.NodeRef;
+
+import java.io.File;
+import java.io.InputStream;
+
+/**
+ * The Content Ingestion Service, imports content ZIPs for new ISBNs and also handles ZIPs
+ * for ISBNs that already have a folder in the repository, by republishing or resuming them.
+ *
+ * @version 1.0
+ */
+public interface ContentIngestionService extends IngestionService {
+
+    /**
+     * Import a content ZIP for a new ISBN whose file entries have already been counted, such as by the
+     * {@link ContentZipValidator}, so the ZIP does not have to be read again to choose how it is imported.
+     * The import stops before the next entry, chunk, or batch is written if the lease on the ISBN is lost.
+     *
+     * @param file                  the content ZIP file
+     * @param alfrescoFolderNodeRef the node ref for /Company Home/Data Dictionary/BestPub/Incoming/Content
+     * @param isbn                  the book ISBN 13 number
+     * @param fileEntryCount        number of file entries in the ZIP, -1 if they have not been counted
+     * @param lease                 the lease on the ISBN, null if it is not leased
+     */
+    void importZipFileContent(File file, NodeRef alfrescoFolderNodeRef, String isbn, int fileEntryCount,
+                              IsbnLeaseService.IsbnLease lease);
+
+    /**
+     * Republish the content ZIP for an ISBN that has been completely ingested before.
+     * Only the difference is applied: files whose ZIP entry CRC-32 or size have changed get new content,
+     * new entries are added, and files with no entry in the ZIP are removed.
+     *
+     * @param file              the content ZIP file
+     * @param isbnFolderNodeRef the node ref for /Company Home/Data Dictionary/BestPub/Incoming/Content/{ISBN}
+     * @param isbn              the book ISBN 13 number
+     * @param lease             the lease on the ISBN, null if it is not leased
+     */
+    void republishZipFileContent(File file, NodeRef isbnFolderNodeRef, String isbn, IsbnLeaseService.IsbnLease lease);
+
+    /**
+     * Continue the ingestion of a content ZIP for an ISBN whose ingestion was interrupted, the ISBN folder is
+     * still IN_PROGRESS. Entries that are already stored are skipped, and the folder is set to COMPLETE
+     * when the rest of the entries have been imported.
+     *
+     * @param file              the content ZIP file
+     * @param isbnFolderNodeRef the node ref for /Company Home/Data Dictionary/BestPub/Incoming/Content/{ISBN}
+     * @param isbn              the book ISBN 13 number
+     * @param lease             the lease on the ISBN, null if it is not leased
+     */
+    void resumeZipFileContent(File file, NodeRef isbnFolderNodeRef, String isbn, IsbnLeaseService.IsbnLease lease);
+
+    /**
+     * Delete the ISBN folder of an ingestion that was interrupted, the folder is still IN_PROGRESS,
+     * so the ISBN can be ingested again from the start. Unless the caller holds a cluster wide lease on the ISBN,
+     * the folder might still be written by another node, it is then only deleted if it has been left alone.
+     *
+     * @param isbnFolderNodeRef    the node ref for /Company Home/Data Dictionary/BestPub/Incoming/Content/{ISBN}
+     * @param isbn                 the book ISBN 13 number
+     * @param abandonedAfterMillis how long (ms) nothing must have been written to the folder, or to the files
+     *                             in it, before it is deleted, 0 to delete it whenever it was last written to
+     * @return true if the folder was deleted, false if it was written to more recently
+     */
+    boolean deleteInterruptedIngestion(NodeRef isbnFolderNodeRef, String isbn, long abandonedAfterMillis);
+
+    /**
+     * Import a content ZIP for a new ISBN while it is being streamed, such as from an upload, without it ever
+     * being stored on disk. Entries are written to the content store as they are read, and the file nodes
+     * are committed in chunks, like in CHUNKED mode. The ISBN folder is set to COMPLETE when the stream ends.
+     * The entries are checked against the {@link ContentZipValidator} limits while they are read.
+     * The ingestion id, the progress, and the error if any, are recorded on the ISBN folder.
+     *
+     * @param zipStream             the content ZIP, read to the end but not closed
+     * @param alfrescoFolderNodeRef the node ref for /Company Home/Data Dictionary/BestPub/Incoming/Content
+     * @param isbn                  the book ISBN 13 number
+     * @param ingestion             updated as entries are committed
+     * @param lease                 the lease on the ISBN, null if it is not leased
+     */
+    void importZipStream(InputStream zipStream, NodeRef alfrescoFolderNodeRef, String isbn,
+                         StreamedIngestionRegistry.StreamedIngestion ingestion, IsbnLeaseService.IsbnLease lease);
+
+    /**
+     * Get the status of the last content ZIP pushed for an ISBN, as recorded on its ISBN folder,
+     * so it is known to every node and not only to the one the ZIP was pushed to.
+     *
+     * @param isbnFolderNodeRef the node ref for /Company Home/Data Dictionary/BestPub/Incoming/Content/{ISBN}
+     * @param isbn              the book ISBN 13 number
+     * @return the pushed ZIP status, or null if the ISBN folder was not created by a push
+     */
+    StreamedIngestionRegistry.StreamedIngestion getStreamedIngestion(NodeRef isbnFolderNodeRef, String isbn);
+}
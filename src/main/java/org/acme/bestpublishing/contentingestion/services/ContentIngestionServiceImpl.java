@@ -16,16 +16,32 @@ limitations under the License.
 */
 package org.acme.bestpublishing.contentingestion.services;
 
+import org.acme.bestpublishing.contentingestion.metrics.IngestionMetrics;
+import org.acme.bestpublishing.contentingestion.model.ContentIngestionModel;
+import org.acme.bestpublishing.contentingestion.zip.ContentZipArchive;
+import org.acme.bestpublishing.contentingestion.zip.ContentZipFile;
+import org.acme.bestpublishing.contentingestion.zip.InflatedZipEntryArchive;
+import org.acme.bestpublishing.contentingestion.zip.MappedZipArchive;
 import org.acme.bestpublishing.exceptions.IngestionException;
-import org.acme.bestpublishing.services.IngestionService;
+import org.alfresco.error.AlfrescoRuntimeException;
 import org.alfresco.model.ContentModel;
 import org.alfresco.repo.content.MimetypeMap;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
 import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.ContentData;
+import org.alfresco.service.cmr.repository.ContentIOException;
+import org.alfresco.service.cmr.repository.ContentWriter;
 import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
 import org.alfresco.service.namespace.NamespaceService;
 import org.alfresco.service.namespace.QName;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.lang.StringUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CloseShieldInputStream;
+import org.apache.commons.io.input.CountingInputStream;
 import org.acme.bestpublishing.error.ProcessingErrorCode;
 import org.acme.bestpublishing.model.BestPubContentModel;
 import org.acme.bestpublishing.services.AlfrescoRepoUtilsService;
@@ -36,24 +52,58 @@ import org.springframework.transaction.annotation.Transactional;
 
 import java.io.*;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.nio.channels.FileChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
-
-import static org.acme.bestpublishing.constants.BestPubConstants.*;
+import java.util.zip.ZipInputStream;
 
 /*
  * Implementation of the Content Ingestion Service, extracts ZIP to temporary location in local filesystem
  * and imports into Alfresco Repository folder from there.
  *
+ * The ZIP entries are either all imported in one transaction (SERIAL mode), fanned out to a pool of
+ * workers that import each entry in its own retrying transaction (PARALLEL mode), or imported in
+ * a sequence of small transactions of a configurable number of entries or bytes (CHUNKED mode).
+ * Very large ZIPs, above an entry count threshold, are bulk imported by the {@link BulkZipImporter} instead.
+ * Repository behaviours and rules can be turned off while the entries are written, and a deferred pass
+ * run after the ISBN folder is COMPLETE, see {@link IngestionBehaviourSuppressor}.
+ *
+ * STORED (uncompressed) entries, such as already compressed images, are transferred straight from
+ * the ZIP file into the content store file, without being copied through the heap.
+ *
+ * Content ZIPs for ISBNs that have been published before are applied as a delta, only files whose
+ * ZIP entry CRC-32 or size have changed are written again.
+ *
+ * An ingestion that was interrupted, such as by a restart, is resumed from the entries that are already
+ * committed, the progress recorded in CHUNKED mode and the entry fingerprints serve as checkpoints.
+ *
+ * Artwork and style files that are shared between books are deduplicated by their SHA-256, a book
+ * reusing a stylesheet that is already stored gets a node pointing to the stored content.
+ *
+ * ZIP files are read either with the JDK ZipFile (JDK reader), or through memory mapped regions of
+ * the file (MAPPED reader), which supports ZIP64 archives and lets several workers inflate entries
+ * of the same ZIP at the same time.
+ *
  * @author martin.bergljung@marversolutions.org
  * @version 1.0
  */
 @Transactional(readOnly = true)
-public class ContentIngestionServiceImpl implements IngestionService {
+public class ContentIngestionServiceImpl implements ContentIngestionService {
     private static Logger LOG = LoggerFactory.getLogger(ContentIngestionServiceImpl.class);
 
     /**
@@ -76,6 +126,42 @@ public class ContentIngestionServiceImpl implements IngestionService {
      */
     public static String ZIP_STYLES_DIR_NAME = "styles";
 
+    /**
+     * How the entries in a content ZIP are imported into the repository
+     */
+    public enum EntryIngestionMode {
+        /**
+         * All entries are imported one after the other in one transaction
+         */
+        SERIAL,
+        /**
+         * Entries are imported by a pool of workers, each entry in its own transaction
+         */
+        PARALLEL,
+        /**
+         * Entries are imported one after the other, with a commit every N entries or M bytes
+         */
+        CHUNKED,
+        /**
+         * Entries go through the {@link IngestionPipeline} stages, each entry stored in its own transaction
+         */
+        PIPELINED
+    }
+
+    /**
+     * How content ZIP files are read
+     */
+    public enum ZipReader {
+        /**
+         * Read with {@link java.util.zip.ZipFile}
+         */
+        JDK,
+        /**
+         * Read through memory mapped regions of the ZIP file
+         */
+        MAPPED
+    }
+
     /**
      * Alfresco Services
      */
@@ -85,6 +171,90 @@ public class ContentIngestionServiceImpl implements IngestionService {
      * Best Publishing Services
      */
     private AlfrescoRepoUtilsService alfrescoRepoUtilsService;
+    private IsbnFolderProvisioner isbnFolderProvisioner;
+    private ContentDeduplicator contentDeduplicator;
+
+    /**
+     * Checks streamed ZIPs against the same limits as ZIPs from the content directory
+     */
+    private ContentZipValidator contentZipValidator = new ContentZipValidator();
+
+    /**
+     * Throughput and latency, exposed over JMX by the executer
+     */
+    private IngestionMetrics ingestionMetrics = new IngestionMetrics();
+
+    /**
+     * How ZIP entries are imported
+     */
+    private EntryIngestionMode entryIngestionMode = EntryIngestionMode.SERIAL;
+
+    /**
+     * Number of platform threads importing ZIP entries in PARALLEL mode
+     */
+    private int entryWorkerPoolSize = 8;
+
+    /**
+     * Maximum number of ZIP entries that are imported at the same time in PARALLEL mode,
+     * shared by all the ZIPs being ingested, whatever they run on
+     */
+    private int entryMaxConcurrency = 8;
+
+    /**
+     * What ZIP entries are imported on in PARALLEL mode, virtual threads are only used if the JVM has them
+     */
+    private BoundedTaskExecutor.ThreadMode entryThreadMode = BoundedTaskExecutor.ThreadMode.PLATFORM;
+
+    /**
+     * Runs the ZIP entry imports in PARALLEL mode
+     */
+    private BoundedTaskExecutor entryWorkerPool;
+
+    /**
+     * The stages entries go through in PIPELINED mode
+     */
+    private IngestionPipeline ingestionPipeline;
+
+    /**
+     * In PIPELINED mode, bigger entries are not inflated into memory, the store stage reads them from the ZIP
+     */
+    private long maxInflatedEntryBytes = 4L * 1024 * 1024;
+
+    /**
+     * In CHUNKED mode, commit after this many entries
+     */
+    private int commitEveryEntries = 200;
+
+    /**
+     * In CHUNKED mode, commit after this many (uncompressed) bytes
+     */
+    private long commitEveryBytes = 100L * 1024 * 1024;
+
+    /**
+     * Turns off repository behaviours while entries are written, and runs the deferred pass after
+     */
+    private IngestionBehaviourSuppressor behaviourSuppressor = new IngestionBehaviourSuppressor();
+
+    /**
+     * Imports the entries of very large ZIPs in batches
+     */
+    private BulkZipImporter bulkZipImporter;
+
+    /**
+     * ZIPs with at least this many file entries are imported by the {@link BulkZipImporter},
+     * whatever the entry ingestion mode, 0 turns bulk import off
+     */
+    private int bulkImportEntryThreshold = 0;
+
+    /**
+     * Transfer STORED entries directly from the ZIP file into the content store
+     */
+    private boolean storedEntryTransferEnabled = true;
+
+    /**
+     * How ZIP files are read
+     */
+    private ZipReader zipReader = ZipReader.JDK;
 
     /**
      * Spring DI
@@ -96,142 +266,1575 @@ public class ContentIngestionServiceImpl implements IngestionService {
     public void setAlfrescoRepoUtilsService(AlfrescoRepoUtilsService alfrescoRepoUtilsService) {
         this.alfrescoRepoUtilsService = alfrescoRepoUtilsService;
     }
+    public void setIsbnFolderProvisioner(IsbnFolderProvisioner isbnFolderProvisioner) {
+        this.isbnFolderProvisioner = isbnFolderProvisioner;
+    }
+    public void setContentDeduplicator(ContentDeduplicator contentDeduplicator) {
+        this.contentDeduplicator = contentDeduplicator;
+    }
+    public void setContentZipValidator(ContentZipValidator contentZipValidator) {
+        this.contentZipValidator = contentZipValidator;
+    }
+    public void setIngestionMetrics(IngestionMetrics ingestionMetrics) {
+        this.ingestionMetrics = ingestionMetrics;
+    }
+    public void setEntryIngestionMode(String entryIngestionMode) {
+        this.entryIngestionMode = EntryIngestionMode.valueOf(entryIngestionMode.trim().toUpperCase());
+    }
+    public void setEntryWorkerPoolSize(int entryWorkerPoolSize) {
+        this.entryWorkerPoolSize = entryWorkerPoolSize;
+    }
+    public void setEntryMaxConcurrency(int entryMaxConcurrency) {
+        this.entryMaxConcurrency = entryMaxConcurrency;
+    }
+    public void setEntryThreadMode(String entryThreadMode) {
+        this.entryThreadMode = BoundedTaskExecutor.ThreadMode.valueOf(entryThreadMode.trim().toUpperCase());
+    }
+    public void setIngestionPipeline(IngestionPipeline ingestionPipeline) {
+        this.ingestionPipeline = ingestionPipeline;
+    }
+    public void setMaxInflatedEntryBytes(long maxInflatedEntryBytes) {
+        this.maxInflatedEntryBytes = maxInflatedEntryBytes;
+    }
+    public void setCommitEveryEntries(int commitEveryEntries) {
+        this.commitEveryEntries = commitEveryEntries;
+    }
+    public void setCommitEveryBytes(long commitEveryBytes) {
+        this.commitEveryBytes = commitEveryBytes;
+    }
+    public void setBehaviourSuppressor(IngestionBehaviourSuppressor behaviourSuppressor) {
+        this.behaviourSuppressor = behaviourSuppressor;
+    }
+    public void setBulkZipImporter(BulkZipImporter bulkZipImporter) {
+        this.bulkZipImporter = bulkZipImporter;
+    }
+    public void setBulkImportEntryThreshold(int bulkImportEntryThreshold) {
+        this.bulkImportEntryThreshold = bulkImportEntryThreshold;
+    }
+    public void setStoredEntryTransferEnabled(boolean storedEntryTransferEnabled) {
+        this.storedEntryTransferEnabled = storedEntryTransferEnabled;
+    }
+    public void setZipReader(String zipReader) {
+        this.zipReader = ZipReader.valueOf(zipReader.trim().toUpperCase());
+    }
+
+    /**
+     * Spring init method, sets up the entry workers when entries are imported in parallel,
+     * or starts the pipeline when they are pipelined
+     */
+    public void init() {
+        if (entryIngestionMode == EntryIngestionMode.PARALLEL) {
+            entryWorkerPool = new BoundedTaskExecutor("BestPubContentEntryIngestion", entryThreadMode,
+                    entryWorkerPoolSize, entryMaxConcurrency);
+            LOG.info("Content ZIP entries are imported on {} threads, at most {} at the same time",
+                    entryWorkerPool.getThreadMode(), entryWorkerPool.getMaxConcurrency());
+        } else if (entryIngestionMode == EntryIngestionMode.PIPELINED) {
+            ingestionPipeline.start();
+        }
+    }
+
+    /**
+     * Spring destroy method, stops the entry workers
+     */
+    public void shutdown() {
+        if (entryWorkerPool != null) {
+            entryWorkerPool.shutdownNow();
+        }
+    }
 
     /**
      * Interface Implementation
      */
 
+    /**
+     * Runs outside of any transaction, the file entries are counted if bulk import is turned on
+     */
     @Override
-    @Transactional(readOnly = false, propagation = Propagation.REQUIRES_NEW)
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
     public void importZipFileContent(File file, NodeRef alfrescoFolderNodeRef, String isbn) {
-        // Create the main ISBN folder where all the content should be ingested
-        NodeRef isbnFolderNodeRef = createIsbnFolder(alfrescoFolderNodeRef, isbn);
-        if (isbnFolderNodeRef == null) {
-            String extraDetails = "Could not create new ISBN folder for " + isbn + " under " +
-                    serviceRegistry.getNodeService().getPath(alfrescoFolderNodeRef).toString();
-            throw new IngestionException(extraDetails);
+        importZipFileContent(file, alfrescoFolderNodeRef, isbn, -1, null);
+    }
+
+    /**
+     * Runs outside of any transaction as each mode controls its own transactions,
+     * SERIAL mode imports everything in one new transaction. ZIPs with more entries than the bulk import
+     * threshold are bulk imported, whatever the mode.
+     */
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void importZipFileContent(final File file, final NodeRef alfrescoFolderNodeRef, final String isbn,
+                                     int fileEntryCount, IsbnLeaseService.IsbnLease lease) {
+        long startNanos = System.nanoTime();
+        if (bulkImportEntryThreshold > 0 && fileEntryCount < 0) {
+            fileEntryCount = countFileEntries(file);
+        }
+        if (bulkImportEntryThreshold > 0 && fileEntryCount >= bulkImportEntryThreshold) {
+            importZipFileContentInBulk(file, alfrescoFolderNodeRef, isbn, lease);
+        } else if (entryIngestionMode == EntryIngestionMode.PARALLEL) {
+            importZipFileContentInParallel(file, alfrescoFolderNodeRef, isbn, lease);
+        } else if (entryIngestionMode == EntryIngestionMode.PIPELINED) {
+            importZipFileContentPipelined(file, alfrescoFolderNodeRef, isbn, lease);
+        } else if (entryIngestionMode == EntryIngestionMode.CHUNKED) {
+            importZipFileContentInChunks(file, alfrescoFolderNodeRef, isbn, lease);
+        } else {
+            importZipFileContentInOneTransaction(file, alfrescoFolderNodeRef, isbn, lease);
+        }
+        ingestionMetrics.getImportZipFileContentLatency().record(System.nanoTime() - startNanos);
+
+        if (behaviourSuppressor.isDeferredPassEnabled()) {
+            runDeferredPass(getTransactionHelper().doInTransaction(
+                    new RetryingTransactionHelper.RetryingTransactionCallback<NodeRef>() {
+                        public NodeRef execute() throws Throwable {
+                            return serviceRegistry.getNodeService().getChildByName(
+                                    alfrescoFolderNodeRef, ContentModel.ASSOC_CONTAINS, isbn);
+                        }
+                    }, true, true), isbn);
+        }
+    }
+
+    /**
+     * Run the deferred pass for an ISBN folder that has just been set to COMPLETE, the import
+     * has succeeded whatever happens in the pass
+     *
+     * @param isbnFolderNodeRef the node ref for /Company Home/Data Dictionary/BestPub/Incoming/Content/{ISBN}
+     * @param isbn              the book ISBN 13 number
+     */
+    private void runDeferredPass(NodeRef isbnFolderNodeRef, String isbn) {
+        try {
+            behaviourSuppressor.runDeferredPass(isbnFolderNodeRef, isbn);
+        } catch (RuntimeException re) {
+            LOG.error("Deferred pass failed for ISBN " + isbn, re);
+        }
+    }
+
+    /**
+     * Run the deferred pass for some of the files of an ISBN, the import has succeeded whatever happens in the pass
+     *
+     * @param fileNodeRefs the files to run the deferred actions on
+     * @param isbn         the book ISBN 13 number
+     */
+    private void runDeferredPass(List<NodeRef> fileNodeRefs, String isbn) {
+        try {
+            behaviourSuppressor.runDeferredPass(fileNodeRefs, isbn);
+        } catch (RuntimeException re) {
+            LOG.error("Deferred pass failed for ISBN " + isbn, re);
+        }
+    }
+
+    /**
+     * Stop writing if the lease on the ISBN has been lost, another node might have taken the ISBN over
+     *
+     * @param lease the lease on the ISBN, null if it is not leased
+     * @throws IngestionException if the lease has been lost
+     */
+    private static void checkLease(IsbnLeaseService.IsbnLease lease) {
+        if (lease != null) {
+            lease.checkHeld();
+        }
+    }
+
+    /**
+     * Count the file entries in a content ZIP, only the central directory is read
+     *
+     * @param file the content ZIP file
+     * @return the number of file entries
+     * @throws IngestionException if the ZIP could not be read
+     */
+    private int countFileEntries(File file) {
+        ContentZipArchive zipFile = null;
+        try {
+            zipFile = openZipFile(file);
+            int fileEntries = 0;
+            Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+            while (enumeration.hasMoreElements()) {
+                if (!enumeration.nextElement().isDirectory()) {
+                    fileEntries++;
+                }
+            }
+            return fileEntries;
+        } catch (IOException ioe) {
+            throw new IngestionException("Could not read content ZIP " + file.getName() +
+                    " [error=" + ioe.getMessage() + "]");
+        } finally {
+            IOUtils.closeQuietly(zipFile);
+        }
+    }
+
+    /**
+     * Import a very large content ZIP with the {@link BulkZipImporter}, the ISBN folder structure is committed
+     * first, then the entries are imported in batches, and the ISBN folder is set to COMPLETE when all batches
+     * are committed.
+     *
+     * @param file                  the content ZIP file
+     * @param alfrescoFolderNodeRef the node ref for /Company Home/Data Dictionary/BestPub/Incoming/Content
+     * @param isbn                  the book ISBN 13 number
+     * @param lease                 the lease on the ISBN, null if it is not leased
+     */
+    private void importZipFileContentInBulk(File file, final NodeRef alfrescoFolderNodeRef, final String isbn,
+                                            IsbnLeaseService.IsbnLease lease) {
+        ZipEntryRoutingTable routingTable = createIsbnFolderInNewTransaction(alfrescoFolderNodeRef, isbn);
+        final NodeRef isbnFolderNodeRef = routingTable.getIsbnFolderNodeRef();
+
+        ContentZipArchive zipFile = null;
+        String zipFileName = file.getName();
+        try {
+            zipFile = openZipFile(file);
+            zipFileName = zipFile.getName();
+            List<ZipEntry> fileEntries = new ArrayList<ZipEntry>();
+            Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+            while (enumeration.hasMoreElements()) {
+                ZipEntry zipEntry = enumeration.nextElement();
+                if (!zipEntry.isDirectory()) {
+                    fileEntries.add(zipEntry);
+                }
+            }
+
+            LOG.info("Bulk importing {} entries for ISBN {}", fileEntries.size(), isbn);
+            bulkZipImporter.importEntries(zipFile, fileEntries, routingTable, isbn, lease);
+        } catch (IOException ioe) {
+            throw zipExtractionFailed(isbnFolderNodeRef, isbn, zipFileName, ioe, true);
+        } finally {
+            if (zipFile != null) {
+                try {
+                    zipFile.close();
+                } catch (IOException ioe) {
+                    LOG.warn("Could not close content ZIP {}", zipFileName);
+                }
+            }
+        }
+
+        checkLease(lease);
+        getTransactionHelper().doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                setIngestionComplete(isbnFolderNodeRef);
+                return null;
+            }
+        }, false, true);
+    }
+
+    /**
+     * Import the content ZIP in one new transaction, SERIAL mode
+     *
+     * @param file                  the content ZIP file
+     * @param alfrescoFolderNodeRef the node ref for /Company Home/Data Dictionary/BestPub/Incoming/Content
+     * @param isbn                  the book ISBN 13 number
+     * @param lease                 the lease on the ISBN, null if it is not leased
+     */
+    private void importZipFileContentInOneTransaction(final File file, final NodeRef alfrescoFolderNodeRef,
+                                                      final String isbn, final IsbnLeaseService.IsbnLease lease) {
+        getTransactionHelper().doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                ZipEntryRoutingTable routingTable = behaviourSuppressor.suppressing(
+                        new RetryingTransactionHelper.RetryingTransactionCallback<ZipEntryRoutingTable>() {
+                            public ZipEntryRoutingTable execute() throws Throwable {
+                                // Create the main ISBN folder where all the content should be ingested
+                                ZipEntryRoutingTable newRoutingTable = createIsbnFolder(alfrescoFolderNodeRef, isbn);
+
+                                // Process and ingest all content in the Content ZIP
+                                processZipFile(newRoutingTable, isbn, file, lease);
+                                checkLease(lease);
+                                return newRoutingTable;
+                            }
+                        }).execute();
+
+                // Everything went OK, setup ISBN as ready to be fetched by workflow, if it has been started
+                setIngestionComplete(routingTable.getIsbnFolderNodeRef());
+                return null;
+            }
+        }, false, true);
+    }
+
+    /**
+     * Runs outside of any transaction, the whole delta is applied in one new transaction
+     * so the ISBN folder never shows a half republished book. The deferred pass only runs on
+     * the files that were added or updated.
+     */
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void republishZipFileContent(final File file, final NodeRef isbnFolderNodeRef, final String isbn,
+                                        final IsbnLeaseService.IsbnLease lease) {
+        List<NodeRef> changedFileNodeRefs = getTransactionHelper().doInTransaction(behaviourSuppressor.suppressing(
+                new RetryingTransactionHelper.RetryingTransactionCallback<List<NodeRef>>() {
+                    public List<NodeRef> execute() throws Throwable {
+                        return republishZipFile(isbnFolderProvisioner.resolve(isbnFolderNodeRef), isbn, file, lease);
+                    }
+                }), false, true);
+        runDeferredPass(changedFileNodeRefs, isbn);
+    }
+
+    /**
+     * Runs outside of any transaction, the remaining entries are imported in chunks whatever the entry
+     * ingestion mode, so that the resumed ingestion can itself be resumed.
+     */
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void resumeZipFileContent(File file, final NodeRef isbnFolderNodeRef, String isbn,
+                                     IsbnLeaseService.IsbnLease lease) {
+        ZipEntryRoutingTable routingTable = getTransactionHelper().doInTransaction(
+                new RetryingTransactionHelper.RetryingTransactionCallback<ZipEntryRoutingTable>() {
+                    public ZipEntryRoutingTable execute() throws Throwable {
+                        return isbnFolderProvisioner.resolve(isbnFolderNodeRef);
+                    }
+                }, false, true);
+
+        importZipFileEntriesInChunks(file, routingTable, isbn, true, lease);
+        runDeferredPass(isbnFolderNodeRef, isbn);
+    }
+
+    /**
+     * Runs outside of any transaction, the content of each entry is written to the content store outside of
+     * a transaction, as the stream cannot be read again on a retry, and the file nodes are committed in chunks.
+     * The ingestion id and the progress are recorded on the ISBN folder, so the push can be polled from any node.
+     */
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public void importZipStream(InputStream zipStream, final NodeRef alfrescoFolderNodeRef, final String isbn,
+                                final StreamedIngestionRegistry.StreamedIngestion ingestion,
+                                IsbnLeaseService.IsbnLease lease) {
+        long startNanos = System.nanoTime();
+        ZipEntryRoutingTable routingTable = getTransactionHelper().doInTransaction(
+                new RetryingTransactionHelper.RetryingTransactionCallback<ZipEntryRoutingTable>() {
+                    public ZipEntryRoutingTable execute() throws Throwable {
+                        ZipEntryRoutingTable routingTable = createIsbnFolder(alfrescoFolderNodeRef, isbn);
+                        Map<QName, Serializable> progress = new HashMap<QName, Serializable>();
+                        progress.put(ContentIngestionModel.IngestionProgressAspect.Prop.INGESTION_ID,
+                                ingestion.getId());
+                        progress.put(ContentIngestionModel.IngestionProgressAspect.Prop.ENTRIES_COMMITTED, 0);
+                        progress.put(ContentIngestionModel.IngestionProgressAspect.Prop.BYTES_COMMITTED, 0L);
+                        serviceRegistry.getNodeService().addAspect(routingTable.getIsbnFolderNodeRef(),
+                                ContentIngestionModel.IngestionProgressAspect.QNAME, progress);
+                        return routingTable;
+                    }
+                }, false, true);
+        final NodeRef isbnFolderNodeRef = routingTable.getIsbnFolderNodeRef();
+
+        try {
+            List<StreamedEntry> chunk = new ArrayList<StreamedEntry>();
+            long chunkBytes = 0;
+            int fileEntriesRead = 0;
+            String lastFileEntryName = null;
+            try {
+                CountingInputStream countingStream = new CountingInputStream(zipStream);
+                ContentZipValidator.StreamedZipCheck zipCheck =
+                        contentZipValidator.checkStreamedZip(isbn + ".zip", countingStream);
+                ZipInputStream zipInputStream = new ZipInputStream(countingStream);
+                ZipEntry zipEntry;
+                while ((zipEntry = zipInputStream.getNextEntry()) != null) {
+                    if (zipEntry.isDirectory()) {
+                        continue;
+                    }
+
+                    checkLease(lease);
+                    fileEntriesRead++;
+                    lastFileEntryName = zipEntry.getName();
+                    StreamedEntry streamedEntry = writeStreamedEntry(
+                            zipCheck.entry(zipEntry, zipInputStream), zipEntry, routingTable);
+                    if (streamedEntry == null) {
+                        continue;
+                    }
+                    chunk.add(streamedEntry);
+                    chunkBytes += zipEntry.getSize();
+                    if (chunk.size() >= commitEveryEntries || chunkBytes >= commitEveryBytes) {
+                        commitStreamedEntries(chunk, isbnFolderNodeRef, fileEntriesRead, lastFileEntryName,
+                                ingestion);
+                        chunk = new ArrayList<StreamedEntry>();
+                        chunkBytes = 0;
+                    }
+                }
+                checkLease(lease);
+                commitStreamedEntries(chunk, isbnFolderNodeRef, fileEntriesRead, lastFileEntryName, ingestion);
+                zipCheck.finish();
+            } catch (IOException ioe) {
+                throw zipExtractionFailed(isbnFolderNodeRef, isbn, isbn + ".zip (streamed)", ioe, true);
+            }
+
+            // The last entry has been committed, setup ISBN as ready to be fetched by workflow, if it has been started
+            checkLease(lease);
+            getTransactionHelper().doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+                public Void execute() throws Throwable {
+                    setIngestionComplete(isbnFolderNodeRef);
+                    return null;
+                }
+            }, false, true);
+        } catch (RuntimeException re) {
+            recordStreamedIngestionError(isbnFolderNodeRef, isbn, re);
+            throw re;
+        }
+        ingestionMetrics.getImportZipFileContentLatency().record(System.nanoTime() - startNanos);
+        runDeferredPass(isbnFolderNodeRef, isbn);
+    }
+
+    /**
+     * Runs outside of any transaction, the ISBN folder is read in one new read-only transaction.
+     */
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public StreamedIngestionRegistry.StreamedIngestion getStreamedIngestion(final NodeRef isbnFolderNodeRef,
+                                                                           final String isbn) {
+        return getTransactionHelper().doInTransaction(
+                new RetryingTransactionHelper.RetryingTransactionCallback<
+                        StreamedIngestionRegistry.StreamedIngestion>() {
+                    public StreamedIngestionRegistry.StreamedIngestion execute() throws Throwable {
+                        Map<QName, Serializable> props = serviceRegistry.getNodeService().getProperties(
+                                isbnFolderNodeRef);
+                        String id = (String) props.get(ContentIngestionModel.IngestionProgressAspect.Prop.INGESTION_ID);
+                        if (id == null) {
+                            return null;
+                        }
+
+                        String error = (String) props.get(
+                                ContentIngestionModel.IngestionProgressAspect.Prop.INGESTION_ERROR);
+                        StreamedIngestionRegistry.State state = StreamedIngestionRegistry.State.RUNNING;
+                        if (BestPubContentModel.IngestionStatus.COMPLETE.toString().equals(
+                                props.get(BestPubContentModel.BookFolderType.Prop.INGESTION_STATUS))) {
+                            state = StreamedIngestionRegistry.State.COMPLETE;
+                        } else if (error != null) {
+                            state = StreamedIngestionRegistry.State.FAILED;
+                        }
+
+                        Integer entries = (Integer) props.get(
+                                ContentIngestionModel.IngestionProgressAspect.Prop.ENTRIES_COMMITTED);
+                        Long bytes = (Long) props.get(
+                                ContentIngestionModel.IngestionProgressAspect.Prop.BYTES_COMMITTED);
+                        Date created = (Date) props.get(ContentModel.PROP_CREATED);
+                        Date modified = (Date) props.get(ContentModel.PROP_MODIFIED);
+                        return StreamedIngestionRegistry.recorded(id, isbn, state,
+                                entries == null ? 0 : entries, bytes == null ? 0 : bytes,
+                                created == null ? 0 : created.getTime(),
+                                state == StreamedIngestionRegistry.State.RUNNING || modified == null ?
+                                        0 : modified.getTime(),
+                                error);
+                    }
+                }, true, true);
+    }
+
+    /**
+     * Runs outside of any transaction, the ISBN folder is deleted in one new transaction, and is not archived
+     * as there is nothing in a half ingested book worth restoring.
+     */
+    @Override
+    @Transactional(propagation = Propagation.NOT_SUPPORTED)
+    public boolean deleteInterruptedIngestion(final NodeRef isbnFolderNodeRef, final String isbn,
+                                              final long abandonedAfterMillis) {
+        boolean deleted = getTransactionHelper().doInTransaction(
+                new RetryingTransactionHelper.RetryingTransactionCallback<Boolean>() {
+                    public Boolean execute() throws Throwable {
+                        NodeService nodeService = serviceRegistry.getNodeService();
+                        if (BestPubContentModel.IngestionStatus.COMPLETE.toString().equals(nodeService.getProperty(
+                                isbnFolderNodeRef, BestPubContentModel.BookFolderType.Prop.INGESTION_STATUS))) {
+                            throw new IngestionException("ISBN " + isbn + " has been completely ingested, " +
+                                    "its folder is not deleted");
+                        }
+
+                        if (abandonedAfterMillis > 0 && getLastModifiedMillis(isbnFolderNodeRef) >
+                                System.currentTimeMillis() - abandonedAfterMillis) {
+                            return false;
+                        }
+
+                        nodeService.addAspect(isbnFolderNodeRef, ContentModel.ASPECT_TEMPORARY, null);
+                        nodeService.deleteNode(isbnFolderNodeRef);
+                        return true;
+                    }
+                }, false, true);
+        if (deleted) {
+            LOG.debug("Deleted the interrupted ingestion of ISBN {}", isbn);
+        } else {
+            LOG.debug("Not deleting the interrupted ingestion of ISBN {}, it was written to less than {} ms ago",
+                    isbn, abandonedAfterMillis);
+        }
+        return deleted;
+    }
+
+    /**
+     * Get when a folder, or anything in it, was last written to. The ISBN folder itself is only written to
+     * when progress is recorded, so the files are looked at as well.
+     *
+     * @param folderNodeRef the folder to look in
+     * @return the latest modified time (ms) of the folder, its sub-folders, and their files
+     */
+    private long getLastModifiedMillis(NodeRef folderNodeRef) {
+        NodeService nodeService = serviceRegistry.getNodeService();
+        Date modified = (Date) nodeService.getProperty(folderNodeRef, ContentModel.PROP_MODIFIED);
+        long lastModifiedMillis = modified == null ? 0 : modified.getTime();
+        for (ChildAssociationRef fileAssoc : nodeService.getChildAssocs(
+                folderNodeRef, Collections.singleton(ContentModel.TYPE_CONTENT))) {
+            modified = (Date) nodeService.getProperty(fileAssoc.getChildRef(), ContentModel.PROP_MODIFIED);
+            if (modified != null) {
+                lastModifiedMillis = Math.max(lastModifiedMillis, modified.getTime());
+            }
+        }
+        for (ChildAssociationRef folderAssoc : nodeService.getChildAssocs(
+                folderNodeRef, Collections.singleton(ContentModel.TYPE_FOLDER))) {
+            lastModifiedMillis = Math.max(lastModifiedMillis, getLastModifiedMillis(folderAssoc.getChildRef()));
+        }
+        return lastModifiedMillis;
+    }
+
+    /**
+     * Import the content ZIP with each entry in its own transaction, running on the entry worker pool.
+     * The ISBN folder and its sub-folders are committed first so the workers can see them, and the
+     * ISBN folder is only set to COMPLETE when every entry has been committed.
+     *
+     * @param file                  the content ZIP file
+     * @param alfrescoFolderNodeRef the node ref for /Company Home/Data Dictionary/BestPub/Incoming/Content
+     * @param isbn                  the book ISBN 13 number
+     * @param lease                 the lease on the ISBN, null if it is not leased
+     */
+    private void importZipFileContentInParallel(File file, final NodeRef alfrescoFolderNodeRef, final String isbn,
+                                                final IsbnLeaseService.IsbnLease lease) {
+        // Workers must not race each other creating the sub-folders
+        final ZipEntryRoutingTable routingTable = createIsbnFolderInNewTransaction(alfrescoFolderNodeRef, isbn);
+        final NodeRef isbnFolderNodeRef = routingTable.getIsbnFolderNodeRef();
+
+        final ContentZipArchive zipFile;
+        try {
+            zipFile = openZipFile(file);
+        } catch (IOException ioe) {
+            throw zipExtractionFailed(isbnFolderNodeRef, isbn, file.getName(), ioe, true);
         }
 
-        // Process and ingest all content in the Content ZIP
-        processZipFile(isbnFolderNodeRef, isbn, file);
+        try {
+            final String runAsUser = AuthenticationUtil.getRunAsUser();
+            final AtomicReference<Throwable> firstError = new AtomicReference<Throwable>();
+            List<ZipEntry> fileEntries = new ArrayList<ZipEntry>();
+            Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+            while (enumeration.hasMoreElements()) {
+                ZipEntry zipEntry = enumeration.nextElement();
+                if (!zipEntry.isDirectory()) {
+                    fileEntries.add(zipEntry);
+                }
+            }
 
-        // Everything went OK, setup ISBN as ready to be fetched by workflow, if it has been started
+            final CountDownLatch entriesDone = new CountDownLatch(fileEntries.size());
+            for (final ZipEntry zipEntry : fileEntries) {
+                Runnable entryTask = new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            if (firstError.get() == null) {
+                                checkLease(lease);
+                                importZipFileEntry(zipFile, zipEntry, routingTable, runAsUser);
+                            }
+                        } catch (Throwable t) {
+                            firstError.compareAndSet(null, t);
+                        } finally {
+                            entriesDone.countDown();
+                        }
+                    }
+                };
+
+                try {
+                    entryWorkerPool.execute(entryTask);
+                } catch (RejectedExecutionException ree) {
+                    firstError.compareAndSet(null, ree);
+                    entriesDone.countDown();
+                }
+            }
+
+            entriesDone.await();
+
+            Throwable error = firstError.get();
+            if (error != null) {
+                throw entryImportFailed(isbnFolderNodeRef, isbn, zipFile.getName(), error);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IngestionException("Interrupted while importing content ZIP " + file.getName());
+        } finally {
+            try {
+                zipFile.close();
+            } catch (IOException ioe) {
+                LOG.warn("Could not close content ZIP {}", file.getName());
+            }
+        }
+
+        // Every entry has been committed, setup ISBN as ready to be fetched by workflow, if it has been started
+        checkLease(lease);
+        getTransactionHelper().doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                setIngestionComplete(isbnFolderNodeRef);
+                return null;
+            }
+        }, false, true);
+    }
+
+    /**
+     * A streamed ZIP entry whose content has been written to the content store, and that is waiting
+     * for its file node to be committed
+     */
+    private static class StreamedEntry {
+        private final ZipEntry zipEntry;
+        private final NodeRef targetFolderNodeRef;
+        private final String filename;
+        private final ContentData contentData;
+        private final String sha256;
+        private final long startNanos;
+
+        private StreamedEntry(ZipEntry zipEntry, NodeRef targetFolderNodeRef, String filename,
+                              ContentData contentData, String sha256, long startNanos) {
+            this.zipEntry = zipEntry;
+            this.targetFolderNodeRef = targetFolderNodeRef;
+            this.filename = filename;
+            this.contentData = contentData;
+            this.sha256 = sha256;
+            this.startNanos = startNanos;
+        }
+    }
+
+    /**
+     * Write the content of the current entry of a streamed ZIP to the content store, without a node,
+     * outside of any transaction
+     *
+     * @param entryStream  the entry data of the streamed ZIP, it is not closed
+     * @param zipEntry     the entry
+     * @param routingTable   the ISBN folder structure to import into
+     * @return the written entry, or null if the entry is not ingested
+     * @throws IOException if the entry could not be read
+     */
+    private StreamedEntry writeStreamedEntry(InputStream entryStream, ZipEntry zipEntry,
+                                             ZipEntryRoutingTable routingTable) throws IOException {
+        String filename = FilenameUtils.getName(zipEntry.getName());
+        String zipDirName = FilenameUtils.getPathNoEndSeparator(zipEntry.getName());
+        NodeRef targetFolderNodeRef = routingTable.getTargetFolder(zipDirName, filename);
+        if (targetFolderNodeRef == null) {
+            LOG.warn("Found {} in the {} directory, will not ingest", filename, zipDirName);
+            return null;
+        }
+
+        long startNanos = System.nanoTime();
+        ContentWriter writer = serviceRegistry.getContentService().getWriter(null, null, false);
+        writer.setMimetype(serviceRegistry.getMimetypeService().guessMimetype(filename));
+        writer.setEncoding("UTF-8");
+
+        // The writer closes the stream it is given, the ZIP stream has to stay open for the next entry
+        MessageDigest digest = contentDeduplicator.isDeduplicated(zipDirName) ? contentDeduplicator.newDigest() : null;
+        InputStream is = new CloseShieldInputStream(entryStream);
+        if (digest != null) {
+            is = new DigestInputStream(is, digest);
+        }
+        writer.putContent(is);
+
+        // The entry CRC-32 and size are known now that the entry has been read to the end
+        return new StreamedEntry(zipEntry, targetFolderNodeRef, filename, writer.getContentData(),
+                digest == null ? null : Hex.encodeHexString(digest.digest()), startNanos);
+    }
+
+    /**
+     * Create the file nodes for streamed entries, whose content is already in the content store, in a new
+     * transaction, and record the progress on the ISBN folder in the same transaction. Can be retried,
+     * the content is not read again.
+     *
+     * @param streamedEntries    the entries to commit
+     * @param isbnFolderNodeRef  the ISBN folder to record the progress on
+     * @param fileEntriesRead    number of file entries read from the ZIP so far, including this chunk
+     * @param lastFileEntryName  name of the last file entry read from the ZIP
+     * @param ingestion          the pushed ZIP the entries are from
+     */
+    private void commitStreamedEntries(final List<StreamedEntry> streamedEntries, final NodeRef isbnFolderNodeRef,
+                                       final int fileEntriesRead, final String lastFileEntryName,
+                                       StreamedIngestionRegistry.StreamedIngestion ingestion) {
+        if (streamedEntries.isEmpty()) {
+            return;
+        }
+
+        long bytes = 0;
+        for (StreamedEntry streamedEntry : streamedEntries) {
+            bytes += Math.max(streamedEntry.zipEntry.getSize(), 0);
+        }
+        final long bytesCommitted = ingestion.getBytesStored() + bytes;
+
+        doInEntryTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                for (StreamedEntry streamedEntry : streamedEntries) {
+                    NodeRef fileNodeRef = createContentNode(streamedEntry.targetFolderNodeRef, streamedEntry.filename);
+                    serviceRegistry.getNodeService().setProperty(
+                            fileNodeRef, ContentModel.PROP_CONTENT, streamedEntry.contentData);
+                    if (streamedEntry.sha256 != null) {
+                        contentDeduplicator.contentStored(fileNodeRef, streamedEntry.zipEntry, streamedEntry.sha256);
+                    } else {
+                        contentDeduplicator.addFingerprint(fileNodeRef, streamedEntry.zipEntry, null);
+                    }
+                }
+
+                Map<QName, Serializable> progress = new HashMap<QName, Serializable>();
+                progress.put(ContentIngestionModel.IngestionProgressAspect.Prop.ENTRIES_COMMITTED, fileEntriesRead);
+                progress.put(ContentIngestionModel.IngestionProgressAspect.Prop.BYTES_COMMITTED, bytesCommitted);
+                progress.put(ContentIngestionModel.IngestionProgressAspect.Prop.LAST_COMMITTED_ENTRY,
+                        lastFileEntryName);
+                serviceRegistry.getNodeService().addAspect(isbnFolderNodeRef,
+                        ContentIngestionModel.IngestionProgressAspect.QNAME, progress);
+                return null;
+            }
+        });
+
+        for (StreamedEntry streamedEntry : streamedEntries) {
+            ingestionMetrics.entryStored(streamedEntry.zipEntry.getSize(), streamedEntry.startNanos);
+        }
+        ingestion.entriesStored(streamedEntries.size(), bytes);
+    }
+
+    /**
+     * Record why a pushed ZIP failed on its ISBN folder, in a new transaction, so it can be polled from any node.
+     * This is best effort, the repository might be why the ZIP failed.
+     *
+     * @param isbnFolderNodeRef the ISBN folder the ZIP was ingested into
+     * @param isbn              the related ISBN number
+     * @param error             what the ingestion failed with
+     */
+    private void recordStreamedIngestionError(final NodeRef isbnFolderNodeRef, String isbn,
+                                              final RuntimeException error) {
+        try {
+            getTransactionHelper().doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+                public Void execute() throws Throwable {
+                    serviceRegistry.getNodeService().setProperty(isbnFolderNodeRef,
+                            ContentIngestionModel.IngestionProgressAspect.Prop.INGESTION_ERROR,
+                            String.valueOf(error.getMessage()));
+                    return null;
+                }
+            }, false, true);
+        } catch (RuntimeException re) {
+            LOG.warn("Could not record the error of the pushed ZIP for ISBN {} [error={}]", isbn, re.getMessage());
+        }
+    }
+
+    /**
+     * Import the content ZIP through the {@link IngestionPipeline}. The entries are inflated into memory by the
+     * inflate stage, and written in their own transactions by the store stage. When the last entry has been stored,
+     * the finalize stage sets the ISBN folder to COMPLETE. The ISBN folder and its sub-folders are committed first,
+     * so the store stage can see them.
+     *
+     * @param file                  the content ZIP file
+     * @param alfrescoFolderNodeRef the node ref for /Company Home/Data Dictionary/BestPub/Incoming/Content
+     * @param isbn                  the book ISBN 13 number
+     * @param lease                 the lease on the ISBN, null if it is not leased
+     */
+    private void importZipFileContentPipelined(File file, final NodeRef alfrescoFolderNodeRef, final String isbn,
+                                               IsbnLeaseService.IsbnLease lease) {
+        ZipEntryRoutingTable routingTable = createIsbnFolderInNewTransaction(alfrescoFolderNodeRef, isbn);
+        NodeRef isbnFolderNodeRef = routingTable.getIsbnFolderNodeRef();
+
+        ContentZipArchive zipFile;
+        try {
+            zipFile = openZipFile(file);
+        } catch (IOException ioe) {
+            throw zipExtractionFailed(isbnFolderNodeRef, isbn, file.getName(), ioe, true);
+        }
+
+        try {
+            List<ZipEntry> fileEntries = new ArrayList<ZipEntry>();
+            Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+            while (enumeration.hasMoreElements()) {
+                ZipEntry zipEntry = enumeration.nextElement();
+                if (!zipEntry.isDirectory()) {
+                    fileEntries.add(zipEntry);
+                }
+            }
+
+            PipelinedZipImport zipImport = new PipelinedZipImport(zipFile, routingTable,
+                    AuthenticationUtil.getRunAsUser(), lease, fileEntries.size());
+            for (int i = 0; i < fileEntries.size(); i++) {
+                try {
+                    zipImport.submit(fileEntries.get(i));
+                } catch (RejectedExecutionException ree) {
+                    // The entries that were never handed to the pipeline are done as well
+                    zipImport.failed(ree);
+                    for (int j = i; j < fileEntries.size(); j++) {
+                        zipImport.entryDone();
+                    }
+                    break;
+                }
+            }
+
+            Throwable error = zipImport.awaitFinalized();
+            if (error != null) {
+                throw entryImportFailed(isbnFolderNodeRef, isbn, zipFile.getName(), error);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IngestionException("Interrupted while importing content ZIP " + file.getName());
+        } finally {
+            try {
+                zipFile.close();
+            } catch (IOException ioe) {
+                LOG.warn("Could not close content ZIP {}", file.getName());
+            }
+        }
+    }
+
+    /**
+     * One content ZIP going through the {@link IngestionPipeline}, keeps track of the entries still to be stored
+     * and of the first error. After an error, the remaining entries are passed along without being imported.
+     */
+    private class PipelinedZipImport {
+        private final ContentZipArchive zipFile;
+        private final ZipEntryRoutingTable routingTable;
+        private final String runAsUser;
+        private final IsbnLeaseService.IsbnLease lease;
+        private final AtomicInteger entriesLeft;
+        private final AtomicReference<Throwable> firstError = new AtomicReference<Throwable>();
+        private final CountDownLatch finalized = new CountDownLatch(1);
+
+        private PipelinedZipImport(ContentZipArchive zipFile, ZipEntryRoutingTable routingTable, String runAsUser,
+                                   IsbnLeaseService.IsbnLease lease, int entryCount) {
+            this.zipFile = zipFile;
+            this.routingTable = routingTable;
+            this.runAsUser = runAsUser;
+            this.lease = lease;
+            this.entriesLeft = new AtomicInteger(entryCount);
+            if (entryCount == 0) {
+                submitFinalize();
+            }
+        }
+
+        /**
+         * Hand an entry to the inflate stage, waits while the stage is full
+         */
+        private void submit(final ZipEntry zipEntry) {
+            ingestionPipeline.getInflateStage().submit(new Runnable() {
+                @Override
+                public void run() {
+                    inflate(zipEntry);
+                }
+            });
+        }
+
+        /**
+         * Inflate stage, read the entry into memory and hand it to the store stage
+         */
+        private void inflate(final ZipEntry zipEntry) {
+            try {
+                if (firstError.get() != null) {
+                    entryDone();
+                    return;
+                }
+
+                final ContentZipArchive entryArchive;
+                if (zipEntry.getSize() >= 0 && zipEntry.getSize() <= maxInflatedEntryBytes) {
+                    InputStream is = zipFile.getInputStream(zipEntry);
+                    try {
+                        entryArchive = new InflatedZipEntryArchive(zipFile, zipEntry,
+                                IOUtils.toByteArray(is, zipEntry.getSize()));
+                    } finally {
+                        is.close();
+                    }
+                } else {
+                    entryArchive = zipFile;
+                }
+
+                ingestionPipeline.getStoreStage().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        store(entryArchive, zipEntry);
+                    }
+                });
+            } catch (Throwable t) {
+                failed(t);
+                entryDone();
+            }
+        }
+
+        /**
+         * Store stage, create the file node and write the content in a new transaction
+         */
+        private void store(ContentZipArchive entryArchive, ZipEntry zipEntry) {
+            try {
+                if (firstError.get() == null) {
+                    checkLease(lease);
+                    importZipFileEntry(entryArchive, zipEntry, routingTable, runAsUser);
+                }
+            } catch (Throwable t) {
+                failed(t);
+            } finally {
+                entryDone();
+            }
+        }
+
+        private void failed(Throwable t) {
+            firstError.compareAndSet(null, t);
+        }
+
+        /**
+         * An entry has been stored, skipped, or failed, the last one hands the ZIP to the finalize stage
+         */
+        private void entryDone() {
+            if (entriesLeft.decrementAndGet() == 0) {
+                submitFinalize();
+            }
+        }
+
+        private void submitFinalize() {
+            try {
+                ingestionPipeline.getFinalizeStage().submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        finalizeImport();
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                failed(ree);
+                finalized.countDown();
+            }
+        }
+
+        /**
+         * Finalize stage, every entry has been committed, setup ISBN as ready to be fetched by workflow
+         */
+        private void finalizeImport() {
+            try {
+                if (firstError.get() == null) {
+                    checkLease(lease);
+                    AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Void>() {
+                        public Void doWork() throws Exception {
+                            return getTransactionHelper().doInTransaction(
+                                    new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+                                        public Void execute() throws Throwable {
+                                            setIngestionComplete(routingTable.getIsbnFolderNodeRef());
+                                            return null;
+                                        }
+                                    }, false, true);
+                        }
+                    }, runAsUser);
+                }
+            } catch (Throwable t) {
+                failed(t);
+            } finally {
+                finalized.countDown();
+            }
+        }
+
+        /**
+         * @return the first error, or null if the ZIP was imported and set to COMPLETE
+         */
+        private Throwable awaitFinalized() throws InterruptedException {
+            finalized.await();
+            return firstError.get();
+        }
+    }
+
+    /**
+     * Import the content ZIP in a sequence of small transactions, committing every N entries or M bytes,
+     * whichever comes first. Only the entries of the current chunk are held in memory. After each commit
+     * the progress is recorded on the ISBN folder, which stays IN_PROGRESS until the last chunk is committed.
+     *
+     * @param file                  the content ZIP file
+     * @param alfrescoFolderNodeRef the node ref for /Company Home/Data Dictionary/BestPub/Incoming/Content
+     * @param isbn                  the book ISBN 13 number
+     * @param lease                 the lease on the ISBN, null if it is not leased
+     */
+    private void importZipFileContentInChunks(File file, final NodeRef alfrescoFolderNodeRef, final String isbn,
+                                              IsbnLeaseService.IsbnLease lease) {
+        ZipEntryRoutingTable routingTable = createIsbnFolderInNewTransaction(alfrescoFolderNodeRef, isbn);
+        importZipFileEntriesInChunks(file, routingTable, isbn, false, lease);
+    }
+
+    /**
+     * Import the entries of a content ZIP in chunks into an ISBN folder structure that has been committed,
+     * and set the ISBN folder to COMPLETE when the last chunk is committed.
+     *
+     * When resuming, the entries before the recorded checkpoint are skipped without looking at them,
+     * and the entries after it are only imported if they are not already stored with the same CRC-32 and size,
+     * which covers entries committed by a PARALLEL import or after the last checkpoint.
+     *
+     * @param file         the content ZIP file
+     * @param routingTable the ISBN folder structure to import into
+     * @param isbn         the book ISBN 13 number
+     * @param resuming     true if the ISBN folder might already have some of the entries
+     * @param lease        the lease on the ISBN, null if it is not leased
+     */
+    private void importZipFileEntriesInChunks(File file, final ZipEntryRoutingTable routingTable, final String isbn,
+                                              boolean resuming, IsbnLeaseService.IsbnLease lease) {
+        final NodeRef isbnFolderNodeRef = routingTable.getIsbnFolderNodeRef();
+
+        ContentZipArchive zipFile = null;
+        String zipFileName = file.getName();
+        try {
+            zipFile = openZipFile(file);
+            zipFileName = zipFile.getName();
+
+            int checkpointEntries = resuming ? getCheckpointEntries(zipFile, isbnFolderNodeRef) : 0;
+            if (checkpointEntries > 0) {
+                LOG.info("Resuming content ingestion for ISBN {} after entry {}", isbn, checkpointEntries);
+            }
+
+            List<ZipEntry> chunk = new ArrayList<ZipEntry>();
+            long chunkBytes = 0;
+            int entriesCommitted = 0;
+            long bytesCommitted = 0;
+            Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+            while (enumeration.hasMoreElements()) {
+                ZipEntry zipEntry = enumeration.nextElement();
+                if (zipEntry.isDirectory()) {
+                    continue;
+                }
+
+                if (entriesCommitted < checkpointEntries) {
+                    // Committed before the ingestion was interrupted
+                    entriesCommitted++;
+                    bytesCommitted += Math.max(zipEntry.getSize(), 0);
+                    continue;
+                }
+
+                chunk.add(zipEntry);
+                chunkBytes += Math.max(zipEntry.getSize(), 0);
+                if (chunk.size() >= commitEveryEntries || chunkBytes >= commitEveryBytes) {
+                    checkLease(lease);
+                    entriesCommitted += chunk.size();
+                    bytesCommitted += chunkBytes;
+                    commitChunk(zipFile, chunk, routingTable, entriesCommitted, bytesCommitted, resuming);
+                    chunk.clear();
+                    chunkBytes = 0;
+                }
+            }
+
+            if (!chunk.isEmpty()) {
+                checkLease(lease);
+                entriesCommitted += chunk.size();
+                bytesCommitted += chunkBytes;
+                commitChunk(zipFile, chunk, routingTable, entriesCommitted, bytesCommitted, resuming);
+            }
+
+            LOG.debug("Imported {} entries ({} bytes) for ISBN {}", entriesCommitted, bytesCommitted, isbn);
+        } catch (IOException ioe) {
+            throw zipExtractionFailed(isbnFolderNodeRef, isbn, zipFileName, ioe, true);
+        } finally {
+            if (zipFile != null) {
+                try {
+                    zipFile.close();
+                } catch (IOException ioe) {
+                    LOG.warn("Could not close content ZIP {}", zipFileName);
+                }
+            }
+        }
+
+        checkLease(lease);
+        getTransactionHelper().doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+            public Void execute() throws Throwable {
+                setIngestionComplete(isbnFolderNodeRef);
+                return null;
+            }
+        }, false, true);
+    }
+
+    /**
+     * Import a chunk of ZIP entries in one retrying transaction, and record the progress
+     * on the ISBN folder in the same transaction.
+     *
+     * @param zipFile           the content ZIP
+     * @param chunk             the entries to import
+     * @param routingTable      the ISBN folder structure to import into
+     * @param entriesCommitted  total number of entries committed, including this chunk
+     * @param bytesCommitted    total number of bytes committed, including this chunk
+     * @param resuming          true if some of the entries might already be stored
+     * @throws IOException if an entry could not be read from the ZIP
+     */
+    private void commitChunk(final ContentZipArchive zipFile, final List<ZipEntry> chunk, final ZipEntryRoutingTable routingTable,
+                             final int entriesCommitted, final long bytesCommitted, final boolean resuming)
+            throws IOException {
+        try {
+            doInEntryTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+                public Void execute() throws Throwable {
+                    for (ZipEntry zipEntry : chunk) {
+                        processZipFileEntry(zipFile, zipEntry, routingTable, resuming);
+                    }
+
+                    Map<QName, Serializable> progress = new HashMap<QName, Serializable>();
+                    progress.put(ContentIngestionModel.IngestionProgressAspect.Prop.ENTRIES_COMMITTED, entriesCommitted);
+                    progress.put(ContentIngestionModel.IngestionProgressAspect.Prop.BYTES_COMMITTED, bytesCommitted);
+                    progress.put(ContentIngestionModel.IngestionProgressAspect.Prop.LAST_COMMITTED_ENTRY,
+                            chunk.get(chunk.size() - 1).getName());
+                    serviceRegistry.getNodeService().addAspect(routingTable.getIsbnFolderNodeRef(),
+                            ContentIngestionModel.IngestionProgressAspect.QNAME, progress);
+                    return null;
+                }
+            });
+        } catch (AlfrescoRuntimeException are) {
+            if (are.getCause() instanceof IOException) {
+                throw (IOException) are.getCause();
+            }
+            throw are;
+        }
+    }
+
+    /**
+     * Get the number of file entries that were committed before an interrupted CHUNKED import.
+     * The checkpoint is only used if it matches the ZIP, the last committed entry recorded on the
+     * ISBN folder has to be the file entry at that position in the ZIP.
+     *
+     * @param zipFile           the content ZIP
+     * @param isbnFolderNodeRef the ISBN folder with the interrupted import
+     * @return the number of file entries, in ZIP order, that do not have to be looked at again
+     */
+    private int getCheckpointEntries(ContentZipArchive zipFile, final NodeRef isbnFolderNodeRef) {
+        Map<QName, Serializable> progress = getTransactionHelper().doInTransaction(
+                new RetryingTransactionHelper.RetryingTransactionCallback<Map<QName, Serializable>>() {
+                    public Map<QName, Serializable> execute() throws Throwable {
+                        NodeService nodeService = serviceRegistry.getNodeService();
+                        if (!nodeService.hasAspect(isbnFolderNodeRef,
+                                ContentIngestionModel.IngestionProgressAspect.QNAME)) {
+                            return null;
+                        }
+                        return nodeService.getProperties(isbnFolderNodeRef);
+                    }
+                }, true, true);
+        if (progress == null) {
+            return 0;
+        }
+
+        Integer entriesCommitted = (Integer) progress.get(
+                ContentIngestionModel.IngestionProgressAspect.Prop.ENTRIES_COMMITTED);
+        String lastCommittedEntry = (String) progress.get(
+                ContentIngestionModel.IngestionProgressAspect.Prop.LAST_COMMITTED_ENTRY);
+        if (entriesCommitted == null || entriesCommitted <= 0 || lastCommittedEntry == null) {
+            return 0;
+        }
+
+        int fileEntries = 0;
+        Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+        while (enumeration.hasMoreElements()) {
+            ZipEntry zipEntry = enumeration.nextElement();
+            if (!zipEntry.isDirectory() && ++fileEntries == entriesCommitted) {
+                return zipEntry.getName().equals(lastCommittedEntry) ? entriesCommitted : 0;
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Import one ZIP entry in its own retrying transaction, the entry stream is opened
+     * inside the transaction so a retry reads the entry again from the start.
+     */
+    private void importZipFileEntry(final ContentZipArchive zipFile, final ZipEntry zipEntry,
+                                    final ZipEntryRoutingTable routingTable, String runAsUser) {
+        AuthenticationUtil.runAs(new AuthenticationUtil.RunAsWork<Void>() {
+            public Void doWork() throws Exception {
+                return doInEntryTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+                    public Void execute() throws Throwable {
+                        processZipFileEntry(zipFile, zipEntry, routingTable, false);
+                        return null;
+                    }
+                });
+            }
+        }, runAsUser);
+    }
+
+    /**
+     * Create the ISBN folder and its sub-folders, and commit them, so they can be used
+     * from other transactions.
+     *
+     * @param alfrescoFolderNodeRef the node ref for /Company Home/Data Dictionary/BestPub/Incoming/Content
+     * @param isbn                  the book ISBN 13 number
+     * @return the routing table for the committed ISBN folder structure
+     */
+    private ZipEntryRoutingTable createIsbnFolderInNewTransaction(final NodeRef alfrescoFolderNodeRef,
+                                                                  final String isbn) {
+        return getTransactionHelper().doInTransaction(
+                new RetryingTransactionHelper.RetryingTransactionCallback<ZipEntryRoutingTable>() {
+                    public ZipEntryRoutingTable execute() throws Throwable {
+                        return createIsbnFolder(alfrescoFolderNodeRef, isbn);
+                    }
+                }, false, true);
+    }
+
+    /**
+     * Setup ISBN folder as completely ingested
+     *
+     * @param isbnFolderNodeRef the ISBN folder that now has all its content
+     */
+    private void setIngestionComplete(NodeRef isbnFolderNodeRef) {
         serviceRegistry.getNodeService().setProperty(
                 isbnFolderNodeRef, BestPubContentModel.BookFolderType.Prop.INGESTION_STATUS,
                 BestPubContentModel.IngestionStatus.COMPLETE.toString());
     }
 
     /**
-     * Create the ISBN folder in the /Company Home/Data Dictionary/BestPub/Incoming/Content folder.
+     * Run a new retrying transaction that writes ZIP entries, with behaviours suppressed, and record how
+     * long it took to run and commit, the repository health signal of the concurrency limiter
+     *
+     * @param callback the transaction work
+     * @return what the transaction work returned
+     */
+    private <R> R doInEntryTransaction(RetryingTransactionHelper.RetryingTransactionCallback<R> callback) {
+        long startNanos = System.nanoTime();
+        R result = getTransactionHelper().doInTransaction(behaviourSuppressor.suppressing(callback), false, true);
+        ingestionMetrics.getCommitLatency().record(System.nanoTime() - startNanos);
+        return result;
+    }
+
+    private RetryingTransactionHelper getTransactionHelper() {
+        return serviceRegistry.getTransactionService().getRetryingTransactionHelper();
+    }
+
+    /**
+     * Open a content ZIP file with the configured reader
+     *
+     * @param file the content ZIP file
+     * @return the opened ZIP, to be closed by the caller
+     * @throws IOException if the ZIP could not be opened
+     */
+    private ContentZipArchive openZipFile(File file) throws IOException {
+        if (zipReader == ZipReader.MAPPED) {
+            return new MappedZipArchive(file);
+        }
+        return new ContentZipFile(file);
+    }
+
+    /**
+     * Create the ISBN folder, with all its sub-folders, in the /Company Home/Data Dictionary/BestPub/Incoming/Content
+     * folder.
      *
      * @param parentContentFolderNodeRef the node ref for /Company Home/Data Dictionary/BestPub/Incoming/Content
      * @param isbn the book ISBN 13 number
-     * @return the folder node reference for this new ISBN folder, pointing to
+     * @return the routing table for the new ISBN folder structure, the ISBN folder is pointing to
      * /Company Home/Data Dictionary/BestPub/Incoming/Content/{ISBN}
      */
-    private NodeRef createIsbnFolder(NodeRef parentContentFolderNodeRef, String isbn) {
-        LOG.debug("Creating ISBN folder for {} content", isbn);
-
-        Map<QName, Serializable> properties = new HashMap<QName, Serializable>();
-        properties.put(ContentModel.PROP_NAME, isbn);
-        properties.put(BestPubContentModel.BookInfoAspect.Prop.ISBN, isbn);
-        properties.put(BestPubContentModel.BookFolderType.Prop.INGESTION_STATUS,
-                BestPubContentModel.IngestionStatus.IN_PROGRESS.toString());
-
-        return serviceRegistry.getNodeService().createNode(parentContentFolderNodeRef,
-                ContentModel.ASSOC_CONTAINS, QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, isbn),
-                BestPubContentModel.BookFolderType.QNAME, properties).getChildRef();
+    private ZipEntryRoutingTable createIsbnFolder(NodeRef parentContentFolderNodeRef, String isbn) {
+        long startNanos = System.nanoTime();
+        ZipEntryRoutingTable routingTable = isbnFolderProvisioner.provision(parentContentFolderNodeRef, isbn);
+        ingestionMetrics.getCreateIsbnFolderLatency().record(System.nanoTime() - startNanos);
+        return routingTable;
     }
 
     /**
      * Unzip passed in file to a temporary location in the local filesystem.
      * Then process each ZIP file entry.
      *
-     * @param isbnFolderNodeRef ISBN folder node reference where all content are stored
+     * @param routingTable      ISBN folder structure where all content are stored
      * @param isbn              the related ISBN number
      * @param file              the file to unzip
-     * @return the new folder with unzipped content
+     * @param lease             the lease on the ISBN, null if it is not leased
      */
-    private void processZipFile(NodeRef isbnFolderNodeRef, String isbn, File file) {
-        ZipFile zipFile;
+    private void processZipFile(ZipEntryRoutingTable routingTable, String isbn, File file,
+                                IsbnLeaseService.IsbnLease lease) {
+        ContentZipArchive zipFile;
         String zipFileName = "Unknown";
 
         try {
-            zipFile = new ZipFile(file);
+            zipFile = openZipFile(file);
             zipFileName = zipFile.getName();
-            Enumeration enumeration = zipFile.entries();
+            Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
             while (enumeration.hasMoreElements()) {
-                ZipEntry zipEntry = (ZipEntry) enumeration.nextElement();
+                ZipEntry zipEntry = enumeration.nextElement();
                 if (!zipEntry.isDirectory()) {
                     // If the entry is a file, ingest into Alfresco in current folder
                     // (current folder will be what matches current ZIP directory)
-                    // Note. the input stream for the entry is closed by Alfresco ContentWriter,
-                    // and also when you close ZipFile
-                    BufferedInputStream bis = new BufferedInputStream(zipFile.getInputStream(zipEntry));
-                    processZipFileEntry(zipEntry, bis, isbnFolderNodeRef);
+                    checkLease(lease);
+                    processZipFileEntry(zipFile, zipEntry, routingTable, false);
                 }
             }
 
             zipFile.close();
         } catch (IOException ioe) {
-            String msg = "Error extracting content ZIP " + zipFileName + " [error=" + ioe.getMessage() + "]";
+            throw zipExtractionFailed(routingTable.getIsbnFolderNodeRef(), isbn, zipFileName, ioe, false);
+        }
+    }
+
+    /**
+     * Compare the entries in the ZIP with the files in the ISBN folder structure, by the ZIP entry CRC-32
+     * and size recorded on each file, and only write the content that has changed.
+     *
+     * @param routingTable ISBN folder structure with the previously published content
+     * @param isbn         the related ISBN number
+     * @param file         the content ZIP file
+     * @param lease        the lease on the ISBN, null if it is not leased
+     * @return the files that were added or updated
+     */
+    private List<NodeRef> republishZipFile(ZipEntryRoutingTable routingTable, String isbn, File file,
+                                           IsbnLeaseService.IsbnLease lease) {
+        NodeService nodeService = serviceRegistry.getNodeService();
+        ContentZipArchive zipFile = null;
+        String zipFileName = file.getName();
+        List<NodeRef> changedFileNodeRefs = new ArrayList<NodeRef>();
+        int added = 0;
+        int updated = 0;
+        int unchanged = 0;
+
+        try {
+            zipFile = openZipFile(file);
+            zipFileName = zipFile.getName();
+
+            Set<NodeRef> publishedFileNodeRefs = new HashSet<NodeRef>();
+            Enumeration<? extends ZipEntry> enumeration = zipFile.entries();
+            while (enumeration.hasMoreElements()) {
+                ZipEntry zipEntry = enumeration.nextElement();
+                if (zipEntry.isDirectory()) {
+                    continue;
+                }
+
+                String filename = FilenameUtils.getName(zipEntry.getName());
+                String zipDirName = FilenameUtils.getPathNoEndSeparator(zipEntry.getName());
+                NodeRef targetFolderNodeRef = routingTable.getTargetFolder(zipDirName, filename);
+                if (targetFolderNodeRef == null) {
+                    LOG.warn("Found {} in the {} directory, will not ingest", filename, zipDirName);
+                    continue;
+                }
+
+                checkLease(lease);
+                long startNanos = System.nanoTime();
+                NodeRef fileNodeRef = nodeService.getChildByName(
+                        targetFolderNodeRef, ContentModel.ASSOC_CONTAINS, filename);
+                if (fileNodeRef == null) {
+                    fileNodeRef = createContentNode(targetFolderNodeRef, filename);
+                    writeZipFileEntry(zipFile, zipEntry, fileNodeRef, filename,
+                            contentDeduplicator.isDeduplicated(zipDirName), startNanos);
+                    changedFileNodeRefs.add(fileNodeRef);
+                    added++;
+                } else if (isSameZipFileEntry(fileNodeRef, zipEntry)) {
+                    unchanged++;
+                } else {
+                    writeZipFileEntry(zipFile, zipEntry, fileNodeRef, filename,
+                            contentDeduplicator.isDeduplicated(zipDirName), startNanos);
+                    changedFileNodeRefs.add(fileNodeRef);
+                    updated++;
+                }
+                publishedFileNodeRefs.add(fileNodeRef);
+            }
+
+            checkLease(lease);
+            int removed = removeUnpublishedFiles(routingTable, publishedFileNodeRefs);
+
+            LOG.info("Republished content for ISBN {} [added={}][updated={}][removed={}][unchanged={}]",
+                    new Object[]{isbn, added, updated, removed, unchanged});
+            return changedFileNodeRefs;
+        } catch (IOException ioe) {
+            throw zipExtractionFailed(routingTable.getIsbnFolderNodeRef(), isbn, zipFileName, ioe, true);
+        } finally {
+            if (zipFile != null) {
+                try {
+                    zipFile.close();
+                } catch (IOException ioe) {
+                    LOG.warn("Could not close content ZIP {}", zipFileName);
+                }
+            }
+        }
+    }
 
-            // Create a new text file in the ISBN folder with the error message, will be picked
-            // up by the 'T5: Check For Content Error Messages' script task
-            SimpleDateFormat sdf = new SimpleDateFormat("YYYY-MM-dd HH:mm:ss");
-            String currentDateAndTime = sdf.format(new Date());
-            String errorFileName = isbn + "-" + currentDateAndTime + ".txt";
+    /**
+     * @return true if the file was imported from a ZIP entry with the same CRC-32 and size
+     */
+    private boolean isSameZipFileEntry(NodeRef fileNodeRef, ZipEntry zipEntry) {
+        if (zipEntry.getCrc() < 0 || zipEntry.getSize() < 0) {
+            return false;
+        }
+
+        NodeService nodeService = serviceRegistry.getNodeService();
+        if (!nodeService.hasAspect(fileNodeRef, ContentIngestionModel.EntryFingerprintAspect.QNAME)) {
+            // Imported before fingerprints were recorded
+            return false;
+        }
+
+        Long crc = (Long) nodeService.getProperty(
+                fileNodeRef, ContentIngestionModel.EntryFingerprintAspect.Prop.ENTRY_CRC);
+        Long size = (Long) nodeService.getProperty(
+                fileNodeRef, ContentIngestionModel.EntryFingerprintAspect.Prop.ENTRY_SIZE);
+        return crc != null && crc == zipEntry.getCrc() && size != null && size == zipEntry.getSize();
+    }
+
+    /**
+     * Remove the files that are no longer in the content ZIP. Files directly in the ISBN folder are only removed
+     * if they were imported from a ZIP entry, other files there, such as error messages, are left alone.
+     *
+     * @param routingTable          ISBN folder structure with the previously published content
+     * @param publishedFileNodeRefs the files that are in the content ZIP
+     * @return the number of files removed
+     */
+    private int removeUnpublishedFiles(ZipEntryRoutingTable routingTable, Set<NodeRef> publishedFileNodeRefs) {
+        NodeService nodeService = serviceRegistry.getNodeService();
+        int removed = 0;
+        for (NodeRef folderNodeRef : new LinkedHashSet<NodeRef>(routingTable.getFolders())) {
+            boolean isbnFolder = folderNodeRef.equals(routingTable.getIsbnFolderNodeRef());
+            List<ChildAssociationRef> fileAssocs = nodeService.getChildAssocs(
+                    folderNodeRef, Collections.singleton(ContentModel.TYPE_CONTENT));
+            for (ChildAssociationRef fileAssoc : fileAssocs) {
+                NodeRef fileNodeRef = fileAssoc.getChildRef();
+                if (publishedFileNodeRefs.contains(fileNodeRef) || (isbnFolder &&
+                        !nodeService.hasAspect(fileNodeRef, ContentIngestionModel.EntryFingerprintAspect.QNAME))) {
+                    continue;
+                }
+
+                LOG.debug("Removing {}, it is no longer in the content ZIP",
+                        nodeService.getProperty(fileNodeRef, ContentModel.PROP_NAME));
+                nodeService.deleteNode(fileNodeRef);
+                removed++;
+            }
+        }
+
+        return removed;
+    }
+
+    /**
+     * Create a new text file in the ISBN folder with the error message, will be picked
+     * up by the 'T5: Check For Content Error Messages' script task
+     *
+     * @param isbnFolderNodeRef ISBN folder node reference where the error file is stored
+     * @param isbn              the related ISBN number
+     * @param zipFileName       the name of the ZIP that could not be extracted
+     * @param ioe               the extraction error
+     * @param newTransaction    true if the error file should be written in its own transaction
+     * @return the exception to throw
+     */
+    private IngestionException zipExtractionFailed(final NodeRef isbnFolderNodeRef, String isbn, String zipFileName,
+                                                   IOException ioe, boolean newTransaction) {
+        final String msg = "Error extracting content ZIP " + zipFileName + " [error=" + ioe.getMessage() + "]";
+
+        SimpleDateFormat sdf = new SimpleDateFormat("YYYY-MM-dd HH:mm:ss");
+        String currentDateAndTime = sdf.format(new Date());
+        final String errorFileName = isbn + "-" + currentDateAndTime + ".txt";
+        if (newTransaction) {
+            getTransactionHelper().doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<Void>() {
+                public Void execute() throws Throwable {
+                    alfrescoRepoUtilsService.createFile(
+                            isbnFolderNodeRef, errorFileName, MimetypeMap.MIMETYPE_TEXT_PLAIN, msg);
+                    return null;
+                }
+            }, false, true);
+        } else {
             alfrescoRepoUtilsService.createFile(isbnFolderNodeRef, errorFileName, MimetypeMap.MIMETYPE_TEXT_PLAIN, msg);
+        }
+
+        return new IngestionException(ProcessingErrorCode.CONTENT_INGESTION_EXTRACT_ZIP, msg);
+    }
 
-            throw new IngestionException(ProcessingErrorCode.CONTENT_INGESTION_EXTRACT_ZIP, msg);
+    /**
+     * Get the exception to throw for the first error of an import whose entries were written on other threads.
+     * Only an entry that could not be read from the ZIP gets an error file for the workflow. A repository error,
+     * such as a deadlock or a commit timeout, or a lost lease, is thrown as it is, the ISBN is resumed later.
+     *
+     * @param isbnFolderNodeRef ISBN folder node reference where the error file is stored
+     * @param isbn              the related ISBN number
+     * @param zipFileName       the name of the ZIP that was imported
+     * @param error             the first error an entry failed with
+     * @return the exception to throw
+     */
+    private RuntimeException entryImportFailed(NodeRef isbnFolderNodeRef, String isbn, String zipFileName,
+                                               Throwable error) {
+        if (error instanceof IOException) {
+            return zipExtractionFailed(isbnFolderNodeRef, isbn, zipFileName, (IOException) error, true);
+        }
+        if (error instanceof AlfrescoRuntimeException && !(error instanceof ContentIOException) &&
+                error.getCause() instanceof IOException) {
+            // The entry transaction wraps the ZIP read error
+            return zipExtractionFailed(isbnFolderNodeRef, isbn, zipFileName, (IOException) error.getCause(), true);
+        }
+        if (error instanceof RuntimeException) {
+            return (RuntimeException) error;
+        }
+        if (error instanceof Error) {
+            throw (Error) error;
         }
+        return new IngestionException("Could not import content ZIP " + zipFileName + " [error=" + error + "]");
     }
 
     /**
      * Extracts a zip entry (file entry) and stores in Alfresco in matching ISBN sub-folder, such as /Chapters
      *
+     * @param zipFile             the ZIP the entry is in
      * @param fileEntry           the ZIP information about the file
-     * @param is                  input stream for the ZIP file entry
-     * @param isbnFolderNodeRef   the Alfresco node reference for the ISBN folder in Data Dictionary
+     * @param routingTable        the Alfresco ISBN folder structure in Data Dictionary
      *                            where the content file should be stored
+     * @param resuming            true if the file might already be stored, then it is only written if it
+     *                            is not stored with the same ZIP entry CRC-32 and size
+     * @throws IOException if the entry could not be read from the ZIP
      */
-    private void processZipFileEntry(ZipEntry fileEntry, InputStream is, NodeRef isbnFolderNodeRef) {
+    private void processZipFileEntry(ContentZipArchive zipFile, ZipEntry fileEntry, ZipEntryRoutingTable routingTable,
+                                     boolean resuming) throws IOException {
         // Get from content/9780486282145-Chapter-1.pdf to 9780486282145-Chapter-1.pdf
         String filename = FilenameUtils.getName(fileEntry.getName());
         // Get from content/9780486282145-Chapter-1.pdf to content
         String zipDirName = FilenameUtils.getPathNoEndSeparator(fileEntry.getName());
 
-        if (StringUtils.isBlank(zipDirName)) {
-            // Most likely the package.opf file with the EPub layout
-            alfrescoRepoUtilsService.createFile(isbnFolderNodeRef, filename, is);
-        } else if (StringUtils.equalsIgnoreCase(zipDirName, ZIP_CONTENT_DIR_NAME)) {
-            if (filename.toLowerCase().contains(ZIP_CHAPTER_FILENAME_PART)) {
-                // We got a chapter XHTML file, store it under the {ISBN}/Chapters
-                NodeRef chapterFolderNodeRef = alfrescoRepoUtilsService.getOrCreateFolder(isbnFolderNodeRef,
-                        CHAPTERS_FOLDER_NAME);
-                alfrescoRepoUtilsService.createFile(chapterFolderNodeRef, filename, is);
-            } else {
-                if (filename.endsWith(".xhtml")) {
-                    // We got a Supplementary file like ToC or Cover Image, store it under the {ISBN}/Supplementary
-                    NodeRef supplementaryFolderNodeRef = alfrescoRepoUtilsService.getOrCreateFolder(isbnFolderNodeRef,
-                            SUPPLEMENTARY_FOLDER_NAME);
-                    alfrescoRepoUtilsService.createFile(supplementaryFolderNodeRef, filename, is);
-                } else {
-                    LOG.warn("Found {} in the {} directory, will not ingest", filename, zipDirName);
-                }
+        NodeRef targetFolderNodeRef = routingTable.getTargetFolder(zipDirName, filename);
+        if (targetFolderNodeRef == null) {
+            LOG.warn("Found {} in the {} directory, will not ingest", filename, zipDirName);
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        NodeRef fileNodeRef = null;
+        if (resuming) {
+            fileNodeRef = serviceRegistry.getNodeService().getChildByName(
+                    targetFolderNodeRef, ContentModel.ASSOC_CONTAINS, filename);
+            if (fileNodeRef != null && isSameZipFileEntry(fileNodeRef, fileEntry)) {
+                // Stored before the ingestion was interrupted
+                return;
+            }
+        }
+
+        if (fileNodeRef == null) {
+            fileNodeRef = createContentNode(targetFolderNodeRef, filename);
+        }
+        writeZipFileEntry(zipFile, fileEntry, fileNodeRef, filename, contentDeduplicator.isDeduplicated(zipDirName),
+                startNanos);
+    }
+
+    /**
+     * Set the content of a file node from a ZIP entry, and record the entry fingerprint on the node.
+     * STORED (uncompressed) entries are transferred straight from the ZIP file into the file channel of
+     * the content writer, so the bytes are never copied through the heap. Shared content is hashed while
+     * it is written, and content that is already stored is reused instead of written again.
+     *
+     * @param zipFile      the ZIP the entry is in
+     * @param fileEntry    the ZIP information about the file
+     * @param fileNodeRef  the file node to set the content for
+     * @param filename     the name of the file
+     * @param deduplicated true if the content might already be stored
+     * @param startNanos   {@link System#nanoTime()} when creating the file started, for the metrics
+     * @throws IOException if the entry could not be read from the ZIP
+     */
+    private void writeZipFileEntry(ContentZipArchive zipFile, ZipEntry fileEntry, NodeRef fileNodeRef,
+                                   String filename, boolean deduplicated, long startNanos) throws IOException {
+        String mimetype = serviceRegistry.getMimetypeService().guessMimetype(filename);
+        if (deduplicated) {
+            ContentDeduplicator.Duplicate duplicate = contentDeduplicator.findDuplicate(zipFile, fileEntry);
+            if (duplicate != null) {
+                serviceRegistry.getNodeService().setProperty(fileNodeRef, ContentModel.PROP_CONTENT,
+                        new ContentData(duplicate.getContentUrl(), mimetype, fileEntry.getSize(), "UTF-8"));
+                contentDeduplicator.addFingerprint(fileNodeRef, fileEntry, duplicate.getSha256());
+                ingestionMetrics.entryStored(fileEntry.getSize(), startNanos);
+                return;
+            }
+        }
+
+        MessageDigest digest = deduplicated ? contentDeduplicator.newDigest() : null;
+        ContentWriter writer = serviceRegistry.getContentService().getWriter(
+                fileNodeRef, ContentModel.PROP_CONTENT, true);
+        writer.setMimetype(mimetype);
+        writer.setEncoding("UTF-8");
+
+        long dataOffset = storedEntryTransferEnabled ? zipFile.getStoredDataOffset(fileEntry) : -1;
+        if (dataOffset >= 0) {
+            // Closing the channel sets the content on the node
+            FileChannel contentChannel = writer.getFileChannel(false);
+            try {
+                zipFile.transferStoredEntry(fileEntry, dataOffset, digest == null ? contentChannel :
+                        ContentDeduplicator.digestingChannel(contentChannel, digest));
+            } finally {
+                contentChannel.close();
             }
-        } else if (StringUtils.equalsIgnoreCase(zipDirName, ZIP_ARTWORK_DIR_NAME)) {
-            // We got an artwork file like a diagram or image, store it under the {ISBN}/Artwork
-            NodeRef artworkFolderNodeRef =
-                    alfrescoRepoUtilsService.getOrCreateFolder(isbnFolderNodeRef, ARTWORK_FOLDER_NAME);
-            alfrescoRepoUtilsService.createFile(artworkFolderNodeRef, filename, is);
-        } else if (StringUtils.equalsIgnoreCase(zipDirName, ZIP_STYLES_DIR_NAME)) {
-            // We got a style (css) file, store it under the {ISBN}/Styles
-            NodeRef artworkFolderNodeRef =
-                    alfrescoRepoUtilsService.getOrCreateFolder(isbnFolderNodeRef, STYLES_FOLDER_NAME);
-            alfrescoRepoUtilsService.createFile(artworkFolderNodeRef, filename, is);
         } else {
-            LOG.warn("Found {} in the {} directory, will not ingest", filename, zipDirName);
+            // Note. the input stream for the entry is closed by Alfresco ContentWriter,
+            // and also when you close the ZIP file
+            InputStream is = zipFile.getInputStream(fileEntry);
+            if (digest != null) {
+                is = new DigestInputStream(is, digest);
+            }
+            writer.putContent(new BufferedInputStream(is));
+        }
+
+        if (deduplicated) {
+            contentDeduplicator.contentStored(fileNodeRef, fileEntry, digest);
+        } else {
+            contentDeduplicator.addFingerprint(fileNodeRef, fileEntry, null);
         }
+        ingestionMetrics.entryStored(fileEntry.getSize(), startNanos);
+    }
+
+    private NodeRef createContentNode(NodeRef parentFolderNodeRef, String filename) {
+        Map<QName, Serializable> properties = new HashMap<QName, Serializable>();
+        properties.put(ContentModel.PROP_NAME, filename);
+        return serviceRegistry.getNodeService().createNode(parentFolderNodeRef,
+                ContentModel.ASSOC_CONTAINS,
+                QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, QName.createValidLocalName(filename)),
+                ContentModel.TYPE_CONTENT, properties).getChildRef();
     }
 }
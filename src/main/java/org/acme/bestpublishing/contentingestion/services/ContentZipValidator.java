@@ -0,0 +1,390 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.services;
+
+import org.acme.bestpublishing.contentingestion.zip.ZipCentralDirectory;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.input.ProxyInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Pre-flight check of a content ZIP, done before anything is written to the repository. Only the
+ * central directory at the end of the ZIP is read, so a corrupt, truncated, or unexpected ZIP is rejected
+ * in milliseconds, instead of failing part-way through the import and rolling it back. Checks:
+ *
+ *  - the central directory can be found and read
+ *  - there are file entries, but not more than maxEntries, when set
+ *  - the entry data is inside the ZIP file, it is not truncated
+ *  - entries are STORED or DEFLATED, and not encrypted
+ *  - there is an entry routed to the Chapters folder
+ *  - no entry inflates to more than maxCompressionRatio times its compressed size, and all entries
+ *    together to no more than maxUncompressedBytes, when set
+ *
+ * Top level directories other than the allowed ones, such as __MACOSX, are only logged, their entries are
+ * not routed to any folder and are left out of the import.
+ *
+ * A streamed content ZIP has no central directory to read up front, it is checked against the same limits
+ * by a {@link StreamedZipCheck} while its entries are inflated.
+ *
+ * @version 1.0
+ */
+@ManagedResource(
+        objectName = "org.acme:application=BestPublishing,type=Ingestion,name=ContentZipValidation",
+        description = "Best Publishing pre-flight validation of Book Content ZIPs")
+public class ContentZipValidator {
+    private static final Logger LOG = LoggerFactory.getLogger(ContentZipValidator.class);
+
+    /**
+     * Entries smaller than this are not checked for their compression ratio, small text files compress a lot
+     */
+    private static final long MIN_RATIO_CHECKED_SIZE = 1024 * 1024;
+
+    /**
+     * Problems reported for a ZIP, a broken ZIP can have one for every entry
+     */
+    private static final int MAX_PROBLEMS = 10;
+
+    /**
+     * Turn validation on or off
+     */
+    private boolean enabled = true;
+
+    /**
+     * Maximum number of entries in a content ZIP, 0 for no limit
+     */
+    private int maxEntries = 0;
+
+    /**
+     * Maximum uncompressed size / compressed size of an entry
+     */
+    private double maxCompressionRatio = 100.0;
+
+    /**
+     * Maximum uncompressed size of all entries together, 0 for no limit
+     */
+    private long maxUncompressedBytes = 0;
+
+    /**
+     * Top level ZIP directories entries are expected in, besides the top level itself, lower case
+     */
+    private Set<String> allowedDirNames = new HashSet<String>();
+
+    /**
+     * Decides the folder each entry goes to, a ZIP must have an entry routed to the Chapters folder
+     */
+    private ZipEntryRoutingRules zipEntryRoutingRules = new ZipEntryRoutingRules();
+
+    /**
+     * What the validation of a content ZIP found
+     */
+    public static class Result {
+        private final List<String> problems;
+        private final int fileEntryCount;
+
+        private Result(List<String> problems, int fileEntryCount) {
+            this.problems = problems;
+            this.fileEntryCount = fileEntryCount;
+        }
+
+        /**
+         * @return what is wrong with the ZIP, empty if it can be imported
+         */
+        public List<String> getProblems() {
+            return problems;
+        }
+        public boolean isValid() {
+            return problems.isEmpty();
+        }
+        /**
+         * @return number of file entries in the ZIP, -1 if validation is turned off and they were not counted
+         */
+        public int getFileEntryCount() {
+            return fileEntryCount;
+        }
+    }
+
+    /**
+     * Counters for JMX
+     */
+    private final LongAdder zipFilesValidated = new LongAdder();
+    private final LongAdder zipFilesRejected = new LongAdder();
+    private volatile String lastRejection = "";
+
+    /**
+     * Spring DI
+     */
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+    public void setMaxCompressionRatio(double maxCompressionRatio) {
+        this.maxCompressionRatio = maxCompressionRatio;
+    }
+    public void setMaxUncompressedBytes(long maxUncompressedBytes) {
+        this.maxUncompressedBytes = maxUncompressedBytes;
+    }
+    public void setZipEntryRoutingRules(ZipEntryRoutingRules zipEntryRoutingRules) {
+        this.zipEntryRoutingRules = zipEntryRoutingRules;
+    }
+    public void setAllowedDirNames(String allowedDirNames) {
+        this.allowedDirNames = new HashSet<String>();
+        for (String dirName : allowedDirNames.split(",")) {
+            if (!dirName.trim().isEmpty()) {
+                this.allowedDirNames.add(dirName.trim().toLowerCase());
+            }
+        }
+    }
+
+    /**
+     * Managed Attributes
+     */
+
+    @ManagedAttribute(description = "Is pre-flight validation of content ZIPs turned on")
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute(description = "Number of content ZIPs validated")
+    public long getZipFilesValidated() {
+        return zipFilesValidated.sum();
+    }
+
+    @ManagedAttribute(description = "Number of content ZIPs rejected before import")
+    public long getZipFilesRejected() {
+        return zipFilesRejected.sum();
+    }
+
+    @ManagedAttribute(description = "The last content ZIP rejected, and why")
+    public String getLastRejection() {
+        return lastRejection;
+    }
+
+    /**
+     * Validate the structure of a content ZIP from its central directory
+     *
+     * @param zipFile the content ZIP
+     * @return what is wrong with the ZIP, and the number of file entries, so they do not have to be counted again
+     */
+    public Result validate(File zipFile) {
+        List<String> problems = new ArrayList<String>();
+        if (!enabled) {
+            return new Result(problems, -1);
+        }
+
+        zipFilesValidated.increment();
+        long fileSize = zipFile.length();
+        ZipCentralDirectory centralDirectory;
+        try (FileChannel channel = FileChannel.open(zipFile.toPath(), StandardOpenOption.READ)) {
+            centralDirectory = ZipCentralDirectory.read(channel);
+        } catch (IOException ioe) {
+            problems.add("Central directory could not be read [" + ioe.getMessage() + "]");
+            return new Result(rejected(zipFile, problems), 0);
+        }
+
+        int fileEntryCount = 0;
+        boolean hasChapter = false;
+        long uncompressedBytes = 0;
+        Set<String> unexpectedDirNames = new HashSet<String>();
+        for (ZipCentralDirectory.Record record : centralDirectory.getRecords()) {
+            if (record.isDirectory()) {
+                continue;
+            }
+            fileEntryCount++;
+
+            String name = record.getName();
+            if (record.getLocalHeaderOffset() + record.getCompressedSize() > fileSize) {
+                problems.add(name + " is truncated, its data is past the end of the ZIP");
+            }
+            if (record.isEncrypted()) {
+                problems.add(name + " is encrypted");
+            }
+            if (record.getMethod() != ZipEntry.STORED && record.getMethod() != ZipEntry.DEFLATED) {
+                problems.add(name + " uses unsupported compression method " + record.getMethod());
+            } else if (record.getMethod() == ZipEntry.STORED && record.getSize() != record.getCompressedSize()) {
+                problems.add(name + " is STORED but its size and compressed size differ");
+            }
+            if (record.getSize() >= MIN_RATIO_CHECKED_SIZE &&
+                    record.getSize() > record.getCompressedSize() * maxCompressionRatio) {
+                problems.add(name + " inflates " + record.getCompressedSize() + " bytes to " + record.getSize() +
+                        " bytes, more than " + maxCompressionRatio + " times");
+            }
+            uncompressedBytes += record.getSize();
+
+            String zipDirName = FilenameUtils.getPathNoEndSeparator(name);
+            if (zipEntryRoutingRules.route(zipDirName, FilenameUtils.getName(name)) ==
+                    ZipEntryRoutingRules.Target.CHAPTERS) {
+                hasChapter = true;
+            }
+            String topLevelDirName = zipDirName.contains("/") ?
+                    zipDirName.substring(0, zipDirName.indexOf('/')) : zipDirName;
+            if (!topLevelDirName.isEmpty() && !allowedDirNames.contains(topLevelDirName.toLowerCase())) {
+                unexpectedDirNames.add(topLevelDirName);
+            }
+        }
+
+        if (fileEntryCount == 0) {
+            problems.add("No file entries");
+        } else if (maxEntries > 0 && fileEntryCount > maxEntries) {
+            problems.add(fileEntryCount + " file entries, more than " + maxEntries);
+        }
+        if (fileEntryCount > 0 && !hasChapter) {
+            problems.add("No chapter, no entry is routed to the Chapters folder");
+        }
+        if (!unexpectedDirNames.isEmpty()) {
+            LOG.warn("Content ZIP {} has unexpected directories {}, their entries are not imported",
+                    zipFile.getName(), unexpectedDirNames);
+        }
+        if (maxUncompressedBytes > 0 && uncompressedBytes > maxUncompressedBytes) {
+            problems.add("Inflates to " + uncompressedBytes + " bytes, more than " + maxUncompressedBytes);
+        }
+
+        return new Result(problems.isEmpty() ? problems : rejected(zipFile, problems), fileEntryCount);
+    }
+
+    /**
+     * Start checking a content ZIP while it is streamed
+     *
+     * @param zipName   name of the ZIP, used in the rejection
+     * @param zipStream the stream the ZIP is read from, it counts the compressed bytes
+     * @return the check that every entry of the ZIP goes through
+     */
+    public StreamedZipCheck checkStreamedZip(String zipName, CountingInputStream zipStream) {
+        if (enabled) {
+            zipFilesValidated.increment();
+        }
+        return new StreamedZipCheck(zipName, zipStream);
+    }
+
+    /**
+     * Checks the entries of a streamed content ZIP against the limits, while they are read. Reading an entry
+     * fails as soon as it goes over the compression ratio or the total uncompressed size, so a ZIP bomb is
+     * never inflated completely.
+     */
+    public class StreamedZipCheck {
+        private final String zipName;
+        private final CountingInputStream zipStream;
+        private int fileEntryCount = 0;
+        private long uncompressedBytes = 0;
+        private boolean hasChapter = false;
+
+        private StreamedZipCheck(String zipName, CountingInputStream zipStream) {
+            this.zipName = zipName;
+            this.zipStream = zipStream;
+        }
+
+        /**
+         * @param zipEntry    the file entry about to be read
+         * @param entryStream the inflated entry data
+         * @return the entry data to read, reading it fails with a {@link ZipException} if a limit is exceeded
+         * @throws ZipException if the ZIP has more than maxEntries file entries
+         */
+        public InputStream entry(ZipEntry zipEntry, InputStream entryStream) throws ZipException {
+            if (!enabled) {
+                return entryStream;
+            }
+
+            fileEntryCount++;
+            if (maxEntries > 0 && fileEntryCount > maxEntries) {
+                throw rejected("More than " + maxEntries + " file entries");
+            }
+            final String name = zipEntry.getName();
+            if (zipEntryRoutingRules.route(FilenameUtils.getPathNoEndSeparator(name), FilenameUtils.getName(name)) ==
+                    ZipEntryRoutingRules.Target.CHAPTERS) {
+                hasChapter = true;
+            }
+
+            final long compressedStart = zipStream.getByteCount();
+            return new ProxyInputStream(entryStream) {
+                private long entryBytes = 0;
+
+                @Override
+                protected void afterRead(int n) throws IOException {
+                    if (n <= 0) {
+                        return;
+                    }
+                    entryBytes += n;
+                    uncompressedBytes += n;
+                    if (maxUncompressedBytes > 0 && uncompressedBytes > maxUncompressedBytes) {
+                        throw rejected("Inflates to more than " + maxUncompressedBytes + " bytes");
+                    }
+                    long compressedBytes = zipStream.getByteCount() - compressedStart;
+                    if (entryBytes >= MIN_RATIO_CHECKED_SIZE && entryBytes > compressedBytes * maxCompressionRatio) {
+                        throw rejected(name + " inflates " + compressedBytes + " bytes to more than " + entryBytes +
+                                " bytes, more than " + maxCompressionRatio + " times");
+                    }
+                }
+            };
+        }
+
+        /**
+         * The last entry has been read, check what can only be checked for the whole ZIP
+         *
+         * @throws ZipException if the ZIP has no file entries, or no chapter
+         */
+        public void finish() throws ZipException {
+            if (!enabled) {
+                return;
+            }
+
+            if (fileEntryCount == 0) {
+                throw rejected("No file entries");
+            }
+            if (!hasChapter) {
+                throw rejected("No chapter, no entry is routed to the Chapters folder");
+            }
+        }
+
+        private ZipException rejected(String problem) {
+            zipFilesRejected.increment();
+            lastRejection = zipName + ": [" + problem + "]";
+            LOG.debug("Rejected streamed content ZIP {} [{}]", zipName, problem);
+            return new ZipException("Rejected content ZIP " + zipName + " [" + problem + "]");
+        }
+    }
+
+    private List<String> rejected(File zipFile, List<String> problems) {
+        if (problems.size() > MAX_PROBLEMS) {
+            int moreProblems = problems.size() - MAX_PROBLEMS;
+            problems = new ArrayList<String>(problems.subList(0, MAX_PROBLEMS));
+            problems.add("and " + moreProblems + " more");
+        }
+        zipFilesRejected.increment();
+        lastRejection = zipFile.getName() + ": " + problems;
+        LOG.debug("Rejected content ZIP {} {}", zipFile.getName(), problems);
+        return problems;
+    }
+}
@@ -0,0 +1,357 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.services;
+
+import org.alfresco.model.ContentModel;
+import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.policy.BehaviourFilter;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.action.Action;
+import org.alfresco.service.cmr.action.ActionService;
+import org.alfresco.service.cmr.repository.ChildAssociationRef;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.QName;
+import org.apache.commons.logging.LogFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Turns off selected repository behaviours, and rule evaluation, while the entries of a content ZIP are
+ * written, so creating a file node does not also pay for auditable updates, versioning, metadata extraction,
+ * or thumbnail scheduling. The {@link BehaviourFilter} and the rule service only turn things off for the
+ * current transaction and thread, so every transaction writing entries is wrapped, they only touch the
+ * ISBN folder being ingested.
+ *
+ * When the ISBN folder is COMPLETE a deferred pass runs the configured actions, such as extract-metadata,
+ * on the ingested files, in batches of one transaction each, only doing what is actually needed.
+ *
+ * @version 1.0
+ */
+@ManagedResource(
+        objectName = "org.acme:application=BestPublishing,type=Ingestion,name=BehaviourSuppression",
+        description = "Best Publishing suppression of repository behaviours while ingesting Book Content ZIPs")
+public class IngestionBehaviourSuppressor {
+    private static final Logger LOG = LoggerFactory.getLogger(IngestionBehaviourSuppressor.class);
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+    private BehaviourFilter behaviourFilter;
+
+    /**
+     * Suppress behaviours and rules while content ZIP entries are written
+     */
+    private boolean enabled = false;
+
+    /**
+     * Prefixed names of the types and aspects whose behaviours are turned off, such as cm:auditable
+     */
+    private List<String> suppressedClassNames = Collections.emptyList();
+    private List<QName> suppressedClasses = Collections.emptyList();
+
+    /**
+     * Turn off rule evaluation too
+     */
+    private boolean rulesDisabled = true;
+
+    /**
+     * Names of the actions run on every ingested file in the deferred pass, such as extract-metadata
+     */
+    private List<String> deferredActionNames = Collections.emptyList();
+
+    /**
+     * Number of files handled in one transaction, and number of threads, in the deferred pass
+     */
+    private int deferredBatchSize = 100;
+    private int deferredWorkerThreads = 2;
+
+    private final LongAdder deferredPasses = new LongAdder();
+    private final LongAdder deferredFilesProcessed = new LongAdder();
+    private final LongAdder deferredErrors = new LongAdder();
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+    public void setBehaviourFilter(BehaviourFilter behaviourFilter) {
+        this.behaviourFilter = behaviourFilter;
+    }
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    public void setSuppressedClasses(String suppressedClasses) {
+        this.suppressedClassNames = split(suppressedClasses);
+    }
+    public void setRulesDisabled(boolean rulesDisabled) {
+        this.rulesDisabled = rulesDisabled;
+    }
+    public void setDeferredActions(String deferredActions) {
+        this.deferredActionNames = split(deferredActions);
+    }
+    public void setDeferredBatchSize(int deferredBatchSize) {
+        this.deferredBatchSize = Math.max(1, deferredBatchSize);
+    }
+    public void setDeferredWorkerThreads(int deferredWorkerThreads) {
+        this.deferredWorkerThreads = Math.max(1, deferredWorkerThreads);
+    }
+
+    /**
+     * Spring init method, resolves the prefixed type and aspect names
+     */
+    public void init() {
+        List<QName> classes = new ArrayList<QName>();
+        for (String className : suppressedClassNames) {
+            classes.add(QName.resolveToQName(serviceRegistry.getNamespaceService(), className));
+        }
+        suppressedClasses = classes;
+        if (enabled) {
+            LOG.info("Behaviours for {} are turned off while content ZIPs are ingested, rules {}, deferred actions {}",
+                    suppressedClasses, rulesDisabled ? "too" : "not", deferredActionNames);
+        }
+    }
+
+    /**
+     * Managed Attributes
+     */
+
+    @ManagedAttribute(description = "Are behaviours turned off while content ZIP entries are written")
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute(description = "Types and aspects whose behaviours are turned off")
+    public String getSuppressedClasses() {
+        return suppressedClasses.toString();
+    }
+
+    @ManagedAttribute(description = "Is rule evaluation turned off too")
+    public boolean isRulesDisabled() {
+        return rulesDisabled;
+    }
+
+    @ManagedAttribute(description = "Actions run on every ingested file when the ISBN folder is COMPLETE")
+    public String getDeferredActions() {
+        return deferredActionNames.toString();
+    }
+
+    @ManagedAttribute(description = "Number of deferred passes run")
+    public long getDeferredPasses() {
+        return deferredPasses.sum();
+    }
+
+    @ManagedAttribute(description = "Number of files the deferred actions have been run on")
+    public long getDeferredFilesProcessed() {
+        return deferredFilesProcessed.sum();
+    }
+
+    @ManagedAttribute(description = "Number of files the deferred actions failed for")
+    public long getDeferredErrors() {
+        return deferredErrors.sum();
+    }
+
+    /**
+     * @return true if there are deferred actions to run when an ISBN folder is COMPLETE
+     */
+    public boolean isDeferredPassEnabled() {
+        return enabled && !deferredActionNames.isEmpty();
+    }
+
+    /**
+     * Wrap a transaction that writes content ZIP entries, so the behaviours and rules are turned off
+     * while it runs. The wrapped work can also be executed straight away inside a transaction that is
+     * already running, such as a batch processor transaction.
+     *
+     * @param callback the transaction work
+     * @return the wrapped transaction work, or the work itself if suppression is off
+     */
+    public <R> RetryingTransactionHelper.RetryingTransactionCallback<R> suppressing(
+            final RetryingTransactionHelper.RetryingTransactionCallback<R> callback) {
+        if (!enabled) {
+            return callback;
+        }
+
+        return new RetryingTransactionHelper.RetryingTransactionCallback<R>() {
+            public R execute() throws Throwable {
+                disable();
+                try {
+                    return callback.execute();
+                } finally {
+                    enable();
+                }
+            }
+        };
+    }
+
+    /**
+     * Turn off the behaviours and rules, in the current transaction and thread. Every call has to be
+     * followed by a call to {@link #enable()}.
+     */
+    private void disable() {
+        if (!enabled) {
+            return;
+        }
+        for (QName suppressedClass : suppressedClasses) {
+            behaviourFilter.disableBehaviour(suppressedClass);
+        }
+        if (rulesDisabled) {
+            serviceRegistry.getRuleService().disableRules();
+        }
+    }
+
+    /**
+     * Turn the behaviours and rules turned off by {@link #disable()} back on
+     */
+    private void enable() {
+        if (!enabled) {
+            return;
+        }
+        if (rulesDisabled) {
+            serviceRegistry.getRuleService().enableRules();
+        }
+        for (QName suppressedClass : suppressedClasses) {
+            behaviourFilter.enableBehaviour(suppressedClass);
+        }
+    }
+
+    /**
+     * Run the deferred actions on all the files in an ISBN folder structure, when its ingestion is COMPLETE.
+     * Must be called outside of a transaction. Files the actions fail for are logged and counted,
+     * the ingestion itself has succeeded.
+     *
+     * @param isbnFolderNodeRef the node ref for /Company Home/Data Dictionary/BestPub/Incoming/Content/{ISBN}
+     * @param isbn              the book ISBN 13 number
+     */
+    public void runDeferredPass(final NodeRef isbnFolderNodeRef, String isbn) {
+        if (!isDeferredPassEnabled() || isbnFolderNodeRef == null) {
+            return;
+        }
+
+        List<NodeRef> fileNodeRefs = serviceRegistry.getTransactionService().getRetryingTransactionHelper()
+                .doInTransaction(new RetryingTransactionHelper.RetryingTransactionCallback<List<NodeRef>>() {
+                    public List<NodeRef> execute() throws Throwable {
+                        return getFiles(isbnFolderNodeRef);
+                    }
+                }, true, true);
+        runDeferredPass(fileNodeRefs, isbn);
+    }
+
+    /**
+     * Run the deferred actions on some of the files of an ISBN, such as only the files a republish has added
+     * or updated. Must be called outside of a transaction. Files the actions fail for are logged and counted,
+     * the ingestion itself has succeeded.
+     *
+     * @param fileNodeRefs the files to run the actions on
+     * @param isbn         the book ISBN 13 number
+     */
+    public void runDeferredPass(List<NodeRef> fileNodeRefs, String isbn) {
+        if (!isDeferredPassEnabled() || fileNodeRefs.isEmpty()) {
+            return;
+        }
+
+        RetryingTransactionHelper transactionHelper =
+                serviceRegistry.getTransactionService().getRetryingTransactionHelper();
+        BatchProcessor<NodeRef> batchProcessor = new BatchProcessor<NodeRef>(
+                "BestPubContentDeferredPass-" + isbn, transactionHelper, fileNodeRefs,
+                deferredWorkerThreads, deferredBatchSize, null, LogFactory.getLog(IngestionBehaviourSuppressor.class),
+                1000);
+
+        final String runAsUser = AuthenticationUtil.getRunAsUser();
+        final ActionService actionService = serviceRegistry.getActionService();
+        batchProcessor.process(new BatchProcessor.BatchProcessWorkerAdaptor<NodeRef>() {
+            @Override
+            public String getIdentifier(NodeRef fileNodeRef) {
+                return fileNodeRef.toString();
+            }
+
+            @Override
+            public void beforeProcess() throws Throwable {
+                AuthenticationUtil.setRunAsUser(runAsUser);
+            }
+
+            @Override
+            public void afterProcess() throws Throwable {
+                AuthenticationUtil.clearCurrentSecurityContext();
+            }
+
+            @Override
+            public void process(NodeRef fileNodeRef) throws Throwable {
+                for (String actionName : deferredActionNames) {
+                    Action action = actionService.createAction(actionName);
+                    actionService.executeAction(action, fileNodeRef, false, false);
+                }
+            }
+        }, true);
+
+        deferredPasses.increment();
+        deferredFilesProcessed.add(batchProcessor.getSuccessfullyProcessedEntries());
+        int errors = batchProcessor.getTotalErrors();
+        if (errors > 0) {
+            deferredErrors.add(errors);
+            LOG.warn("Deferred actions {} failed for {} of {} files for ISBN {}, last failed file {}",
+                    deferredActionNames, errors, fileNodeRefs.size(), isbn, batchProcessor.getLastErrorEntryId());
+        } else {
+            LOG.debug("Ran deferred actions {} on {} files for ISBN {}", deferredActionNames, fileNodeRefs.size(), isbn);
+        }
+    }
+
+    /**
+     * Get the files in the ISBN folder and its sub-folders
+     */
+    private List<NodeRef> getFiles(NodeRef isbnFolderNodeRef) {
+        NodeService nodeService = serviceRegistry.getNodeService();
+        List<NodeRef> fileNodeRefs = new ArrayList<NodeRef>();
+        List<NodeRef> folderNodeRefs = new ArrayList<NodeRef>();
+        folderNodeRefs.add(isbnFolderNodeRef);
+        for (ChildAssociationRef folderAssoc : nodeService.getChildAssocs(
+                isbnFolderNodeRef, Collections.singleton(ContentModel.TYPE_FOLDER))) {
+            folderNodeRefs.add(folderAssoc.getChildRef());
+        }
+        for (NodeRef folderNodeRef : folderNodeRefs) {
+            for (ChildAssociationRef fileAssoc : nodeService.getChildAssocs(
+                    folderNodeRef, Collections.singleton(ContentModel.TYPE_CONTENT))) {
+                fileNodeRefs.add(fileAssoc.getChildRef());
+            }
+        }
+        return fileNodeRefs;
+    }
+
+    private static List<String> split(String names) {
+        List<String> list = new ArrayList<String>();
+        if (names != null) {
+            for (String name : names.split(",")) {
+                if (!name.trim().isEmpty()) {
+                    list.add(name.trim());
+                }
+            }
+        }
+        return list;
+    }
+}
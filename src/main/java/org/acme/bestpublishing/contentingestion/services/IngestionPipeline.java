@@ -0,0 +1,296 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.services;
+
+import org.acme.bestpublishing.contentingestion.metrics.RateMeter;
+import org.alfresco.util.TraceableThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The stages content ZIP entries go through when they are imported in PIPELINED mode:
+ *
+ *  inflate  - read and uncompress an entry into memory (CPU)
+ *  store    - create the file node and write the content, in its own transaction (DB and content store I/O)
+ *  finalize - set the ISBN folder to COMPLETE when all its entries have been stored
+ *
+ * Each stage has its own threads, and takes its tasks from a bounded queue. A stage that hands a task to
+ * a full queue waits, so a slow repository holds back the inflation, and the memory used by inflated
+ * entries stays bounded. Discovering and validating the ZIPs happens before, in the Content Ingestion
+ * Executer. Queue depth and throughput of every stage are exposed over JMX.
+ *
+ * @version 1.0
+ */
+@ManagedResource(
+        objectName = "org.acme:application=BestPublishing,type=Ingestion,name=IngestionPipeline",
+        description = "Best Publishing Content Ingestion pipeline stages for content ZIP entries")
+public class IngestionPipeline {
+    private static final Logger LOG = LoggerFactory.getLogger(IngestionPipeline.class);
+
+    /**
+     * A pipeline stage, a bounded queue of tasks and the threads running them
+     */
+    public static class Stage {
+        private final String name;
+        private final BlockingQueue<Runnable> queue;
+        private final List<Thread> threads = new ArrayList<Thread>();
+        private final AtomicInteger activeThreads = new AtomicInteger();
+        private final RateMeter completedTasks = new RateMeter();
+        private volatile boolean stopped = false;
+
+        private Stage(String name, int threadCount, int queueCapacity) {
+            this.name = name;
+            this.queue = new ArrayBlockingQueue<Runnable>(Math.max(1, queueCapacity));
+
+            TraceableThreadFactory threadFactory = new TraceableThreadFactory();
+            threadFactory.setNamePrefix("BestPubContentPipeline-" + name);
+            threadFactory.setThreadDaemon(true);
+            for (int i = 0; i < Math.max(1, threadCount); i++) {
+                threads.add(threadFactory.newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        runTasks();
+                    }
+                }));
+            }
+        }
+
+        /**
+         * Hand a task to the stage, waits while the stage queue is full
+         *
+         * @param task the task, it should handle its own errors
+         * @throws RejectedExecutionException if interrupted while waiting, or the pipeline is shut down
+         */
+        public void submit(Runnable task) {
+            if (stopped) {
+                throw new RejectedExecutionException("Pipeline stage " + name + " is shut down");
+            }
+            try {
+                queue.put(task);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for pipeline stage " + name, ie);
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+        public int getQueueDepth() {
+            return queue.size();
+        }
+        public int getActiveThreads() {
+            return activeThreads.get();
+        }
+        public long getTasksCompleted() {
+            return completedTasks.getCount();
+        }
+        public double getTasksPerSecond() {
+            return completedTasks.getRatePerSecond();
+        }
+
+        private void start() {
+            for (Thread thread : threads) {
+                thread.start();
+            }
+        }
+
+        private void stop() {
+            stopped = true;
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+        }
+
+        private void runTasks() {
+            while (!stopped) {
+                Runnable task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException ie) {
+                    return;
+                }
+
+                activeThreads.incrementAndGet();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    LOG.error("Pipeline stage " + name + " task failed", e);
+                } finally {
+                    activeThreads.decrementAndGet();
+                    completedTasks.mark(1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Threads and queue capacity of each stage
+     */
+    private int inflateThreads = 2;
+    private int inflateQueueCapacity = 64;
+    private int storeThreads = 8;
+    private int storeQueueCapacity = 32;
+    private int finalizeThreads = 1;
+    private int finalizeQueueCapacity = 16;
+
+    private volatile Stage inflateStage;
+    private volatile Stage storeStage;
+    private volatile Stage finalizeStage;
+
+    /**
+     * Spring DI
+     */
+
+    public void setInflateThreads(int inflateThreads) {
+        this.inflateThreads = inflateThreads;
+    }
+    public void setInflateQueueCapacity(int inflateQueueCapacity) {
+        this.inflateQueueCapacity = inflateQueueCapacity;
+    }
+    public void setStoreThreads(int storeThreads) {
+        this.storeThreads = storeThreads;
+    }
+    public void setStoreQueueCapacity(int storeQueueCapacity) {
+        this.storeQueueCapacity = storeQueueCapacity;
+    }
+    public void setFinalizeThreads(int finalizeThreads) {
+        this.finalizeThreads = finalizeThreads;
+    }
+    public void setFinalizeQueueCapacity(int finalizeQueueCapacity) {
+        this.finalizeQueueCapacity = finalizeQueueCapacity;
+    }
+
+    /**
+     * Start the stage threads, called by the Content Ingestion Service when entries are imported in PIPELINED mode
+     */
+    public synchronized void start() {
+        if (inflateStage != null) {
+            return;
+        }
+
+        inflateStage = new Stage("inflate", inflateThreads, inflateQueueCapacity);
+        storeStage = new Stage("store", storeThreads, storeQueueCapacity);
+        finalizeStage = new Stage("finalize", finalizeThreads, finalizeQueueCapacity);
+        finalizeStage.start();
+        storeStage.start();
+        inflateStage.start();
+        LOG.info("Content ingestion pipeline started, {} inflate, {} store, and {} finalize threads",
+                inflateThreads, storeThreads, finalizeThreads);
+    }
+
+    /**
+     * Spring destroy method, stops the stage threads, tasks still queued are not run
+     */
+    public synchronized void shutdown() {
+        if (inflateStage != null) {
+            inflateStage.stop();
+            storeStage.stop();
+            finalizeStage.stop();
+        }
+    }
+
+    public Stage getInflateStage() {
+        return inflateStage;
+    }
+
+    public Stage getStoreStage() {
+        return storeStage;
+    }
+
+    public Stage getFinalizeStage() {
+        return finalizeStage;
+    }
+
+    /**
+     * Management Bean attributes
+     */
+
+    @ManagedAttribute(description = "True if the pipeline is running, only in PIPELINED entry ingestion mode")
+    public boolean isStarted() {
+        return inflateStage != null;
+    }
+
+    @ManagedAttribute(description = "Number of entries waiting to be inflated")
+    public int getInflateQueueDepth() {
+        return inflateStage == null ? 0 : inflateStage.getQueueDepth();
+    }
+
+    @ManagedAttribute(description = "Number of inflate threads working")
+    public int getInflateActiveThreads() {
+        return inflateStage == null ? 0 : inflateStage.getActiveThreads();
+    }
+
+    @ManagedAttribute(description = "Entries inflated per second, one minute moving average")
+    public double getInflateTasksPerSecond() {
+        return inflateStage == null ? 0.0 : inflateStage.getTasksPerSecond();
+    }
+
+    @ManagedAttribute(description = "Number of entries inflated since start")
+    public long getInflateTasksCompleted() {
+        return inflateStage == null ? 0 : inflateStage.getTasksCompleted();
+    }
+
+    @ManagedAttribute(description = "Number of inflated entries waiting to be stored")
+    public int getStoreQueueDepth() {
+        return storeStage == null ? 0 : storeStage.getQueueDepth();
+    }
+
+    @ManagedAttribute(description = "Number of store threads working")
+    public int getStoreActiveThreads() {
+        return storeStage == null ? 0 : storeStage.getActiveThreads();
+    }
+
+    @ManagedAttribute(description = "Entries stored per second, one minute moving average")
+    public double getStoreTasksPerSecond() {
+        return storeStage == null ? 0.0 : storeStage.getTasksPerSecond();
+    }
+
+    @ManagedAttribute(description = "Number of entries stored since start")
+    public long getStoreTasksCompleted() {
+        return storeStage == null ? 0 : storeStage.getTasksCompleted();
+    }
+
+    @ManagedAttribute(description = "Number of content ZIPs waiting to be finalized")
+    public int getFinalizeQueueDepth() {
+        return finalizeStage == null ? 0 : finalizeStage.getQueueDepth();
+    }
+
+    @ManagedAttribute(description = "Number of finalize threads working")
+    public int getFinalizeActiveThreads() {
+        return finalizeStage == null ? 0 : finalizeStage.getActiveThreads();
+    }
+
+    @ManagedAttribute(description = "Content ZIPs finalized per second, one minute moving average")
+    public double getFinalizeTasksPerSecond() {
+        return finalizeStage == null ? 0.0 : finalizeStage.getTasksPerSecond();
+    }
+
+    @ManagedAttribute(description = "Number of content ZIPs finalized since start")
+    public long getFinalizeTasksCompleted() {
+        return finalizeStage == null ? 0 : finalizeStage.getTasksCompleted();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.services;
+
+import org.acme.bestpublishing.exceptions.IngestionException;
+import org.acme.bestpublishing.model.BestPubContentModel;
+import org.alfresco.model.ContentModel;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.cmr.repository.NodeRef;
+import org.alfresco.service.cmr.repository.NodeService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.acme.bestpublishing.constants.BestPubConstants.*;
+
+/**
+ * Creates the complete folder structure for a new ISBN in one go, the ISBN folder and its
+ * Chapters, Supplementary, Artwork, and Styles sub-folders, and returns the routing table
+ * that the ZIP entry import uses to find the target folder for each entry.
+ * Also resolves the routing table for an ISBN folder that already exists.
+ * Must be called within a transaction.
+ *
+ * @version 1.0
+ */
+public class IsbnFolderProvisioner {
+    private static Logger LOG = LoggerFactory.getLogger(IsbnFolderProvisioner.class);
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+
+    /**
+     * Decides the folder each content ZIP entry goes to
+     */
+    private ZipEntryRoutingRules zipEntryRoutingRules;
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+    public void setZipEntryRoutingRules(ZipEntryRoutingRules zipEntryRoutingRules) {
+        this.zipEntryRoutingRules = zipEntryRoutingRules;
+    }
+
+    /**
+     * Create the ISBN folder, and all its sub-folders, in the /Company Home/Data Dictionary/BestPub/Incoming/Content
+     * folder.
+     *
+     * @param parentContentFolderNodeRef the node ref for /Company Home/Data Dictionary/BestPub/Incoming/Content
+     * @param isbn the book ISBN 13 number
+     * @return the routing table for the new ISBN folder structure
+     */
+    public ZipEntryRoutingTable provision(NodeRef parentContentFolderNodeRef, String isbn) {
+        LOG.debug("Creating ISBN folder for {} content", isbn);
+
+        NodeService nodeService = serviceRegistry.getNodeService();
+
+        Map<QName, Serializable> properties = new HashMap<QName, Serializable>();
+        properties.put(ContentModel.PROP_NAME, isbn);
+        properties.put(BestPubContentModel.BookInfoAspect.Prop.ISBN, isbn);
+        properties.put(BestPubContentModel.BookFolderType.Prop.INGESTION_STATUS,
+                BestPubContentModel.IngestionStatus.IN_PROGRESS.toString());
+
+        NodeRef isbnFolderNodeRef = nodeService.createNode(parentContentFolderNodeRef,
+                ContentModel.ASSOC_CONTAINS, QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, isbn),
+                BestPubContentModel.BookFolderType.QNAME, properties).getChildRef();
+        if (isbnFolderNodeRef == null) {
+            String extraDetails = "Could not create new ISBN folder for " + isbn + " under " +
+                    nodeService.getPath(parentContentFolderNodeRef).toString();
+            throw new IngestionException(extraDetails);
+        }
+
+        // The folder is brand new, so the sub-folders can be created without first looking for them
+        return new ZipEntryRoutingTable(zipEntryRoutingRules, isbnFolderNodeRef,
+                createFolder(isbnFolderNodeRef, CHAPTERS_FOLDER_NAME),
+                createFolder(isbnFolderNodeRef, SUPPLEMENTARY_FOLDER_NAME),
+                createFolder(isbnFolderNodeRef, ARTWORK_FOLDER_NAME),
+                createFolder(isbnFolderNodeRef, STYLES_FOLDER_NAME));
+    }
+
+    /**
+     * Get the routing table for an ISBN folder that already exists, such as when content is republished.
+     * Sub-folders that are missing are created.
+     *
+     * @param isbnFolderNodeRef the node ref for /Company Home/Data Dictionary/BestPub/Incoming/Content/{ISBN}
+     * @return the routing table for the ISBN folder structure
+     */
+    public ZipEntryRoutingTable resolve(NodeRef isbnFolderNodeRef) {
+        return new ZipEntryRoutingTable(zipEntryRoutingRules, isbnFolderNodeRef,
+                getOrCreateFolder(isbnFolderNodeRef, CHAPTERS_FOLDER_NAME),
+                getOrCreateFolder(isbnFolderNodeRef, SUPPLEMENTARY_FOLDER_NAME),
+                getOrCreateFolder(isbnFolderNodeRef, ARTWORK_FOLDER_NAME),
+                getOrCreateFolder(isbnFolderNodeRef, STYLES_FOLDER_NAME));
+    }
+
+    private NodeRef getOrCreateFolder(NodeRef parentFolderNodeRef, String folderName) {
+        NodeRef folderNodeRef = serviceRegistry.getNodeService().getChildByName(
+                parentFolderNodeRef, ContentModel.ASSOC_CONTAINS, folderName);
+        if (folderNodeRef == null) {
+            folderNodeRef = createFolder(parentFolderNodeRef, folderName);
+        }
+        return folderNodeRef;
+    }
+
+    private NodeRef createFolder(NodeRef parentFolderNodeRef, String folderName) {
+        Map<QName, Serializable> properties = new HashMap<QName, Serializable>();
+        properties.put(ContentModel.PROP_NAME, folderName);
+
+        return serviceRegistry.getNodeService().createNode(parentFolderNodeRef, ContentModel.ASSOC_CONTAINS,
+                QName.createQName(NamespaceService.CONTENT_MODEL_1_0_URI, QName.createValidLocalName(folderName)),
+                ContentModel.TYPE_FOLDER, properties).getChildRef();
+    }
+}
@@ -0,0 +1,243 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.services;
+
+import org.acme.bestpublishing.contentingestion.model.ContentIngestionModel;
+import org.acme.bestpublishing.exceptions.IngestionException;
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.service.ServiceRegistry;
+import org.alfresco.service.namespace.QName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time-limited, cluster wide leases on ISBNs, so every node in the cluster can ingest content ZIPs from
+ * the shared content directory at the same time, without two nodes ever ingesting the same ISBN.
+ * <p>
+ * A lease is a Job Lock Service lock named after the ISBN. The Job Lock Service renews it in the background
+ * for as long as the lease is held. If the node holding it dies, renewal stops and the lock expires after
+ * the lease time to live, so another node can take the ISBN over. An interrupted ingestion is then resumed
+ * from the last committed chunk. A node whose lease could not be renewed stops writing the ISBN before its
+ * next entry, chunk, or batch, so it never writes at the same time as the node that took the ISBN over.
+ *
+ * @version 1.0
+ */
+@ManagedResource(
+        objectName = "org.acme:application=BestPublishing,type=Ingestion,name=IsbnLeases",
+        description = "Best Publishing cluster wide leases on the ISBNs being ingested")
+public class IsbnLeaseService {
+    private static final Logger LOG = LoggerFactory.getLogger(IsbnLeaseService.class);
+
+    /**
+     * Prefix of the Job Lock Service lock names, the ISBN is appended
+     */
+    public static final String LOCK_NAME_PREFIX = "contentIngestion.isbn.";
+
+    /**
+     * A lease on one ISBN, held until it is released, or until its renewal fails
+     */
+    public class IsbnLease implements JobLockService.JobLockRefreshCallback {
+        private final String isbn;
+        private final QName lockQName;
+        private final String lockToken;
+        private volatile boolean active = true;
+        private volatile boolean lost = false;
+
+        private IsbnLease(String isbn, QName lockQName, String lockToken) {
+            this.isbn = isbn;
+            this.lockQName = lockQName;
+            this.lockToken = lockToken;
+        }
+
+        public String getIsbn() {
+            return isbn;
+        }
+
+        /**
+         * @return true if the lease could not be renewed, another node might have taken the ISBN over
+         */
+        public boolean isLost() {
+            return lost;
+        }
+
+        /**
+         * @return true if the ISBN is locked across the cluster, false if leases are turned off
+         */
+        public boolean isClusterWide() {
+            return lockToken != null;
+        }
+
+        /**
+         * Called by an ingestion before each entry, chunk, or batch it writes, so it stops writing as soon as
+         * another node might have taken the ISBN over
+         *
+         * @throws IngestionException if the lease could not be renewed
+         */
+        public void checkHeld() {
+            if (lost) {
+                throw new IngestionException("The lease on ISBN " + isbn + " was lost, another node might be " +
+                        "ingesting it, stopping");
+            }
+        }
+
+        /**
+         * Give up the lease, so any node can take the ISBN
+         */
+        public void release() {
+            active = false;
+            heldLeases.remove(isbn);
+            if (lockToken != null && !lost) {
+                try {
+                    serviceRegistry.getJobLockService().releaseLock(lockToken, lockQName);
+                } catch (RuntimeException e) {
+                    // It expires anyway
+                    LOG.warn("Could not release the lease on ISBN {} [{}]", isbn, e.getMessage());
+                }
+            }
+        }
+
+        @Override
+        public boolean isActive() {
+            return active;
+        }
+
+        @Override
+        public void lockReleased() {
+            if (active) {
+                lost = true;
+                leasesLost.increment();
+                LOG.warn("Lost the lease on ISBN {}, it could not be renewed", isbn);
+            }
+        }
+    }
+
+    /**
+     * Alfresco Services
+     */
+    private ServiceRegistry serviceRegistry;
+
+    /**
+     * Turn leases on or off, when off every ISBN can always be ingested
+     */
+    private boolean enabled = false;
+
+    /**
+     * How long (ms) a lease is valid if it is not renewed
+     */
+    private long leaseTimeToLiveMillis = 60000;
+
+    /**
+     * ISBN -> lease held by this node
+     */
+    private final Map<String, IsbnLease> heldLeases = new ConcurrentHashMap<String, IsbnLease>();
+
+    /**
+     * Counters for JMX
+     */
+    private final LongAdder leasesAcquired = new LongAdder();
+    private final LongAdder leasesDenied = new LongAdder();
+    private final LongAdder leasesLost = new LongAdder();
+
+    /**
+     * Spring DI
+     */
+
+    public void setServiceRegistry(ServiceRegistry serviceRegistry) {
+        this.serviceRegistry = serviceRegistry;
+    }
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    public void setLeaseTimeToLiveMillis(long leaseTimeToLiveMillis) {
+        this.leaseTimeToLiveMillis = leaseTimeToLiveMillis;
+    }
+
+    /**
+     * Managed Attributes
+     */
+
+    @ManagedAttribute(description = "Are ISBNs leased, so all cluster nodes can ingest at the same time")
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @ManagedAttribute(description = "How long (ms) a lease is valid if it is not renewed")
+    public long getLeaseTimeToLiveMillis() {
+        return leaseTimeToLiveMillis;
+    }
+
+    @ManagedAttribute(description = "ISBNs leased by this node")
+    public String getLeasedIsbns() {
+        return new TreeSet<String>(heldLeases.keySet()).toString();
+    }
+
+    @ManagedAttribute(description = "Number of leases taken by this node")
+    public long getLeasesAcquired() {
+        return leasesAcquired.sum();
+    }
+
+    @ManagedAttribute(description = "Number of times an ISBN was leased by another node")
+    public long getLeasesDenied() {
+        return leasesDenied.sum();
+    }
+
+    @ManagedAttribute(description = "Number of leases that could not be renewed")
+    public long getLeasesLost() {
+        return leasesLost.sum();
+    }
+
+    /**
+     * Try to lease an ISBN, does not wait if another node holds it
+     *
+     * @param isbn the ISBN to lease
+     * @return the lease, or null if another node holds it
+     */
+    public IsbnLease acquire(String isbn) {
+        if (!enabled) {
+            // Nothing to lock, only one node ingests
+            return new IsbnLease(isbn, null, null);
+        }
+
+        QName lockQName = QName.createQName(ContentIngestionModel.NAMESPACE_URI, LOCK_NAME_PREFIX + isbn);
+        JobLockService jobLockService = serviceRegistry.getJobLockService();
+        String lockToken;
+        try {
+            lockToken = jobLockService.getLock(lockQName, leaseTimeToLiveMillis);
+        } catch (LockAcquisitionException e) {
+            leasesDenied.increment();
+            LOG.debug("ISBN {} is leased by another node", isbn);
+            return null;
+        }
+
+        IsbnLease lease = new IsbnLease(isbn, lockQName, lockToken);
+        heldLeases.put(isbn, lease);
+        leasesAcquired.increment();
+
+        // Renewed in the background, at half the time to live, until the lease is released
+        jobLockService.refreshLock(lockToken, lockQName, leaseTimeToLiveMillis, lease);
+
+        return lease;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.services;
+
+import org.springframework.jmx.export.annotation.ManagedAttribute;
+import org.springframework.jmx.export.annotation.ManagedResource;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the content ZIPs pushed to the repository through the upload web script, so their
+ * status can be polled by ingestion id while, and for a while after, they are ingested.
+ * Finished ingestions are forgotten after the retention period.
+ *
+ * The registry only knows about the ZIPs pushed to this node. The ingestion id and progress are also recorded
+ * on the ISBN folder, see {@link #recorded}, so a poll with the ISBN can be answered by any node.
+ *
+ * @version 1.0
+ */
+@ManagedResource(
+        objectName = "org.acme:application=BestPublishing,type=Ingestion,name=StreamedIngestion",
+        description = "Best Publishing Content ZIPs pushed through the upload web script")
+public class StreamedIngestionRegistry {
+
+    /**
+     * Where a pushed content ZIP is at
+     */
+    public enum State {
+        RUNNING, COMPLETE, FAILED
+    }
+
+    /**
+     * One pushed content ZIP
+     */
+    public static class StreamedIngestion {
+        private final String id;
+        private final String isbn;
+        private final long startedMillis;
+        private final AtomicInteger entriesStored = new AtomicInteger();
+        private final AtomicLong bytesStored = new AtomicLong();
+        private volatile State state = State.RUNNING;
+        private volatile long finishedMillis = 0;
+        private volatile String error;
+
+        private StreamedIngestion(String id, String isbn, long startedMillis) {
+            this.id = id;
+            this.isbn = isbn;
+            this.startedMillis = startedMillis;
+        }
+
+        /**
+         * Entries have been committed to the repository
+         *
+         * @param entries number of entries
+         * @param bytes   their uncompressed size
+         */
+        public void entriesStored(int entries, long bytes) {
+            entriesStored.addAndGet(entries);
+            bytesStored.addAndGet(bytes);
+        }
+
+        public void completed() {
+            finishedMillis = System.currentTimeMillis();
+            state = State.COMPLETE;
+        }
+
+        public void failed(String error) {
+            this.error = error;
+            finishedMillis = System.currentTimeMillis();
+            state = State.FAILED;
+        }
+
+        public String getId() {
+            return id;
+        }
+        public String getIsbn() {
+            return isbn;
+        }
+        public State getState() {
+            return state;
+        }
+        public int getEntriesStored() {
+            return entriesStored.get();
+        }
+        public long getBytesStored() {
+            return bytesStored.get();
+        }
+        public long getStartedMillis() {
+            return startedMillis;
+        }
+        public long getFinishedMillis() {
+            return finishedMillis;
+        }
+        public String getError() {
+            return error;
+        }
+    }
+
+    /**
+     * How long (ms) finished ingestions can be polled
+     */
+    private long retentionMillis = 3600000;
+
+    /**
+     * Ingestion id -> ingestion
+     */
+    private final Map<String, StreamedIngestion> ingestions = new ConcurrentHashMap<String, StreamedIngestion>();
+
+    /**
+     * Spring DI
+     */
+
+    public void setRetentionMillis(long retentionMillis) {
+        this.retentionMillis = retentionMillis;
+    }
+
+    /**
+     * Managed Attributes
+     */
+
+    @ManagedAttribute(description = "Number of pushed content ZIPs being ingested")
+    public int getRunningIngestions() {
+        int running = 0;
+        for (StreamedIngestion ingestion : ingestions.values()) {
+            if (ingestion.getState() == State.RUNNING) {
+                running++;
+            }
+        }
+        return running;
+    }
+
+    @ManagedAttribute(description = "Number of pushed content ZIPs that can be polled")
+    public int getKnownIngestions() {
+        return ingestions.size();
+    }
+
+    /**
+     * Register a new pushed content ZIP
+     *
+     * @param isbn the ISBN the ZIP is for
+     * @param id   the ingestion id chosen by the client, so it can poll while the ZIP is uploaded,
+     *             or null to make one up
+     * @return the new ingestion, RUNNING, or null if the id is already used
+     */
+    public StreamedIngestion start(String isbn, String id) {
+        forgetFinished();
+        StreamedIngestion ingestion = new StreamedIngestion(id != null ? id : UUID.randomUUID().toString(), isbn,
+                System.currentTimeMillis());
+        if (ingestions.putIfAbsent(ingestion.getId(), ingestion) != null) {
+            return null;
+        }
+        return ingestion;
+    }
+
+    /**
+     * Get the status of a pushed content ZIP as it was recorded on its ISBN folder, possibly by another node
+     *
+     * @param id             the ingestion id
+     * @param isbn           the ISBN the ZIP is for
+     * @param state          where the ingestion is at
+     * @param entriesStored  number of entries committed
+     * @param bytesStored    their uncompressed size
+     * @param startedMillis  when the ingestion started
+     * @param finishedMillis when the ingestion finished, 0 if it is RUNNING
+     * @param error          why the ingestion failed, or null
+     * @return the ingestion, it is not registered on this node and is not updated
+     */
+    public static StreamedIngestion recorded(String id, String isbn, State state, int entriesStored,
+                                             long bytesStored, long startedMillis, long finishedMillis,
+                                             String error) {
+        StreamedIngestion ingestion = new StreamedIngestion(id, isbn, startedMillis);
+        ingestion.entriesStored(entriesStored, bytesStored);
+        ingestion.state = state;
+        ingestion.finishedMillis = finishedMillis;
+        ingestion.error = error;
+        return ingestion;
+    }
+
+    /**
+     * @param id the ingestion id
+     * @return the ingestion, or null if it is not known, or has been forgotten
+     */
+    public StreamedIngestion get(String id) {
+        return ingestions.get(id);
+    }
+
+    /**
+     * @param isbn the ISBN
+     * @return the latest ingestion for the ISBN, or null if there is none
+     */
+    public StreamedIngestion getLatest(String isbn) {
+        StreamedIngestion latest = null;
+        for (StreamedIngestion ingestion : ingestions.values()) {
+            if (ingestion.getIsbn().equals(isbn) &&
+                    (latest == null || ingestion.getStartedMillis() > latest.getStartedMillis())) {
+                latest = ingestion;
+            }
+        }
+        return latest;
+    }
+
+    private void forgetFinished() {
+        long forgetBefore = System.currentTimeMillis() - retentionMillis;
+        Iterator<StreamedIngestion> iterator = ingestions.values().iterator();
+        while (iterator.hasNext()) {
+            StreamedIngestion ingestion = iterator.next();
+            if (ingestion.getState() != State.RUNNING && ingestion.getFinishedMillis() < forgetBefore) {
+                iterator.remove();
+            }
+        }
+    }
+}
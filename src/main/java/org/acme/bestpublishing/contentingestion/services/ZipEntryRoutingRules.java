@@ -0,0 +1,314 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.services;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The rules deciding which folder in the ISBN folder structure each content ZIP entry is stored in.
+ * The rules are configured as a comma separated list of {dir}/{filename pattern}={target}, such as
+ * content/*chapter*=CHAPTERS, and compiled at startup into a case insensitive hash table keyed on the
+ * ZIP directory. Routing an entry is one hash lookup and a match of the rules for its directory, in
+ * the order configured, first match wins. Nothing is allocated.
+ * <p/>
+ * The directory is matched exactly, case insensitive, a pattern without a directory is for top level entries.
+ * A directory ending in /** also matches all directories below it, such as images/**&#47;*=ARTWORK.
+ * The filename pattern is *, or text with an optional * at the start and/or the end, for example
+ * *chapter* (contains), *.xhtml (ends with), cover* (starts with), or package.opf (equals).
+ * Entries no rule matches are not ingested.
+ *
+ * @version 1.0
+ */
+public class ZipEntryRoutingRules {
+    private static final Logger LOG = LoggerFactory.getLogger(ZipEntryRoutingRules.class);
+
+    /**
+     * The folders in the ISBN folder structure that entries can be routed to
+     */
+    public enum Target {
+        ISBN, CHAPTERS, SUPPLEMENTARY, ARTWORK, STYLES
+    }
+
+    /**
+     * The routing for the Best Publishing ZIP layout: package.opf at the top, chapter and supplementary
+     * XHTML under content/, artwork under images/, and CSS under styles/
+     */
+    public static final String DEFAULT_RULES =
+            "*=ISBN,content/*chapter*=CHAPTERS,content/*.xhtml=SUPPLEMENTARY,images/*=ARTWORK,styles/*=STYLES";
+
+    private static final String SUBTREE_SUFFIX = "/**";
+
+    /**
+     * Open addressing hash table of the rules per directory, the size is a power of two
+     */
+    private DirRules[] dirRulesTable;
+    private int mask;
+
+    /**
+     * The configured rules, for the management interface
+     */
+    private String rules;
+
+    public ZipEntryRoutingRules() {
+        setRules(DEFAULT_RULES);
+    }
+
+    /**
+     * Spring DI, the rules are compiled when set, an IllegalArgumentException is thrown if a rule cannot be parsed
+     */
+
+    public void setRules(String rules) {
+        Map<String, DirRules> dirRulesByName = new LinkedHashMap<String, DirRules>();
+        for (String rule : StringUtils.split(rules, ',')) {
+            compileRule(rule.trim(), dirRulesByName);
+        }
+        if (dirRulesByName.isEmpty()) {
+            throw new IllegalArgumentException("No content ZIP routing rules in [" + rules + "]");
+        }
+
+        int size = Integer.highestOneBit(dirRulesByName.size() * 4 - 1) << 1;
+        DirRules[] table = new DirRules[size];
+        for (DirRules dirRules : dirRulesByName.values()) {
+            int slot = hash(dirRules.dirName, 0, dirRules.dirName.length()) & (size - 1);
+            while (table[slot] != null) {
+                slot = (slot + 1) & (size - 1);
+            }
+            table[slot] = dirRules;
+        }
+        this.dirRulesTable = table;
+        this.mask = size - 1;
+        this.rules = rules;
+        LOG.info("Compiled content ZIP routing rules for {} directories [{}]", dirRulesByName.size(), rules);
+    }
+
+    public String getRules() {
+        return rules;
+    }
+
+    /**
+     * Get the folder that a ZIP file entry should be stored in
+     *
+     * @param zipDirName the ZIP directory of the entry, such as content, blank for top level entries
+     * @param filename   the filename of the entry, such as 9780486282145-Chapter-1.xhtml
+     * @return the target folder, or null if no rule matches and the entry should not be ingested
+     */
+    public Target route(String zipDirName, String filename) {
+        if (zipDirName == null) {
+            zipDirName = "";
+        }
+
+        DirRules dirRules = find(zipDirName, zipDirName.length());
+        if (dirRules != null) {
+            Target target = match(dirRules.rules, filename);
+            if (target == null) {
+                target = match(dirRules.subtreeRules, filename);
+            }
+            if (target != null) {
+                return target;
+            }
+        }
+
+        // Walk up the parent directories, looking for rules that cover all directories below them
+        for (int end = zipDirName.lastIndexOf('/'); ; end = zipDirName.lastIndexOf('/', end - 1)) {
+            dirRules = find(zipDirName, Math.max(end, 0));
+            if (dirRules != null) {
+                Target target = match(dirRules.subtreeRules, filename);
+                if (target != null) {
+                    return target;
+                }
+            }
+            if (end <= 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Find the rules for the first length characters of the ZIP directory name, case insensitive
+     */
+    private DirRules find(String zipDirName, int length) {
+        for (int slot = hash(zipDirName, 0, length) & mask; ; slot = (slot + 1) & mask) {
+            DirRules dirRules = dirRulesTable[slot];
+            if (dirRules == null) {
+                return null;
+            }
+            if (dirRules.dirName.length() == length && dirRules.dirName.regionMatches(true, 0, zipDirName, 0, length)) {
+                return dirRules;
+            }
+        }
+    }
+
+    private static Target match(Rule[] rules, String filename) {
+        for (Rule rule : rules) {
+            if (rule.matches(filename)) {
+                return rule.target;
+            }
+        }
+        return null;
+    }
+
+    private static int hash(String s, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + Character.toLowerCase(s.charAt(i));
+        }
+        return h ^ (h >>> 16);
+    }
+
+    private static void compileRule(String rule, Map<String, DirRules> dirRulesByName) {
+        int equalsIndex = rule.lastIndexOf('=');
+        if (equalsIndex <= 0) {
+            throw new IllegalArgumentException("Content ZIP routing rule [" + rule +
+                    "] is not {dir}/{filename pattern}={target}");
+        }
+        String path = rule.substring(0, equalsIndex).trim();
+        String targetName = rule.substring(equalsIndex + 1).trim();
+
+        Target target;
+        try {
+            target = Target.valueOf(targetName.toUpperCase());
+        } catch (IllegalArgumentException iae) {
+            throw new IllegalArgumentException("Content ZIP routing rule [" + rule + "] has unknown target [" +
+                    targetName + "], use one of " + Arrays.toString(Target.values()));
+        }
+
+        int slashIndex = path.lastIndexOf('/');
+        String dirName = slashIndex < 0 ? "" : path.substring(0, slashIndex);
+        String filenamePattern = path.substring(slashIndex + 1);
+        boolean subtree = false;
+        if (dirName.equals("**")) {
+            dirName = "";
+            subtree = true;
+        } else if (dirName.endsWith(SUBTREE_SUFFIX)) {
+            dirName = dirName.substring(0, dirName.length() - SUBTREE_SUFFIX.length());
+            subtree = true;
+        }
+        if (dirName.contains("*") || dirName.startsWith("/") || dirName.endsWith("/")) {
+            throw new IllegalArgumentException("Content ZIP routing rule [" + rule + "] has an unsupported " +
+                    "directory [" + dirName + "], only a trailing /** is supported");
+        }
+
+        String lowerCaseDirName = dirName.toLowerCase();
+        DirRules dirRules = dirRulesByName.get(lowerCaseDirName);
+        if (dirRules == null) {
+            dirRules = new DirRules(lowerCaseDirName);
+            dirRulesByName.put(lowerCaseDirName, dirRules);
+        }
+        dirRules.add(Rule.compile(rule, filenamePattern, target), subtree);
+    }
+
+    /**
+     * The rules for one ZIP directory, those for the directory only, and those also covering
+     * the directories below it
+     */
+    private static class DirRules {
+        private final String dirName;
+        private Rule[] rules = new Rule[0];
+        private Rule[] subtreeRules = new Rule[0];
+
+        private DirRules(String dirName) {
+            this.dirName = dirName;
+        }
+
+        private void add(Rule rule, boolean subtree) {
+            if (subtree) {
+                subtreeRules = append(subtreeRules, rule);
+            } else {
+                rules = append(rules, rule);
+            }
+        }
+
+        private static Rule[] append(Rule[] rules, Rule rule) {
+            List<Rule> list = new ArrayList<Rule>(Arrays.asList(rules));
+            list.add(rule);
+            return list.toArray(new Rule[list.size()]);
+        }
+    }
+
+    /**
+     * A compiled filename pattern and the target folder for filenames matching it
+     */
+    private static class Rule {
+        private enum Kind {
+            ANY, EQUALS, STARTS_WITH, ENDS_WITH, CONTAINS
+        }
+
+        private final Kind kind;
+        private final String text;
+        private final Target target;
+
+        private Rule(Kind kind, String text, Target target) {
+            this.kind = kind;
+            this.text = text;
+            this.target = target;
+        }
+
+        private static Rule compile(String rule, String filenamePattern, Target target) {
+            boolean leadingStar = filenamePattern.startsWith("*");
+            boolean trailingStar = filenamePattern.length() > 1 && filenamePattern.endsWith("*");
+            String text = filenamePattern.substring(leadingStar ? 1 : 0,
+                    filenamePattern.length() - (trailingStar ? 1 : 0));
+            if (text.contains("*")) {
+                throw new IllegalArgumentException("Content ZIP routing rule [" + rule + "] has an unsupported " +
+                        "filename pattern [" + filenamePattern + "], * is only supported at the start and the end");
+            }
+
+            Kind kind;
+            if (text.isEmpty()) {
+                kind = Kind.ANY;
+            } else if (leadingStar && trailingStar) {
+                kind = Kind.CONTAINS;
+            } else if (leadingStar) {
+                kind = Kind.ENDS_WITH;
+            } else if (trailingStar) {
+                kind = Kind.STARTS_WITH;
+            } else {
+                kind = Kind.EQUALS;
+            }
+            return new Rule(kind, text, target);
+        }
+
+        private boolean matches(String filename) {
+            int length = text.length();
+            switch (kind) {
+                case ANY:
+                    return true;
+                case EQUALS:
+                    return filename.equalsIgnoreCase(text);
+                case STARTS_WITH:
+                    return filename.regionMatches(true, 0, text, 0, length);
+                case ENDS_WITH:
+                    return filename.regionMatches(true, filename.length() - length, text, 0, length);
+                default:
+                    for (int i = 0, last = filename.length() - length; i <= last; i++) {
+                        if (filename.regionMatches(true, i, text, 0, length)) {
+                            return true;
+                        }
+                    }
+                    return false;
+            }
+        }
+    }
+}
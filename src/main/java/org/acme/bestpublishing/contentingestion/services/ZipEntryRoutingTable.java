@@ -0,0 +1,79 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.services;
+
+import org.alfresco.service.cmr.repository.NodeRef;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Maps the entries in a content ZIP to the folder in the ISBN folder structure where
+ * the files should be stored. It is built once per ISBN by the {@link IsbnFolderProvisioner}, so
+ * finding the target folder for a ZIP entry is a lookup in the compiled {@link ZipEntryRoutingRules}
+ * instead of a repository query.
+ *
+ * @version 1.0
+ */
+public class ZipEntryRoutingTable {
+    /**
+     * The configured routing rules, shared by all ISBNs
+     */
+    private final ZipEntryRoutingRules routingRules;
+
+    /**
+     * /Company Home/Data Dictionary/BestPub/Incoming/Content/{ISBN} and its sub-folders, indexed by
+     * {@link ZipEntryRoutingRules.Target} ordinal
+     */
+    private final NodeRef[] folderByTarget;
+
+    public ZipEntryRoutingTable(ZipEntryRoutingRules routingRules, NodeRef isbnFolderNodeRef,
+                                NodeRef chaptersFolderNodeRef, NodeRef supplementaryFolderNodeRef,
+                                NodeRef artworkFolderNodeRef, NodeRef stylesFolderNodeRef) {
+        this.routingRules = routingRules;
+        this.folderByTarget = new NodeRef[ZipEntryRoutingRules.Target.values().length];
+        folderByTarget[ZipEntryRoutingRules.Target.ISBN.ordinal()] = isbnFolderNodeRef;
+        folderByTarget[ZipEntryRoutingRules.Target.CHAPTERS.ordinal()] = chaptersFolderNodeRef;
+        folderByTarget[ZipEntryRoutingRules.Target.SUPPLEMENTARY.ordinal()] = supplementaryFolderNodeRef;
+        folderByTarget[ZipEntryRoutingRules.Target.ARTWORK.ordinal()] = artworkFolderNodeRef;
+        folderByTarget[ZipEntryRoutingRules.Target.STYLES.ordinal()] = stylesFolderNodeRef;
+    }
+
+    public NodeRef getIsbnFolderNodeRef() {
+        return folderByTarget[ZipEntryRoutingRules.Target.ISBN.ordinal()];
+    }
+
+    /**
+     * @return the ISBN folder and all its sub-folders that content can be routed to
+     */
+    public List<NodeRef> getFolders() {
+        return Collections.unmodifiableList(Arrays.asList(folderByTarget));
+    }
+
+    /**
+     * Get the folder that a ZIP file entry should be stored in
+     *
+     * @param zipDirName the ZIP directory of the entry, such as content, blank for top level entries
+     * @param filename   the filename of the entry, such as 9780486282145-Chapter-1.xhtml
+     * @return the target folder, or null if the entry should not be ingested
+     */
+    public NodeRef getTargetFolder(String zipDirName, String filename) {
+        ZipEntryRoutingRules.Target target = routingRules.route(zipDirName, filename);
+        return target == null ? null : folderByTarget[target.ordinal()];
+    }
+}
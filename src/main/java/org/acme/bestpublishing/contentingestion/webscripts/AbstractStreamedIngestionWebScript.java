@@ -0,0 +1,114 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.webscripts;
+
+import org.acme.bestpublishing.contentingestion.actions.ContentIngestionExecuter;
+import org.acme.bestpublishing.contentingestion.services.StreamedIngestionRegistry;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+/**
+ * Base for the web scripts that push content ZIPs and poll their status, writes the JSON responses
+ *
+ * @version 1.0
+ */
+public abstract class AbstractStreamedIngestionWebScript extends AbstractWebScript {
+    protected static final Pattern ISBN_PATTERN = Pattern.compile("\\d{13}");
+
+    /**
+     * Keeps track of the content ZIPs pushed to this node
+     */
+    protected StreamedIngestionRegistry streamedIngestionRegistry;
+
+    /**
+     * Ingests the pushed content ZIPs, and knows about those pushed to other nodes
+     */
+    protected ContentIngestionExecuter contentIngestionExecuter;
+
+    /**
+     * Spring DI
+     */
+
+    public void setStreamedIngestionRegistry(StreamedIngestionRegistry streamedIngestionRegistry) {
+        this.streamedIngestionRegistry = streamedIngestionRegistry;
+    }
+
+    public void setContentIngestionExecuter(ContentIngestionExecuter contentIngestionExecuter) {
+        this.contentIngestionExecuter = contentIngestionExecuter;
+    }
+
+    /**
+     * Write the status of a pushed content ZIP
+     *
+     * @param res       the web script response
+     * @param status    the HTTP status
+     * @param ingestion the pushed content ZIP
+     * @throws IOException if the response could not be written
+     */
+    protected void writeIngestion(WebScriptResponse res, int status,
+                                  StreamedIngestionRegistry.StreamedIngestion ingestion) throws IOException {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("ingestionId", ingestion.getId());
+            json.put("isbn", ingestion.getIsbn());
+            json.put("state", ingestion.getState().toString());
+            json.put("entriesStored", ingestion.getEntriesStored());
+            json.put("bytesStored", ingestion.getBytesStored());
+            json.put("startedMillis", ingestion.getStartedMillis());
+            if (ingestion.getFinishedMillis() > 0) {
+                json.put("finishedMillis", ingestion.getFinishedMillis());
+            }
+            if (ingestion.getError() != null) {
+                json.put("error", ingestion.getError());
+            }
+            write(res, status, json);
+        } catch (JSONException je) {
+            throw new WebScriptException("Could not write the ingestion status", je);
+        }
+    }
+
+    /**
+     * Write an error that is not about a known pushed content ZIP
+     *
+     * @param res     the web script response
+     * @param status  the HTTP status
+     * @param message what went wrong
+     * @throws IOException if the response could not be written
+     */
+    protected void writeError(WebScriptResponse res, int status, String message) throws IOException {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("error", message);
+            write(res, status, json);
+        } catch (JSONException je) {
+            throw new WebScriptException("Could not write the error " + message, je);
+        }
+    }
+
+    private void write(WebScriptResponse res, int status, JSONObject json) throws IOException {
+        res.setStatus(status);
+        res.setContentType("application/json");
+        res.setContentEncoding("UTF-8");
+        res.getWriter().write(json.toString());
+    }
+}
@@ -0,0 +1,84 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.webscripts;
+
+import org.acme.bestpublishing.contentingestion.actions.IngestionOutcome;
+import org.acme.bestpublishing.contentingestion.services.StreamedIngestionRegistry;
+import org.springframework.extensions.surf.util.Content;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.regex.Pattern;
+
+/**
+ * Push a content ZIP for a new ISBN to the repository, POST /bestpub/content/zip/{isbn} with the ZIP as
+ * the request body. The ZIP is ingested while it is being uploaded, it is never stored on disk, and
+ * there is no wait for the next scan of the content directory. The web script runs without a transaction,
+ * so the request body is not buffered by the web script container, the ingestion commits in chunks.
+ *
+ * The status of a long upload can be polled from another request, see {@link StreamedIngestionStatusWebScript}.
+ * As the response is only written when the ZIP has been ingested, the client can choose the ingestion id,
+ * POST /bestpub/content/zip/{isbn}?ingestionId={ingestionId}, to poll with it while it is uploading.
+ * The ingestion id and progress are recorded on the ISBN folder, so when the ISBN is given as well
+ * the poll can be answered by any node, not only the one the ZIP is pushed to.
+ *
+ * @version 1.0
+ */
+public class ContentZipUploadWebScript extends AbstractStreamedIngestionWebScript {
+    private static final Pattern INGESTION_ID_PATTERN = Pattern.compile("[A-Za-z0-9._-]{1,64}");
+
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
+        String isbn = req.getServiceMatch().getTemplateVars().get("isbn");
+        if (isbn == null || !ISBN_PATTERN.matcher(isbn).matches()) {
+            writeError(res, Status.STATUS_BAD_REQUEST, "Not an ISBN 13 number [" + isbn + "]");
+            return;
+        }
+        String ingestionId = req.getParameter("ingestionId");
+        if (ingestionId != null && !INGESTION_ID_PATTERN.matcher(ingestionId).matches()) {
+            writeError(res, Status.STATUS_BAD_REQUEST, "Not a valid ingestion id, up to 64 letters, digits, " +
+                    "'.', '_' or '-' [" + ingestionId + "]");
+            return;
+        }
+        Content content = req.getContent();
+        if (content == null) {
+            writeError(res, Status.STATUS_BAD_REQUEST, "No content ZIP in the request body");
+            return;
+        }
+
+        StreamedIngestionRegistry.StreamedIngestion ingestion = streamedIngestionRegistry.start(isbn, ingestionId);
+        if (ingestion == null) {
+            writeError(res, Status.STATUS_CONFLICT, "Ingestion id " + ingestionId + " is already used");
+            return;
+        }
+        IngestionOutcome outcome;
+        try (InputStream zipStream = content.getInputStream()) {
+            outcome = contentIngestionExecuter.ingestZipStream(zipStream, isbn, ingestion);
+        }
+
+        if (outcome == IngestionOutcome.INGESTED) {
+            writeIngestion(res, Status.STATUS_CREATED, ingestion);
+        } else if (outcome == IngestionOutcome.SKIPPED) {
+            writeIngestion(res, Status.STATUS_CONFLICT, ingestion);
+        } else {
+            writeIngestion(res, Status.STATUS_INTERNAL_SERVER_ERROR, ingestion);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.webscripts;
+
+import org.acme.bestpublishing.contentingestion.services.StreamedIngestionRegistry;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+import java.io.IOException;
+
+/**
+ * Poll the status of a content ZIP pushed with the {@link ContentZipUploadWebScript}:
+ * GET /bestpub/content/zip/ingestions/{ingestionId}, or the latest one for an ISBN with
+ * GET /bestpub/content/zip/ingestions?isbn={isbn}
+ *
+ * An ingestion id on its own is only known to the node the ZIP was pushed to. When the ISBN is given,
+ * the status recorded on the ISBN folder is used if this node does not know the ingestion,
+ * so the poll can go to any node of the cluster.
+ *
+ * @version 1.0
+ */
+public class StreamedIngestionStatusWebScript extends AbstractStreamedIngestionWebScript {
+
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse res) throws IOException {
+        String ingestionId = req.getServiceMatch().getTemplateVars().get("ingestionId");
+        String isbn = req.getParameter("isbn");
+
+        if (isbn != null && !ISBN_PATTERN.matcher(isbn).matches()) {
+            writeError(res, Status.STATUS_BAD_REQUEST, "Not an ISBN 13 number [" + isbn + "]");
+            return;
+        }
+
+        StreamedIngestionRegistry.StreamedIngestion ingestion;
+        if (ingestionId != null) {
+            ingestion = streamedIngestionRegistry.get(ingestionId);
+            if (ingestion == null && isbn != null) {
+                // Pushed to another node, or forgotten
+                ingestion = contentIngestionExecuter.getStreamedIngestion(isbn);
+                if (ingestion != null && !ingestion.getId().equals(ingestionId)) {
+                    ingestion = null;
+                }
+            }
+        } else if (isbn != null) {
+            ingestion = streamedIngestionRegistry.getLatest(isbn);
+            if (ingestion == null || ingestion.getState() != StreamedIngestionRegistry.State.RUNNING) {
+                // A later push might have gone to another node
+                StreamedIngestionRegistry.StreamedIngestion recorded =
+                        contentIngestionExecuter.getStreamedIngestion(isbn);
+                if (recorded != null) {
+                    ingestion = recorded;
+                }
+            }
+        } else {
+            writeError(res, Status.STATUS_BAD_REQUEST, "Give an ingestion id, or an ISBN");
+            return;
+        }
+
+        if (ingestion == null) {
+            writeError(res, Status.STATUS_NOT_FOUND, "No pushed content ZIP for " +
+                    (ingestionId != null ? "ingestion id " + ingestionId : "ISBN " + isbn));
+            return;
+        }
+        writeIngestion(res, Status.STATUS_OK, ingestion);
+    }
+}
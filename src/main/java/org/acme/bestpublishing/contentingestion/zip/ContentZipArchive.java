@@ -0,0 +1,69 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.zip;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+
+/**
+ * A content ZIP being ingested, independent of how the ZIP file is read.
+ * Implementations are safe to use from several threads at the same time, each thread reading its own entries.
+ *
+ * @version 1.0
+ */
+public interface ContentZipArchive extends Closeable {
+
+    /**
+     * @return the path of the ZIP file
+     */
+    String getName();
+
+    /**
+     * @return the entries, in the order they are stored in the ZIP
+     */
+    Enumeration<? extends ZipEntry> entries();
+
+    /**
+     * @param entry the entry to read
+     * @return a stream with the uncompressed entry data
+     * @throws IOException if the entry could not be read
+     */
+    InputStream getInputStream(ZipEntry entry) throws IOException;
+
+    /**
+     * Get where the data for a STORED entry starts in the ZIP file, if it can be transferred directly
+     *
+     * @param entry the entry
+     * @return the position of the first byte of entry data, or -1 if the entry has to be read as a stream
+     * @throws IOException if the ZIP could not be read
+     */
+    long getStoredDataOffset(ZipEntry entry) throws IOException;
+
+    /**
+     * Transfer the data of a STORED entry straight from the ZIP file to the target channel
+     *
+     * @param entry      the STORED entry
+     * @param dataOffset where the entry data starts, from {@link #getStoredDataOffset(ZipEntry)}
+     * @param target     where to write the entry data
+     * @throws IOException if the data could not be transferred
+     */
+    void transferStoredEntry(ZipEntry entry, long dataOffset, WritableByteChannel target) throws IOException;
+}
@@ -0,0 +1,142 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.zip;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * A content ZIP being ingested, read with the JDK. Entries are read with {@link ZipFile}, except
+ * STORED entries, which can be transferred straight from the ZIP file into another channel, such as
+ * a content store file, without being copied through the heap.
+ * Safe to use from several threads at the same time.
+ *
+ * @version 1.0
+ */
+public class ContentZipFile implements ContentZipArchive {
+    private static final Logger LOG = LoggerFactory.getLogger(ContentZipFile.class);
+
+    private final File file;
+    private final ZipFile zipFile;
+
+    /**
+     * Opened the first time a STORED entry is transferred
+     */
+    private FileChannel channel;
+    private ZipCentralDirectory centralDirectory;
+    private boolean centralDirectoryUnusable = false;
+
+    public ContentZipFile(File file) throws IOException {
+        this.file = file;
+        this.zipFile = new ZipFile(file);
+    }
+
+    @Override
+    public String getName() {
+        return zipFile.getName();
+    }
+
+    @Override
+    public Enumeration<? extends ZipEntry> entries() {
+        return zipFile.entries();
+    }
+
+    @Override
+    public InputStream getInputStream(ZipEntry entry) throws IOException {
+        return zipFile.getInputStream(entry);
+    }
+
+    @Override
+    public long getStoredDataOffset(ZipEntry entry) throws IOException {
+        if (entry.getMethod() != ZipEntry.STORED) {
+            return -1;
+        }
+
+        ZipCentralDirectory.Record record = getCentralDirectoryRecord(entry);
+        if (record == null || record.getMethod() != ZipEntry.STORED || record.isEncrypted() ||
+                record.getCompressedSize() != record.getSize()) {
+            return -1;
+        }
+
+        return ZipCentralDirectory.getDataOffset(channel, record);
+    }
+
+    @Override
+    public void transferStoredEntry(ZipEntry entry, long dataOffset, WritableByteChannel target) throws IOException {
+        long remaining = entry.getSize();
+        long position = dataOffset;
+        while (remaining > 0) {
+            long transferred = channel.transferTo(position, remaining, target);
+            if (transferred <= 0) {
+                throw new ZipException("Could not transfer data for entry " + entry.getName());
+            }
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            zipFile.close();
+        } finally {
+            synchronized (this) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+    }
+
+    private synchronized ZipCentralDirectory.Record getCentralDirectoryRecord(ZipEntry entry) throws IOException {
+        if (centralDirectoryUnusable) {
+            return null;
+        }
+
+        if (centralDirectory == null) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                centralDirectory = ZipCentralDirectory.read(channel);
+            } catch (IOException ioe) {
+                // Such as a corrupt or truncated central directory, entries will be read as streams
+                LOG.debug("Cannot transfer STORED entries directly from {} [{}]", file.getName(), ioe.getMessage());
+                centralDirectoryUnusable = true;
+                try {
+                    channel.close();
+                } catch (IOException closeIoe) {
+                    LOG.warn("Could not close content ZIP channel {}", file.getName());
+                } finally {
+                    channel = null;
+                }
+                return null;
+            }
+        }
+
+        return centralDirectory.get(entry.getName());
+    }
+}
@@ -0,0 +1,81 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.zip;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+
+/**
+ * One entry of a content ZIP that has already been inflated into memory, so it can be written to the
+ * repository by another thread without reading the ZIP again. Other entries are read from the ZIP.
+ * Closing does not close the ZIP, it is shared with the other entries.
+ *
+ * @version 1.0
+ */
+public class InflatedZipEntryArchive implements ContentZipArchive {
+    private final ContentZipArchive zipArchive;
+    private final ZipEntry inflatedEntry;
+    private final byte[] inflatedData;
+
+    /**
+     * @param zipArchive    the ZIP the entry is in
+     * @param inflatedEntry the entry
+     * @param inflatedData  the uncompressed entry data
+     */
+    public InflatedZipEntryArchive(ContentZipArchive zipArchive, ZipEntry inflatedEntry, byte[] inflatedData) {
+        this.zipArchive = zipArchive;
+        this.inflatedEntry = inflatedEntry;
+        this.inflatedData = inflatedData;
+    }
+
+    @Override
+    public String getName() {
+        return zipArchive.getName();
+    }
+
+    @Override
+    public Enumeration<? extends ZipEntry> entries() {
+        return zipArchive.entries();
+    }
+
+    @Override
+    public InputStream getInputStream(ZipEntry entry) throws IOException {
+        if (entry == inflatedEntry) {
+            return new ByteArrayInputStream(inflatedData);
+        }
+        return zipArchive.getInputStream(entry);
+    }
+
+    @Override
+    public long getStoredDataOffset(ZipEntry entry) throws IOException {
+        // The inflated entry is always read from memory
+        return entry == inflatedEntry ? -1 : zipArchive.getStoredDataOffset(entry);
+    }
+
+    @Override
+    public void transferStoredEntry(ZipEntry entry, long dataOffset, WritableByteChannel target) throws IOException {
+        zipArchive.transferStoredEntry(entry, dataOffset, target);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,285 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.zip;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A content ZIP being ingested, read through memory mapped regions of the ZIP file instead of
+ * {@link java.util.zip.ZipFile}. The central directory is parsed from the mapping, ZIP64 archives
+ * are supported, and entry data is read straight from the page cache. Each entry stream has its own
+ * {@link Inflater}, so several threads can inflate different entries at the same time without
+ * contending on a shared native ZIP handle.
+ * <p>
+ * The file is mapped in regions of at most 1GB, as a single mapping is limited to 2GB. Mappings are
+ * released when they are garbage collected, not when the archive is closed.
+ *
+ * @version 1.0
+ */
+public class MappedZipArchive implements ContentZipArchive {
+    /**
+     * Size of each mapped region of the ZIP file
+     */
+    static final long REGION_SIZE = 1L << 30;
+
+    private static final int INFLATE_BUFFER_SIZE = 8192;
+
+    private final File file;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final MappedByteBuffer[] regions;
+    private final List<MappedZipEntry> entries;
+
+    public MappedZipArchive(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            this.fileSize = channel.size();
+            int regionCount = (int) ((fileSize + REGION_SIZE - 1) / REGION_SIZE);
+            this.regions = new MappedByteBuffer[regionCount];
+            for (int i = 0; i < regionCount; i++) {
+                long position = i * REGION_SIZE;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(REGION_SIZE, fileSize - position));
+            }
+
+            ZipCentralDirectory centralDirectory = ZipCentralDirectory.read(channel);
+            List<MappedZipEntry> zipEntries = new ArrayList<MappedZipEntry>(centralDirectory.size());
+            for (ZipCentralDirectory.Record record : centralDirectory.getRecords()) {
+                zipEntries.add(new MappedZipEntry(record));
+            }
+            this.entries = Collections.unmodifiableList(zipEntries);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public String getName() {
+        return file.getPath();
+    }
+
+    @Override
+    public Enumeration<? extends ZipEntry> entries() {
+        return Collections.enumeration(entries);
+    }
+
+    @Override
+    public InputStream getInputStream(ZipEntry entry) throws IOException {
+        ZipCentralDirectory.Record record = getRecord(entry);
+        if (record.isEncrypted()) {
+            throw new ZipException("Encrypted entry " + record.getName() + " is not supported");
+        }
+
+        InputStream data = new MappedRegionInputStream(
+                ZipCentralDirectory.getDataOffset(channel, record), record.getCompressedSize());
+        switch (record.getMethod()) {
+            case ZipEntry.STORED:
+                return data;
+            case ZipEntry.DEFLATED:
+                return new EntryInflaterInputStream(data);
+            default:
+                throw new ZipException("Unsupported compression method " + record.getMethod() +
+                        " for entry " + record.getName());
+        }
+    }
+
+    @Override
+    public long getStoredDataOffset(ZipEntry entry) throws IOException {
+        ZipCentralDirectory.Record record = getRecord(entry);
+        if (record.getMethod() != ZipEntry.STORED || record.isEncrypted() ||
+                record.getCompressedSize() != record.getSize()) {
+            return -1;
+        }
+
+        return ZipCentralDirectory.getDataOffset(channel, record);
+    }
+
+    @Override
+    public void transferStoredEntry(ZipEntry entry, long dataOffset, WritableByteChannel target) throws IOException {
+        long remaining = entry.getSize();
+        long position = dataOffset;
+        while (remaining > 0) {
+            ByteBuffer slice = slice(position, remaining);
+            int length = slice.remaining();
+            while (slice.hasRemaining()) {
+                target.write(slice);
+            }
+            position += length;
+            remaining -= length;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ZipCentralDirectory.Record getRecord(ZipEntry entry) throws ZipException {
+        if (!(entry instanceof MappedZipEntry)) {
+            throw new ZipException("Entry " + entry.getName() + " does not belong to " + file.getName());
+        }
+        return ((MappedZipEntry) entry).record;
+    }
+
+    /**
+     * Get a buffer over the mapped file, from the position up to the end of the region it is in
+     *
+     * @param position  position in the ZIP file
+     * @param maxLength the most bytes wanted
+     * @return a buffer of its own, so it can be used by one thread without affecting others
+     */
+    private ByteBuffer slice(long position, long maxLength) throws EOFException {
+        if (position < 0 || position >= fileSize) {
+            throw new EOFException("Unexpected end of ZIP file " + file.getName());
+        }
+
+        int region = (int) (position / REGION_SIZE);
+        int offset = (int) (position % REGION_SIZE);
+        ByteBuffer slice = regions[region].duplicate();
+        slice.position(offset);
+        slice.limit((int) Math.min(slice.limit(), offset + maxLength));
+        return slice;
+    }
+
+    /**
+     * An entry of a mapped ZIP, with the central directory record it was created from
+     */
+    private static class MappedZipEntry extends ZipEntry {
+        private final ZipCentralDirectory.Record record;
+
+        MappedZipEntry(ZipCentralDirectory.Record record) {
+            super(record.getName());
+            this.record = record;
+            if (record.getMethod() == ZipEntry.STORED || record.getMethod() == ZipEntry.DEFLATED) {
+                setMethod(record.getMethod());
+            }
+            setCrc(record.getCrc());
+            setSize(record.getSize());
+            setCompressedSize(record.getCompressedSize());
+        }
+    }
+
+    /**
+     * Reads a range of the mapped file, possibly spanning regions
+     */
+    private class MappedRegionInputStream extends InputStream {
+        private long position;
+        private long remaining;
+
+        MappedRegionInputStream(long position, long length) {
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int b = slice(position, 1).get() & 0xFF;
+            position++;
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining <= 0) {
+                return -1;
+            }
+            ByteBuffer slice = slice(position, Math.min(len, remaining));
+            int length = slice.remaining();
+            slice.get(b, off, length);
+            position += length;
+            remaining -= length;
+            return length;
+        }
+
+        @Override
+        public long skip(long n) {
+            long skipped = Math.max(0, Math.min(n, remaining));
+            position += skipped;
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(remaining, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Inflates raw DEFLATE data with an {@link Inflater} of its own, which is released when the stream is closed
+     */
+    private static class EntryInflaterInputStream extends InflaterInputStream {
+        private boolean eof = false;
+        private boolean closed = false;
+
+        EntryInflaterInputStream(InputStream in) {
+            super(in, new Inflater(true), INFLATE_BUFFER_SIZE);
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            if (eof) {
+                throw new EOFException("Unexpected end of ZLIB input stream");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len == -1) {
+                // An inflater without ZLIB header needs an extra dummy byte at the end of the input
+                buf[0] = 0;
+                len = 1;
+                eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                try {
+                    super.close();
+                } finally {
+                    inf.end();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/*
+Licensed to the Apache Software Foundation (ASF) under one or more
+contributor license agreements.  See the NOTICE file distributed with
+this work for additional information regarding copyright ownership.
+The ASF licenses this file to You under the Apache License, Version 2.0
+(the "License"); you may not use this file except in compliance with
+the License.  You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+*/
+package org.acme.bestpublishing.contentingestion.zip;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a ZIP file straight from a {@link FileChannel}, so we know where
+ * each entry is stored in the file. The central directory is memory mapped while it is parsed, so
+ * it is never loaded onto the heap as a whole. ZIP64 archives are supported.
+ * Used to copy STORED (uncompressed) entries directly from the ZIP file, something
+ * {@link java.util.zip.ZipFile} does not support, and by the {@link MappedZipArchive}.
+ *
+ * @version 1.0
+ */
+public class ZipCentralDirectory {
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+    static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE = 0x07064b50;
+
+    static final int LOCAL_HEADER_LENGTH = 30;
+    static final int CENTRAL_HEADER_LENGTH = 46;
+    static final int END_OF_CENTRAL_DIRECTORY_LENGTH = 22;
+    static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LENGTH = 56;
+    static final int ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_LENGTH = 20;
+    static final int MAX_COMMENT_LENGTH = 0xFFFF;
+
+    /**
+     * Sizes and offsets with this value are stored in a ZIP64 extra field
+     */
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    static final int ZIP64_EXTRA_FIELD_ID = 0x0001;
+
+    /**
+     * General purpose flag bit set for encrypted entries
+     */
+    static final int FLAG_ENCRYPTED = 0x1;
+
+    /**
+     * What the central directory says about an entry
+     */
+    public static class Record {
+        private final String name;
+        private final int method;
+        private final int flags;
+        private final long crc;
+        private final long compressedSize;
+        private final long size;
+        private final long localHeaderOffset;
+
+        Record(String name, int method, int flags, long crc, long compressedSize, long size, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.flags = flags;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+        public int getMethod() {
+            return method;
+        }
+        public boolean isEncrypted() {
+            return (flags & FLAG_ENCRYPTED) != 0;
+        }
+        public long getCrc() {
+            return crc;
+        }
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+        public long getSize() {
+            return size;
+        }
+        public long getLocalHeaderOffset() {
+            return localHeaderOffset;
+        }
+    }
+
+    /**
+     * Entry name -> central directory record, in the order of the central directory
+     */
+    private final Map<String, Record> records;
+
+    private ZipCentralDirectory(Map<String, Record> records) {
+        this.records = records;
+    }
+
+    /**
+     * @param name the entry name, such as images/cover.jpg
+     * @return the record for the entry, or null if there is no such entry
+     */
+    public Record get(String name) {
+        return records.get(name);
+    }
+
+    /**
+     * @return all the records, in the order of the central directory
+     */
+    public Collection<Record> getRecords() {
+        return Collections.unmodifiableCollection(records.values());
+    }
+
+    /**
+     * @return number of entries in the ZIP
+     */
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * Read the central directory of a ZIP file
+     *
+     * @param channel channel for the ZIP file, positional reads are used so its position is not changed
+     * @return the central directory
+     * @throws IOException if the ZIP could not be read, or is not a valid ZIP
+     */
+    public static ZipCentralDirectory read(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        int tailLength = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_LENGTH + MAX_COMMENT_LENGTH);
+        long tailPosition = fileSize - tailLength;
+        ByteBuffer tail = readFully(channel, tailPosition, tailLength);
+
+        // The end of central directory record is followed by a comment of up to 64K, search backwards for it
+        int eocdPosition = -1;
+        for (int i = tailLength - END_OF_CENTRAL_DIRECTORY_LENGTH; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE &&
+                    i + END_OF_CENTRAL_DIRECTORY_LENGTH + (tail.getShort(i + 20) & 0xFFFF) == tailLength) {
+                eocdPosition = i;
+                break;
+            }
+        }
+        if (eocdPosition < 0) {
+            throw new ZipException("End of central directory record not found");
+        }
+
+        long entryCount = tail.getShort(eocdPosition + 10) & 0xFFFF;
+        long centralDirectorySize = tail.getInt(eocdPosition + 12) & ZIP64_MAGIC;
+        long centralDirectoryOffset = tail.getInt(eocdPosition + 16) & ZIP64_MAGIC;
+
+        // ZIP64, the real values are in the ZIP64 end of central directory record
+        long locatorPosition = tailPosition + eocdPosition - ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_LENGTH;
+        if ((entryCount == ZIP64_MAGIC_COUNT || centralDirectorySize == ZIP64_MAGIC ||
+                centralDirectoryOffset == ZIP64_MAGIC) && locatorPosition >= 0) {
+            ByteBuffer locator = readFully(channel, locatorPosition, ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_LENGTH);
+            if (locator.getInt(0) == ZIP64_END_OF_CENTRAL_DIRECTORY_LOCATOR_SIGNATURE) {
+                ByteBuffer eocd64 = readFully(channel, locator.getLong(8), ZIP64_END_OF_CENTRAL_DIRECTORY_LENGTH);
+                if (eocd64.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                    throw new ZipException("Bad ZIP64 end of central directory record");
+                }
+                entryCount = eocd64.getLong(32);
+                centralDirectorySize = eocd64.getLong(40);
+                centralDirectoryOffset = eocd64.getLong(48);
+            }
+        }
+
+        if (centralDirectoryOffset < 0 || centralDirectorySize < 0 ||
+                centralDirectoryOffset + centralDirectorySize > fileSize) {
+            throw new ZipException("Central directory is outside of the ZIP file");
+        }
+        if (centralDirectorySize > Integer.MAX_VALUE) {
+            throw new ZipException("Central directory is too big [size=" + centralDirectorySize + "]");
+        }
+        // Every entry takes at least a fixed size header, so a bigger count can only come from a corrupt ZIP
+        if (entryCount < 0 || entryCount > centralDirectorySize / CENTRAL_HEADER_LENGTH) {
+            throw new ZipException("Central directory of " + centralDirectorySize + " bytes cannot hold " +
+                    entryCount + " entries");
+        }
+
+        ByteBuffer directory = channel.map(FileChannel.MapMode.READ_ONLY,
+                centralDirectoryOffset, centralDirectorySize).order(ByteOrder.LITTLE_ENDIAN);
+        Map<String, Record> records = new LinkedHashMap<String, Record>();
+        int position = 0;
+        for (long i = 0; i < entryCount; i++) {
+            if (position + CENTRAL_HEADER_LENGTH > directory.limit() ||
+                    directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Bad central directory header for entry " + i);
+            }
+
+            int flags = directory.getShort(position + 8) & 0xFFFF;
+            int method = directory.getShort(position + 10) & 0xFFFF;
+            long crc = directory.getInt(position + 16) & ZIP64_MAGIC;
+            long compressedSize = directory.getInt(position + 20) & ZIP64_MAGIC;
+            long size = directory.getInt(position + 24) & ZIP64_MAGIC;
+            int nameLength = directory.getShort(position + 28) & 0xFFFF;
+            int extraLength = directory.getShort(position + 30) & 0xFFFF;
+            int commentLength = directory.getShort(position + 32) & 0xFFFF;
+            long localHeaderOffset = directory.getInt(position + 42) & ZIP64_MAGIC;
+
+            int namePosition = position + CENTRAL_HEADER_LENGTH;
+            int extraPosition = namePosition + nameLength;
+            if (extraPosition + extraLength + commentLength > directory.limit()) {
+                throw new ZipException("Central directory header for entry " + i + " is truncated");
+            }
+
+            byte[] nameBytes = new byte[nameLength];
+            directory.position(namePosition);
+            directory.get(nameBytes);
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+            if (size == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC) {
+                // The ZIP64 extra field holds the 8 byte values, in this order, for the fields that overflowed
+                int zip64Position = findExtraField(directory, extraPosition, extraLength, ZIP64_EXTRA_FIELD_ID);
+                if (zip64Position < 0) {
+                    throw new ZipException("ZIP64 extra field missing for entry " + name);
+                }
+                int zip64Length = 8 * ((size == ZIP64_MAGIC ? 1 : 0) + (compressedSize == ZIP64_MAGIC ? 1 : 0) +
+                        (localHeaderOffset == ZIP64_MAGIC ? 1 : 0));
+                if (zip64Position + zip64Length > extraPosition + extraLength) {
+                    throw new ZipException("ZIP64 extra field is truncated for entry " + name);
+                }
+                if (size == ZIP64_MAGIC) {
+                    size = directory.getLong(zip64Position);
+                    zip64Position += 8;
+                }
+                if (compressedSize == ZIP64_MAGIC) {
+                    compressedSize = directory.getLong(zip64Position);
+                    zip64Position += 8;
+                }
+                if (localHeaderOffset == ZIP64_MAGIC) {
+                    localHeaderOffset = directory.getLong(zip64Position);
+                }
+            }
+
+            // Different readers pick different entries for a duplicated name, so which content is ingested is unclear
+            if (records.put(name, new Record(name, method, flags, crc, compressedSize, size, localHeaderOffset))
+                    != null) {
+                throw new ZipException("Duplicate entry " + name);
+            }
+            position = extraPosition + extraLength + commentLength;
+        }
+
+        return new ZipCentralDirectory(records);
+    }
+
+    /**
+     * Get where the data of an entry starts, which is after its local header
+     *
+     * @param channel channel for the ZIP file
+     * @param record  the entry
+     * @return the position in the ZIP file of the first byte of entry data
+     * @throws IOException if the local header could not be read or is not valid
+     */
+    public static long getDataOffset(FileChannel channel, Record record) throws IOException {
+        ByteBuffer localHeader = readFully(channel, record.getLocalHeaderOffset(), LOCAL_HEADER_LENGTH);
+        if (localHeader.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Bad local header for entry " + record.getName());
+        }
+
+        int nameLength = localHeader.getShort(26) & 0xFFFF;
+        int extraLength = localHeader.getShort(28) & 0xFFFF;
+        long dataOffset = record.getLocalHeaderOffset() + LOCAL_HEADER_LENGTH + nameLength + extraLength;
+        if (dataOffset + record.getCompressedSize() > channel.size()) {
+            throw new ZipException("Data for entry " + record.getName() + " is outside of the ZIP file");
+        }
+
+        return dataOffset;
+    }
+
+    /**
+     * @return position of the data of the extra field with the id, or -1 if there is no such field
+     */
+    private static int findExtraField(ByteBuffer directory, int extraPosition, int extraLength, int fieldId) {
+        int position = extraPosition;
+        int end = extraPosition + extraLength;
+        while (position + 4 <= end) {
+            int id = directory.getShort(position) & 0xFFFF;
+            int length = directory.getShort(position + 2) & 0xFFFF;
+            if (id == fieldId) {
+                return position + 4;
+            }
+            position += 4 + length;
+        }
+
+        return -1;
+    }
+
+    static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Unexpected end of ZIP file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}